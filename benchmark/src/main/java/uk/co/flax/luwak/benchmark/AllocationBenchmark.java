@@ -0,0 +1,143 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableList;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures allocation and garbage collection while matching single documents, with and
+ * without per-thread reuse of DocumentBatch index buffers
+ */
+public class AllocationBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String... args) throws IOException {
+
+        List<InputDocument> documents = ImmutableList.copyOf(StandardBenchmark.loadDocuments());
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), new TermFilteredPresearcher())) {
+            try {
+                monitor.update(StandardBenchmark.loadQueries());
+            } catch (UpdateException e) {
+                System.out.println(e.errors.size() + " queries had errors");
+            }
+
+            // run through once to warm up
+            run(monitor, documents, false);
+            run(monitor, documents, true);
+
+            for (boolean reuse : new boolean[]{ false, true }) {
+                System.out.println("Matching " + documents.size() * ITERATIONS + " documents, reuseIndexBuffers=" + reuse);
+                System.out.println(run(monitor, documents, reuse));
+            }
+        }
+    }
+
+    public static Measurement run(Monitor monitor, List<InputDocument> documents, boolean reuse) throws IOException {
+        Measurement measurement = new Measurement(documents.size() * ITERATIONS);
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (InputDocument doc : documents) {
+                try (DocumentBatch batch = new DocumentBatch.Builder().add(doc).reuseIndexBuffers(reuse).build()) {
+                    monitor.match(batch, SimpleMatcher.FACTORY);
+                }
+            }
+        }
+        return measurement.finish();
+    }
+
+    public static class Measurement {
+
+        private final int documents;
+        private final long startBytes;
+        private final long startGcCount;
+        private final long startGcTime;
+        private final long startTime;
+
+        private long allocatedBytes;
+        private long gcCount;
+        private long gcTime;
+        private long elapsed;
+
+        Measurement(int documents) {
+            this.documents = documents;
+            this.startBytes = threadAllocatedBytes();
+            this.startGcCount = gcCount();
+            this.startGcTime = gcTime();
+            this.startTime = System.nanoTime();
+        }
+
+        Measurement finish() {
+            elapsed = System.nanoTime() - startTime;
+            allocatedBytes = threadAllocatedBytes() - startBytes;
+            gcCount = gcCount() - startGcCount;
+            gcTime = gcTime() - startGcTime;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsed / 1e9;
+            return String.format(Locale.ROOT, "%d docs in %d ms: %.0f docs/s, %d bytes/doc allocated (%.1f MB/s), %d GCs taking %d ms",
+                    documents, TimeUnit.NANOSECONDS.toMillis(elapsed), documents / seconds,
+                    allocatedBytes / documents, allocatedBytes / seconds / (1024 * 1024), gcCount, gcTime);
+        }
+    }
+
+    // Uses the HotSpot-specific threading MBean operation, returning 0 on JVMs that don't provide it
+    private static long threadAllocatedBytes() {
+        try {
+            Object bytes = ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME), "getThreadAllocatedBytes",
+                    new Object[]{ Thread.currentThread().getId() }, new String[]{ "long" });
+            return (Long) bytes;
+        } catch (JMException e) {
+            return 0;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+}
@@ -0,0 +1,115 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Compares query loading throughput using {@link ConcurrentQueryLoader} against
+ * {@link Monitor#bulkLoad(java.util.stream.Stream, int)} and an offline {@link QueryIndexBuilder},
+ * across increasing numbers of threads
+ */
+public class BulkLoadBenchmark {
+
+    private static final int COPIES = 20;
+
+    public static void main(String... args) throws IOException, InterruptedException {
+
+        // make several copies of the benchmark queries, so that loading takes long enough to measure
+        List<MonitorQuery> queries = new ArrayList<>();
+        List<MonitorQuery> original = ImmutableList.copyOf(StandardBenchmark.loadQueries());
+        for (int i = 0; i < COPIES; i++) {
+            for (MonitorQuery mq : original) {
+                queries.add(new MonitorQuery(i + "_" + mq.getId(), mq.getQuery()));
+            }
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        // run through once to warm up
+        loadConcurrently(queries, cores);
+        bulkLoad(queries, cores);
+        buildOffline(queries, cores);
+
+        for (int threads : threadCounts) {
+            System.out.println(String.format(Locale.ROOT,
+                    "%2d threads: ConcurrentQueryLoader %8.0f queries/sec, bulkLoad %8.0f queries/sec, QueryIndexBuilder %8.0f queries/sec",
+                    threads, loadConcurrently(queries, threads), bulkLoad(queries, threads), buildOffline(queries, threads)));
+        }
+    }
+
+    private static Monitor newMonitor() throws IOException {
+        return new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), new TermFilteredPresearcher());
+    }
+
+    private static double loadConcurrently(List<MonitorQuery> queries, int threads) throws IOException, InterruptedException {
+        try (Monitor monitor = newMonitor()) {
+            long start = System.nanoTime();
+            List<QueryError> errors = new ArrayList<>();
+            try (ConcurrentQueryLoader loader = new ConcurrentQueryLoader(monitor, errors, threads, ConcurrentQueryLoader.DEFAULT_QUEUE_SIZE)) {
+                for (MonitorQuery mq : queries) {
+                    loader.add(mq);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            return (queries.size() - errors.size()) * 1e9 / elapsed;
+        }
+    }
+
+    private static double bulkLoad(List<MonitorQuery> queries, int threads) throws IOException {
+        try (Monitor monitor = newMonitor()) {
+            Monitor.BulkLoadResult result = monitor.bulkLoad(queries.stream(), threads);
+            if (result.queries + result.errors.size() != queries.size())
+                throw new IllegalStateException("Expected " + queries.size() + " queries, but " + result);
+            System.out.println("    " + result);
+            return result.queriesPerSecond();
+        }
+    }
+
+    private static double buildOffline(List<MonitorQuery> queries, int threads) throws IOException {
+        Path indexPath = Files.createTempDirectory("luwak-benchmark");
+        try (Directory directory = FSDirectory.open(indexPath)) {
+            QueryIndexBuilder builder = new QueryIndexBuilder(new LuceneQueryParser(StandardBenchmark.FIELD), new TermFilteredPresearcher())
+                    .setThreads(threads);
+            Monitor.BulkLoadResult result = builder.build(queries.stream(), directory);
+            System.out.println("    " + result);
+            return result.queriesPerSecond();
+        }
+        finally {
+            IOUtils.rm(indexPath);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures the size of presearcher queries, and the time taken to build them, with
+ * document terms filtered against the query index and without
+ *
+ * Unfiltered queries are built with a {@link QueryTermFilter} over the document batch
+ * itself, which accepts every document term.
+ */
+public class PresearcherQueryBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String... args) throws IOException, UpdateException {
+
+        List<MonitorQuery> queries = ImmutableList.copyOf(StandardBenchmark.loadQueries());
+        List<InputDocument> documents = ImmutableList.copyOf(StandardBenchmark.loadDocuments());
+
+        Presearcher presearcher = new TermFilteredPresearcher();
+        Directory directory = new RAMDirectory();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), presearcher, directory)) {
+            try {
+                monitor.update(queries);
+            } catch (UpdateException e) {
+                System.out.println(e.errors.size() + " queries had errors");
+            }
+            monitor.commit();
+
+            try (DirectoryReader queryIndex = DirectoryReader.open(directory)) {
+                QueryTermFilter filter = new QueryTermFilter(queryIndex);
+                for (int batchSize : new int[]{ 1, 100 }) {
+                    report("unfiltered", batchSize, presearcher, documents, QueryTermFilter::new);
+                    report("filtered", batchSize, presearcher, documents, reader -> filter);
+                }
+            }
+        }
+    }
+
+    // builds the term filter to use for a document batch
+    private interface FilterSource {
+        QueryTermFilter get(LeafReader batchReader) throws IOException;
+    }
+
+    // reports the mean number of terms per presearcher query, and the best of several rounds of building them
+    private static void report(String name, int batchSize, Presearcher presearcher, List<InputDocument> documents,
+                               FilterSource filters) throws IOException {
+        long terms = 0;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long elapsed = 0;
+            terms = 0;
+            for (List<InputDocument> docs : Lists.partition(documents, batchSize)) {
+                try (DocumentBatch batch = DocumentBatch.of(docs)) {
+                    LeafReader reader = batch.getIndexReader();
+                    QueryTermFilter filter = filters.get(reader);
+                    long start = System.nanoTime();
+                    Query query = presearcher.buildQuery(reader, filter);
+                    elapsed += System.nanoTime() - start;
+                    terms += countTerms(query);
+                }
+            }
+            best = Math.min(best, elapsed);
+        }
+        int batches = (documents.size() + batchSize - 1) / batchSize;
+        System.out.println(String.format(Locale.ROOT, "%-10s (batch size %3d): %8d terms/query, %6d us/query",
+                name, batchSize, terms / batches, best / 1000 / batches));
+    }
+
+    private static long countTerms(Query query) {
+        if (query instanceof TermInSetQuery)
+            return ((TermInSetQuery) query).getTermData().size();
+        if (query instanceof BooleanQuery) {
+            long count = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                count += countTerms(clause.getQuery());
+            }
+            return count;
+        }
+        return 1;
+    }
+
+}
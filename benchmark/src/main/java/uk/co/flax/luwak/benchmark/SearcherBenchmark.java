@@ -0,0 +1,83 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Iterables;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
+
+/**
+ * Compares the per-query cost of building a new IndexSearcher for each candidate query
+ * against using the searcher cached by the DocumentBatch
+ */
+public class SearcherBenchmark {
+
+    private static final int QUERIES = 20000;
+    private static final int ROUNDS = 30;
+
+    public static void main(String... args) throws IOException {
+
+        List<Query> queries = new ArrayList<>();
+        String[] words = new String[]{ "the", "market", "shares", "report", "sesquipedalian", "president", "oil", "bank" };
+        for (int i = 0; i < QUERIES; i++) {
+            queries.add(new TermQuery(new Term(StandardBenchmark.FIELD, words[i % words.length])));
+        }
+
+        for (int batchSize : new int[]{ 1, 100 }) {
+            List<InputDocument> docs = new ArrayList<>();
+            Iterables.addAll(docs, Iterables.limit(StandardBenchmark.loadDocuments(), batchSize));
+            try (DocumentBatch batch = DocumentBatch.of(docs)) {
+                // report the best of several interleaved rounds, to smooth out JIT and GC noise
+                long uncached = Long.MAX_VALUE;
+                long cached = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    uncached = Math.min(uncached, time(batch, queries, false));
+                    cached = Math.min(cached, time(batch, queries, true));
+                }
+                System.out.println("Batch size " + batchSize + ": new searcher per query " + uncached / QUERIES
+                        + " ns/query, cached searcher " + cached / QUERIES + " ns/query");
+            }
+        }
+    }
+
+    private static long time(DocumentBatch batch, List<Query> queries, boolean cached) throws IOException {
+        long start = System.nanoTime();
+        for (Query query : queries) {
+            IndexSearcher searcher = cached ? batch.getSearcher() : newSearcher(batch);
+            searcher.search(query, new TotalHitCountCollector());
+        }
+        return System.nanoTime() - start;
+    }
+
+    // This is what DocumentBatch.getSearcher() used to do on every call
+    private static IndexSearcher newSearcher(DocumentBatch batch) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(batch.getIndexReader());
+        searcher.setSimilarity(batch.getSearcher().getSimilarity(true));
+        searcher.setQueryCache(null);
+        return searcher;
+    }
+
+}
@@ -0,0 +1,94 @@
+package uk.co.flax.luwak.benchmark;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+/**
+ * Measures presearcher time against the number of segments in the query index
+ */
+public class SegmentBenchmark {
+
+    private static final int COPIES = 5;
+    private static final int ROUNDS = 5;
+
+    public static void main(String... args) throws IOException, UpdateException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        List<MonitorQuery> original = ImmutableList.copyOf(StandardBenchmark.loadQueries());
+        for (int i = 0; i < COPIES; i++) {
+            for (MonitorQuery mq : original) {
+                queries.add(new MonitorQuery(i + "_" + mq.getId(), mq.getQuery()));
+            }
+        }
+        List<InputDocument> documents = ImmutableList.copyOf(StandardBenchmark.loadDocuments());
+
+        // start with many small segments, by flushing often and never merging them automatically
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(1000);
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setMergePolicy(mergePolicy)
+                .setQueryUpdateBufferSize(250);
+        Directory directory = new RAMDirectory();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(StandardBenchmark.FIELD), new TermFilteredPresearcher(), directory, config)) {
+            try {
+                monitor.update(queries);
+            } catch (UpdateException e) {
+                System.out.println(e.errors.size() + " queries had errors");
+            }
+            // run through once to warm up
+            time(monitor, documents, 1);
+
+            for (int maxSegments : new int[]{ Integer.MAX_VALUE, 32, 16, 8, 4, 2, 1 }) {
+                monitor.forceMerge(maxSegments);
+                System.out.println(String.format(Locale.ROOT, "%3d segments: %6d us/doc presearch (batch size 1), %6d us/doc (batch size 100)",
+                        segmentCount(directory), time(monitor, documents, 1), time(monitor, documents, 100)));
+            }
+        }
+    }
+
+    // reports the best of several rounds, in microseconds per document
+    private static long time(Monitor monitor, List<InputDocument> documents, int batchSize) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            Benchmark.timePresearcher(monitor, batchSize, documents);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000 / documents.size();
+    }
+
+    private static int segmentCount(Directory directory) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.leaves().size();
+        }
+    }
+
+}
@@ -32,7 +32,9 @@ import uk.co.flax.luwak.matchers.HighlightingMatcher;
 import uk.co.flax.luwak.matchers.ScoringMatcher;
 import uk.co.flax.luwak.matchers.SimpleMatcher;
 import uk.co.flax.luwak.presearcher.MultipassTermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.MultipassTermsIntersectionPresearcher;
 import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.presearcher.TermsIntersectionPresearcher;
 import uk.co.flax.luwak.presearcher.WildcardNGramPresearcherComponent;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 import uk.co.flax.luwak.termextractor.weights.TermWeightor;
@@ -41,7 +43,9 @@ public class StandardBenchmark {
 
     public static final List<? extends Presearcher> PRESEARCHERS = ImmutableList.of(
             new TermFilteredPresearcher(),
+            new TermsIntersectionPresearcher(),
             new MultipassTermFilteredPresearcher(2),
+            new MultipassTermsIntersectionPresearcher(2),
             new TermFilteredPresearcher(new WildcardNGramPresearcherComponent()),
             new MultipassTermFilteredPresearcher(2, new WildcardNGramPresearcherComponent())
     );
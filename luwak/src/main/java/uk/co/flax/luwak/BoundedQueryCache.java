@@ -0,0 +1,137 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A {@link QueryCache} holding a limited number of entries, discarding the least
+ * recently used entries when it is full
+ *
+ * The cache is split into segments by hash, each with its own lock and LRU order, so
+ * that concurrent match runs do not all contend on a single lock.  As a result, the
+ * entry discarded is the least recently used in its segment, rather than in the whole
+ * cache.
+ *
+ * Discarded queries are parsed again from the query index when they are next selected,
+ * so this cache can only be used by Monitors that store their queries, see
+ * {@link QueryIndexConfiguration#storeQueries(boolean)}.  It is normally used with
+ * {@link QueryIndexConfiguration#setLazyQueryParsing(boolean)}.
+ */
+public class BoundedQueryCache implements QueryCache {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    /**
+     * Create a new BoundedQueryCache
+     * @param maxSize the maximum number of entries to hold
+     */
+    public BoundedQueryCache(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Create a new BoundedQueryCache
+     * @param maxSize the maximum number of entries to hold
+     * @param segments the number of independently locked segments to split the cache into
+     */
+    public BoundedQueryCache(int maxSize, int segments) {
+        if (maxSize < segments)
+            throw new IllegalArgumentException("Cache size must be at least the number of segments (" + segments + ")");
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            // spread any remainder over the first segments
+            this.segments[i] = new Segment(maxSize / segments + (i < maxSize % segments ? 1 : 0));
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of entries to hold
+     * @return a factory for BoundedQueryCaches, for use with {@link QueryIndexConfiguration#setQueryCacheFactory(Supplier)}
+     */
+    public static Supplier<QueryCache> factory(int maxSize) {
+        return () -> new BoundedQueryCache(maxSize);
+    }
+
+    private Segment segment(BytesRef hash) {
+        int h = hash.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public QueryCacheEntry get(BytesRef hash) {
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            return segment.get(hash);
+        }
+    }
+
+    @Override
+    public void put(QueryCacheEntry entry) {
+        Segment segment = segment(entry.hash);
+        synchronized (segment) {
+            segment.put(entry.hash, entry);
+        }
+    }
+
+    @Override
+    public void remove(BytesRef hash) {
+        Segment segment = segment(hash);
+        synchronized (segment) {
+            segment.remove(hash);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isBounded() {
+        return true;
+    }
+
+    private static class Segment extends LinkedHashMap<BytesRef, QueryCacheEntry> {
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BytesRef, QueryCacheEntry> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2016 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Thrown by {@link Monitor#bulkLoad(java.util.stream.Stream, int)} if the load fails before
+ * all of the queries have been read from the stream.
+ *
+ * The queries loaded before the failure are committed, replacing any existing queries with
+ * the same ids.  Queries that were not loaded keep any version already in the Monitor.
+ */
+public class BulkLoadException extends IOException {
+
+    private static final long serialVersionUID = 5376021741659833216L;
+
+    /**
+     * The ids of the queries that may have been loaded before the failure.  If the failure was
+     * raised while adding a batch, some queries in that batch may have kept their previous version
+     */
+    public final Set<String> loadedIds;
+
+    /**
+     * The number of queries loaded before the failure, and the queries that could not be added
+     */
+    public final Monitor.BulkLoadResult result;
+
+    public BulkLoadException(Throwable cause, Set<String> loadedIds, Monitor.BulkLoadResult result) {
+        super("Bulk load failed after loading " + loadedIds.size() + " queries: " + cause.getMessage(), cause);
+        this.loadedIds = loadedIds;
+        this.result = result;
+    }
+}
@@ -42,6 +42,9 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
 
     protected final SlowLog slowlog = new SlowLog();
 
+    private QueryStatistics queryStatistics = null;
+    private boolean currentQueryMatched = false;
+
     private static class MatchHolder<T> {
         Map<String, T> matches = new HashMap<>();
     }
@@ -65,7 +68,18 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
      */
     public final void matchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
         presearcherHits.add(queryId);
-        doMatchQuery(queryId, new ForceNoBulkScoringQuery(matchQuery), metadata);
+        if (queryStatistics == null) {
+            doMatchQuery(queryId, new ForceNoBulkScoringQuery(matchQuery), metadata);
+            return;
+        }
+        currentQueryMatched = false;
+        long t = System.nanoTime();
+        try {
+            doMatchQuery(queryId, new ForceNoBulkScoringQuery(matchQuery), metadata);
+        }
+        finally {
+            queryStatistics.record(queryId, System.nanoTime() - t, currentQueryMatched);
+        }
     }
 
     /**
@@ -79,6 +93,7 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
     protected abstract void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException;
 
     private void addMatch(String queryId, String docId, T match) {
+        currentQueryMatched = true;
         MatchHolder<T> docMatches = matches.computeIfAbsent(docId, k -> new MatchHolder<>());
         docMatches.matches.compute(queryId, (key, oldValue) -> {
             if (oldValue != null) {
@@ -124,6 +139,15 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
         this.searchTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - searchTime, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Called by the Monitor if the match run fails before {@link #finish(long, int)} is called
+     *
+     * Matchers that run queries on other threads should override this to stop them.
+     */
+    public void abort() {
+
+    }
+
     /*
      * Called by the Monitor to set the {@link SlowLog} limit
      */
@@ -131,6 +155,19 @@ public abstract class CandidateMatcher<T extends QueryMatch> {
         this.slowlog.setLimit(t);
     }
 
+    /**
+     * Called by the Monitor to set a {@link QueryStatistics} registry, which will record
+     * the time taken by each query run by this matcher.
+     *
+     * Matchers that delegate to other CandidateMatchers should override this to pass the
+     * registry on to their delegates.
+     *
+     * @param queryStatistics the registry
+     */
+    public void setQueryStatistics(QueryStatistics queryStatistics) {
+        this.queryStatistics = queryStatistics;
+    }
+
     /**
      * Returns the QueryMatch for the given document and query, or null if it did not match
      * @param docId the document id
@@ -0,0 +1,51 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The default {@link QueryCache}, backed by a ConcurrentHashMap
+ */
+public class ConcurrentQueryCache implements QueryCache {
+
+    private final ConcurrentMap<BytesRef, QueryCacheEntry> queries = new ConcurrentHashMap<>();
+
+    @Override
+    public QueryCacheEntry get(BytesRef hash) {
+        return queries.get(hash);
+    }
+
+    @Override
+    public void put(QueryCacheEntry entry) {
+        queries.put(entry.hash, entry);
+    }
+
+    @Override
+    public void remove(BytesRef hash) {
+        queries.remove(hash);
+    }
+
+    @Override
+    public int size() {
+        return queries.size();
+    }
+
+}
@@ -41,6 +41,10 @@ import uk.co.flax.luwak.util.CollectionUtils;
  * </pre>
  *
  * The Monitor's MonitorQueryParser must be thread-safe for this to work correctly.
+ *
+ * Each worker commits its queries separately, so loading is largely serialized on the
+ * query index.  To load a large set of queries in one go, {@link Monitor#bulkLoad(java.util.stream.Stream)}
+ * is considerably faster.
  */
 public class ConcurrentQueryLoader implements Closeable {
 
@@ -19,6 +19,7 @@ package uk.co.flax.luwak;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Supplier;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.memory.MemoryIndex;
@@ -28,12 +29,14 @@ import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.IOUtils;
+import uk.co.flax.luwak.util.BatchMemoryIndex;
 
 /**
  * A collection of InputDocuments to be matched.
  *
  * A batch containing a single InputDocument uses a lucene MemoryIndex for indexing,
- * otherwise a RAMDirectory is used to hold the documents.
+ * otherwise a {@link BatchMemoryIndex} is used to hold the documents.  Batches containing
+ * documents with doc values or point fields fall back to a RAMDirectory.
  *
  * To build a batch, either use one of the static factory methods, or a Builder object:
  * <pre>
@@ -53,6 +56,8 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     /** A list of {@link InputDocument} objects to match */
     protected final List<InputDocument> documents = new ArrayList<>();
 
+    private volatile IndexSearcher searcher;
+
     /**
      * Create a DocumentBatch containing a single InputDocument
      * @param doc the document to add
@@ -87,6 +92,7 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
 
         private Similarity similarity = new BM25Similarity();
         private List<InputDocument> documents = new ArrayList<>();
+        private boolean reuseIndexBuffers = false;
 
         /** Add an InputDocument
          * @param doc Single document to add
@@ -115,6 +121,21 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             return this;
         }
 
+        /** Build the batch using in-memory index buffers held by the current thread
+         *
+         * The buffers are returned to the thread when the batch is closed, and reused by the
+         * next batch built on that thread, which saves allocating a new in-memory index for
+         * every batch.  Batches built in this way must be closed, and their readers and
+         * searchers must not be used after the batch has been closed.
+         *
+         * @param reuseIndexBuffers whether or not to reuse per-thread index buffers
+         * @return the current builder object
+         */
+        public Builder reuseIndexBuffers(boolean reuseIndexBuffers) {
+            this.reuseIndexBuffers = reuseIndexBuffers;
+            return this;
+        }
+
         /** Create the DocumentBatch
          * @return the newly created DocumentBatch
          */
@@ -122,12 +143,33 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
             if (documents.size() == 0)
                 throw new IllegalStateException("Cannot build DocumentBatch with zero documents");
             if (documents.size() == 1)
-                return new SingletonDocumentBatch(documents, similarity);
-            return new MultiDocumentBatch(documents, similarity);
+                return new SingletonDocumentBatch(documents, similarity, reuseIndexBuffers);
+            for (InputDocument doc : documents) {
+                if (BatchMemoryIndex.supports(doc.getDocument()) == false)
+                    return new DirectoryDocumentBatch(documents, similarity);
+            }
+            return new MultiDocumentBatch(documents, similarity, reuseIndexBuffers);
         }
 
     }
 
+    // In-memory indexes held by each thread for reuse, see Builder#reuseIndexBuffers
+    private static final ThreadLocal<MemoryIndex> memoryIndexes = new ThreadLocal<>();
+    private static final ThreadLocal<BatchMemoryIndex> batchIndexes = new ThreadLocal<>();
+
+    private static <I> I takeIndex(ThreadLocal<I> pool, Supplier<I> factory) {
+        I index = pool.get();
+        if (index == null)
+            return factory.get();
+        pool.remove();
+        return index;
+    }
+
+    private static <I> void releaseIndex(ThreadLocal<I> pool, I index) {
+        if (pool.get() == null)
+            pool.set(index);
+    }
+
     /**
      * Create a new DocumentBatch
      * @param documents the documents to match
@@ -152,14 +194,35 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     public abstract String resolveDocId(int docId);
 
     /**
+     * Get an {@link IndexSearcher} over the documents in this batch
+     *
+     * The searcher is built on first use and then shared by all callers, including
+     * matchers running on other threads, so it should not be modified.
+     *
      * @return an {@link IndexSearcher} over the documents in this batch
      * @throws IOException on error
      */
     public IndexSearcher getSearcher() throws IOException {
-        IndexSearcher searcher = new IndexSearcher(getIndexReader());
-        searcher.setSimilarity(similarity);
-        searcher.setQueryCache(null);
-        return searcher;
+        IndexSearcher s = searcher;
+        if (s == null) {
+            synchronized (this) {
+                s = searcher;
+                if (s == null) {
+                    s = new IndexSearcher(getIndexReader());
+                    s.setSimilarity(similarity);
+                    s.setQueryCache(null);
+                    searcher = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return the {@link Similarity} used for scoring this batch
+     */
+    public Similarity getSimilarity() {
+        return similarity;
     }
 
     @Override
@@ -177,11 +240,64 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     // Implementation of DocumentBatch for collections of documents
     private static class MultiDocumentBatch extends DocumentBatch {
 
+        private final BatchMemoryIndex index;
+        private final LeafReader reader;
+        private final String[] docIds;
+        private final boolean reuseIndex;
+        private boolean closed = false;
+
+        MultiDocumentBatch(List<InputDocument> docs, Similarity similarity, boolean reuseIndex) {
+            super(docs, similarity);
+            assert docs.size() > 1;
+            this.reuseIndex = reuseIndex;
+            this.index = reuseIndex ? takeIndex(batchIndexes, () -> new BatchMemoryIndex(similarity))
+                                    : new BatchMemoryIndex(similarity);
+            this.index.setSimilarity(similarity);
+            this.docIds = new String[docs.size()];
+            try {
+                for (InputDocument doc : docs) {
+                    docIds[index.addDocument(doc.getDocument(), doc.getAnalyzers())] = doc.getId();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);  // In-memory analysis, so should never happen...
+            }
+            this.reader = index.createReader();
+        }
+
+        @Override
+        public LeafReader getIndexReader() throws IOException {
+            return reader;
+        }
+
+        @Override
+        public String resolveDocId(int docId) {
+            return docIds[docId];
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            reader.close();
+            if (reuseIndex) {
+                index.reset();
+                releaseIndex(batchIndexes, index);
+            }
+        }
+
+    }
+
+    // Implementation of DocumentBatch for collections of documents that cannot be held
+    // in a BatchMemoryIndex
+    private static class DirectoryDocumentBatch extends DocumentBatch {
+
         private final Directory directory = new RAMDirectory();
         private LeafReader reader = null;
         private String[] docIds = null;
 
-        MultiDocumentBatch(List<InputDocument> docs, Similarity similarity) {
+        DirectoryDocumentBatch(List<InputDocument> docs, Similarity similarity) {
             super(docs, similarity);
             assert docs.size() > 1;
             IndexWriterConfig iwc = new IndexWriterConfig(docs.get(0).getAnalyzers()).setSimilarity(similarity);
@@ -234,12 +350,17 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
     // better performing than RAMDirectory for this case
     private static class SingletonDocumentBatch extends DocumentBatch {
 
-        private final MemoryIndex memoryindex = new MemoryIndex(true, true);
+        private final MemoryIndex memoryindex;
         private final LeafReader reader;
+        private final boolean reuseIndex;
+        private boolean closed = false;
 
-        private SingletonDocumentBatch(Collection<InputDocument> documents, Similarity similarity) {
+        private SingletonDocumentBatch(Collection<InputDocument> documents, Similarity similarity, boolean reuseIndex) {
             super(documents, similarity);
             assert documents.size() == 1;
+            this.reuseIndex = reuseIndex;
+            this.memoryindex = reuseIndex ? takeIndex(memoryIndexes, () -> new MemoryIndex(true, true))
+                                          : new MemoryIndex(true, true);
             memoryindex.setSimilarity(similarity);
             for (InputDocument doc : documents) {
                 for (IndexableField field : doc.getDocument()) {
@@ -263,7 +384,14 @@ public abstract class DocumentBatch implements Closeable, Iterable<InputDocument
 
         @Override
         public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
             reader.close();
+            if (reuseIndex) {
+                memoryindex.reset();
+                releaseIndex(memoryIndexes, memoryindex);
+            }
         }
     }
 
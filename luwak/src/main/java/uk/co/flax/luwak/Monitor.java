@@ -2,11 +2,19 @@ package uk.co.flax.luwak;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
@@ -18,7 +26,10 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
 import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.TermsIntersectionQuery;
+import uk.co.flax.luwak.termextractor.weights.DocumentTermStatistics;
 import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
 
 /*
@@ -55,6 +66,13 @@ public class Monitor implements Closeable {
 
     private final long commitBatchSize;
     private final boolean storeQueries;
+    private final boolean skipUnchangedQueries;
+    private final boolean reuseIndexBuffers;
+    private final ExecutorService presearcherExecutor;
+    private final QueryStatistics queryStatistics;
+    private final DocumentTermStatistics termStatistics;
+    private final int documentSampleInterval;
+    private final AtomicLong matchedBatches = new AtomicLong();
 
     public static final class FIELDS {
         public static final String id = "_id";
@@ -63,7 +81,7 @@ public class Monitor implements Closeable {
         public static final String mq = "_mq";
     }
 
-    private final ScheduledExecutorService purgeExecutor;
+    private final ScheduledExecutorService backgroundExecutor;
 
     private long lastPurged = -1;
 
@@ -86,21 +104,101 @@ public class Monitor implements Closeable {
         this.presearcher = presearcher;
         this.decomposer = configuration.getQueryDecomposer();
         
-        this.queryIndex = new QueryIndex(indexWriter);
+        if (configuration.lazyQueryParsing() && configuration.storeQueries() == false)
+            throw new IllegalArgumentException("Lazy query parsing requires queries to be stored");
+
+        if (configuration.queryCacheSnapshots() && configuration.storeQueries() == false)
+            throw new IllegalArgumentException("Query cache snapshots require queries to be stored");
+
+        long hotQueryReindexInterval = configuration.getHotQueryReindexInterval();
+        if (hotQueryReindexInterval > 0 && (configuration.getDocumentTermStatistics() == null || configuration.storeQueries() == false))
+            throw new IllegalArgumentException("Re-indexing hot queries requires document term statistics, and queries to be stored");
+
+        this.queryIndex = new QueryIndex(indexWriter, configuration.getQueryCacheFactory(),
+                configuration.storeQueries() ? this::loadQuery : null, configuration.getTermFilterBitsPerTerm());
 
         this.storeQueries = configuration.storeQueries();
-        prepareQueryCache(this.storeQueries);
+        this.skipUnchangedQueries = configuration.skipUnchangedQueries();
+        this.reuseIndexBuffers = configuration.reuseIndexBuffers();
+        this.presearcherExecutor = configuration.getPresearcherExecutor();
+        this.queryStatistics = configuration.collectQueryStatistics() ? new QueryStatistics() : null;
+        if (queryStatistics != null) {
+            queryIndex.addRefreshListener(new ReferenceManager.RefreshListener() {
+                @Override
+                public void beforeRefresh() {}
 
-        long purgeFrequency = configuration.getPurgeFrequency();
-        this.purgeExecutor = Executors.newSingleThreadScheduledExecutor();
-        this.purgeExecutor.scheduleAtFixedRate(() -> {
+                @Override
+                public void afterRefresh(boolean didRefresh) {
+                    if (didRefresh)
+                        queryStatistics.afterRefresh();
+                }
+            });
+        }
+        this.termStatistics = configuration.getDocumentTermStatistics();
+        this.documentSampleInterval = configuration.getDocumentSampleInterval();
+        boolean restored = false;
+        if (configuration.queryCacheSnapshots()) {
+            restored = queryIndex.restoreSnapshot();
+            queryIndex.enableSnapshots();
+        }
+        if (configuration.lazyQueryParsing() == false && restored == false) {
             try {
-                purgeCache();
+                prepareQueryCache(this.storeQueries, configuration.getWarmupExecutor(), configuration.getWarmupErrorHandler());
             }
-            catch (Throwable e) {
-                afterPurgeError(e);
+            catch (IOException | RuntimeException e) {
+                // release the index lock, so that the caller can try again
+                queryIndex.closeWhileHandlingException();
+                throw e;
             }
-        }, purgeFrequency, purgeFrequency, configuration.getPurgeFrequencyUnits());
+        }
+
+        long commitInterval = configuration.getCommitInterval();
+        long refreshInterval = configuration.getRefreshInterval();
+        queryIndex.setUpdatePolicy(commitInterval <= 0, commitInterval <= 0 || refreshInterval <= 0);
+
+        long purgeFrequency = configuration.getPurgeFrequency();
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+        if (commitInterval > 0) {
+            this.backgroundExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    queryIndex.commitNow();
+                }
+                catch (Throwable e) {
+                    afterCommitError(e);
+                }
+            }, commitInterval, commitInterval, configuration.getCommitIntervalUnits());
+        }
+        if (commitInterval > 0 && refreshInterval > 0) {
+            this.backgroundExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    queryIndex.refreshNow();
+                }
+                catch (Throwable e) {
+                    afterCommitError(e);
+                }
+            }, refreshInterval, refreshInterval, configuration.getRefreshIntervalUnits());
+        }
+        if (purgeFrequency > 0) {
+            this.backgroundExecutor.scheduleAtFixedRate(() -> {
+                try {
+                    purgeCache();
+                }
+                catch (Throwable e) {
+                    afterPurgeError(e);
+                }
+            }, purgeFrequency, purgeFrequency, configuration.getPurgeFrequencyUnits());
+        }
+        if (hotQueryReindexInterval > 0) {
+            double maxCandidateRate = configuration.getHotQueryCandidateRate();
+            this.backgroundExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    reindexHotQueries(maxCandidateRate);
+                }
+                catch (Throwable e) {
+                    afterCommitError(e);
+                }
+            }, hotQueryReindexInterval, hotQueryReindexInterval, configuration.getHotQueryReindexIntervalUnits());
+        }
 
         this.commitBatchSize = configuration.getQueryUpdateBufferSize();
     }
@@ -123,7 +221,7 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public Monitor(MonitorQueryParser queryParser, Presearcher presearcher, QueryIndexConfiguration config) throws IOException {
-        this(queryParser, presearcher, defaultIndexWriter(new RAMDirectory()), config);
+        this(queryParser, presearcher, defaultIndexWriter(new RAMDirectory(), config), config);
     }
 
     /**
@@ -146,7 +244,7 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public Monitor(MonitorQueryParser queryParser, Presearcher presearcher, Directory directory, QueryIndexConfiguration config) throws IOException {
-        this(queryParser, presearcher, defaultIndexWriter(directory), config);
+        this(queryParser, presearcher, defaultIndexWriter(directory, config), config);
     }
 
     /**
@@ -162,14 +260,20 @@ public class Monitor implements Closeable {
 
     // package-private for testing
     static IndexWriter defaultIndexWriter(Directory directory) throws IOException {
+        return defaultIndexWriter(directory, new QueryIndexConfiguration());
+    }
+
+    static IndexWriter defaultIndexWriter(Directory directory, QueryIndexConfiguration configuration) throws IOException {
+        return new IndexWriter(directory, defaultIndexWriterConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND, configuration));
+    }
+
+    static IndexWriterConfig defaultIndexWriterConfig(IndexWriterConfig.OpenMode openMode, QueryIndexConfiguration configuration) {
 
         IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer());
-        TieredMergePolicy mergePolicy = new TieredMergePolicy();
-        mergePolicy.setSegmentsPerTier(4);
-        iwc.setMergePolicy(mergePolicy);
-        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        iwc.setMergePolicy(configuration.getMergePolicy());
+        iwc.setOpenMode(openMode);
 
-        return new IndexWriter(directory, iwc);
+        return iwc;
 
     }
 
@@ -187,7 +291,8 @@ public class Monitor implements Closeable {
      * @return Statistics for the internal query index and cache
      */
     public QueryCacheStats getQueryCacheStats() {
-        return new QueryCacheStats(queryIndex.numDocs(), queryIndex.cacheSize(), lastPurged);
+        return new QueryCacheStats(queryIndex.numDocs(), queryIndex.cacheSize(), lastPurged,
+                queryIndex.cacheHits(), queryIndex.cacheMisses());
     }
 
     /**
@@ -204,14 +309,69 @@ public class Monitor implements Closeable {
         /** Time the query cache was last purged */
         public final long lastPurged;
 
+        /** Number of presearcher-selected queries found in the query cache */
+        public final long cacheHits;
+
+        /** Number of presearcher-selected queries that had to be parsed because they were not in the query cache */
+        public final long cacheMisses;
+
         public QueryCacheStats(int queries, int cachedQueries, long lastPurged) {
+            this(queries, cachedQueries, lastPurged, 0, 0);
+        }
+
+        public QueryCacheStats(int queries, int cachedQueries, long lastPurged, long cacheHits, long cacheMisses) {
             this.queries = queries;
             this.cachedQueries = cachedQueries;
             this.lastPurged = lastPurged;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
         }
     }
 
-    private void prepareQueryCache(boolean storeQueries) throws IOException {
+    /**
+     * The outcome of a call to {@link #bulkLoad(Stream, int)} or {@link QueryIndexBuilder#build(Stream, Directory)}
+     */
+    public static class BulkLoadResult {
+
+        /** Number of queries loaded into the Monitor, including any unchanged queries */
+        public final long queries;
+
+        /** Number of queries that were already indexed unchanged, and so were skipped */
+        public final long unchanged;
+
+        /** Queries that could not be added */
+        public final List<QueryError> errors;
+
+        /** Time taken to load and commit the queries, in nanoseconds */
+        public final long elapsedNanos;
+
+        public BulkLoadResult(long queries, List<QueryError> errors, long elapsedNanos) {
+            this(queries, 0, errors, elapsedNanos);
+        }
+
+        public BulkLoadResult(long queries, long unchanged, List<QueryError> errors, long elapsedNanos) {
+            this.queries = queries;
+            this.unchanged = unchanged;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of queries loaded per second
+         */
+        public double queriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : queries * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Loaded %d queries (%d unchanged) in %d ms (%.0f queries/sec), %d errors",
+                    queries, unchanged, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), queriesPerSecond(), errors.size());
+        }
+    }
+
+    private void prepareQueryCache(boolean storeQueries, ExecutorService executor,
+                                   Consumer<QueryError> errorHandler) throws IOException {
 
         if (storeQueries == false) {
             // we're not storing the queries, so ensure that the queryindex is empty
@@ -221,36 +381,57 @@ public class Monitor implements Closeable {
         }
 
         // load any queries that have already been added to the queryindex
-        final List<Exception> parseErrors = new LinkedList<>();
-        final Set<BytesRef> seenHashes = new HashSet<>();
-        final Set<String> seenIds = new HashSet<>();
-
-        queryIndex.purgeCache(newCache -> queryIndex.scan((id, query, dataValues) -> {
-            if (seenIds.contains(id)) {
-                return;
-            }
-            seenIds.add(id);
+        final List<QueryError> parseErrors = Collections.synchronizedList(new ArrayList<>());
+        final Consumer<QueryError> errors = errorHandler == null ? parseErrors::add : errorHandler;
+
+        // Every MonitorQuery is decomposed into documents with hashes <querydigest>_0 to _N, and
+        // identical MonitorQueries share a digest.  So we only need to parse each distinct digest
+        // seen on a _0 document.
+        final BytesRefHash seenDigests = new BytesRefHash();
+
+        queryIndex.purgeCache(newCache -> {
+            QueryIndex.QueryCollector collector = (id, query, dataValues) -> {
+                BytesRef hash = dataValues.hash.binaryValue();
+                if (isFirstDisjunct(hash) == false)
+                    return;
+                synchronized (seenDigests) {
+                    if (seenDigests.add(new BytesRef(hash.bytes, hash.offset, DIGEST_LENGTH)) < 0)
+                        return;
+                }
+                MonitorQuery mq = MonitorQuery.deserialize(dataValues.mq.binaryValue());
+                try {
+                    for (QueryCacheEntry ce : decomposeQuery(mq)) {
+                        newCache.put(ce);
+                    }
+                } catch (Exception e) {
+                    errors.accept(new QueryError(mq, e));
+                }
+            };
+            if (executor == null)
+                queryIndex.scan(collector);
+            else
+                queryIndex.scanConcurrently(collector, executor);
+        });
+        if (parseErrors.size() != 0) {
+            IOException e = new IOException("Error populating cache - " + parseErrors.size()
+                    + " queries couldn't be parsed, first error: " + parseErrors.get(0));
+            e.initCause(parseErrors.get(0).error);
+            throw e;
+        }
+    }
 
-            dataValues.advance(dataValues.doc);
-            BytesRef serializedMQ = dataValues.mq.binaryValue();
-            MonitorQuery mq = MonitorQuery.deserialize(serializedMQ);
+    private static final int DIGEST_LENGTH = 16;
+    private static final BytesRef FIRST_DISJUNCT_SUFFIX = new BytesRef("_0");
 
-            BytesRef hash = mq.hash();
-            if (seenHashes.contains(hash)) {
-                return;
-            }
-            seenHashes.add(hash);
+    private static boolean isFirstDisjunct(BytesRef hash) {
+        return hash.length == DIGEST_LENGTH + FIRST_DISJUNCT_SUFFIX.length
+                && FIRST_DISJUNCT_SUFFIX.bytesEquals(new BytesRef(hash.bytes, hash.offset + DIGEST_LENGTH, FIRST_DISJUNCT_SUFFIX.length));
+    }
 
-            try {
-                for (QueryCacheEntry ce : decomposeQuery(mq)) {
-                    newCache.put(ce.hash, ce);
-                }
-            } catch (Exception e) {
-                parseErrors.add(e);
-            }
-        }));
-        if (parseErrors.size() != 0)
-            throw new IOException("Error populating cache - some queries couldn't be parsed:" + parseErrors);
+    // Parses a stored query on a query cache miss
+    private Iterable<QueryCacheEntry> loadQuery(QueryIndex.DataValues dataValues) throws Exception {
+        MonitorQuery mq = MonitorQuery.deserialize(dataValues.mq.binaryValue());
+        return decomposeQuery(mq);
     }
 
     private void commit(List<Indexable> updates) throws IOException {
@@ -271,6 +452,12 @@ public class Monitor implements Closeable {
         }
     }
 
+    private void afterCommitError(Throwable t) {
+        for (QueryIndexUpdateListener listener : listeners) {
+            listener.onCommitError(t);
+        }
+    }
+
     private void beforeCommit(List<Indexable> updates) {
         if (updates == null) {
             for (QueryIndexUpdateListener listener : listeners) {
@@ -278,6 +465,11 @@ public class Monitor implements Closeable {
             }
         }
         else {
+            if (queryStatistics != null) {
+                for (Indexable update : updates) {
+                    queryStatistics.add(update.id);
+                }
+            }
             for (QueryIndexUpdateListener listener : listeners) {
                 listener.beforeUpdate(updates);
             }
@@ -300,16 +492,19 @@ public class Monitor implements Closeable {
     /**
      * Remove unused queries from the query cache.
      *
-     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     * Deleted queries are removed from the query cache when the deletion is committed, so this
+     * is only needed to discard queries that are no longer being used from a lazily-populated
+     * cache.  It may be called from a background thread at a rate set by
+     * {@link QueryIndexConfiguration#setPurgeFrequency(long, java.util.concurrent.TimeUnit)}.
      *
      * @throws IOException on IO errors
      */
     public void purgeCache() throws IOException {
         queryIndex.purgeCache(newCache -> queryIndex.scan((id, query, dataValues) -> {
             if (query != null)
-                newCache.put(BytesRef.deepCopyOf(query.hash), query);
+                newCache.put(query);
         }));
-        
+
         lastPurged = System.nanoTime();
         afterPurge();
     }
@@ -328,10 +523,117 @@ public class Monitor implements Closeable {
         this.slowLogLimit = limit;
     }
 
+    /**
+     * Get the execution statistics recorded for this Monitor's queries
+     * @return the QueryStatistics registry, or {@code null} if statistics are not being collected
+     *
+     * @see QueryIndexConfiguration#setCollectQueryStatistics(boolean)
+     */
+    public QueryStatistics getQueryStatistics() {
+        return queryStatistics;
+    }
+
+    /**
+     * List the query index terms whose queries have spent the most time running without
+     * producing a match
+     *
+     * The presearcher selects a query whenever a document contains one of the terms the
+     * query is indexed under, so terms with many wasted runs are good candidates for
+     * stopwords, or for a different {@link uk.co.flax.luwak.termextractor.weights.TermWeightor}.
+     * Each term's figures are the sums of the {@link QueryStatistics} of its queries, so a
+     * query indexed under several terms contributes to each of them.  The whole query index
+     * is walked, so this is intended for occasional reporting rather than routine use.
+     *
+     * @param n the maximum number of terms to return
+     * @return statistics for the terms with the most wasted time, most wasteful first
+     * @throws IOException on IO errors
+     * @throws IllegalStateException if query statistics are not being collected
+     *
+     * @see QueryStatistics#getMostWastefulQueries(int)
+     */
+    public List<QueryStatistics.TermStats> getMostWastefulTerms(int n) throws IOException {
+        if (queryStatistics == null)
+            throw new IllegalStateException("Cannot report term statistics as query statistics are not collected");
+
+        Map<Term, long[]> totals = new HashMap<>();
+        queryIndex.visitTerms(INTERNAL_FIELDS, (term, queryIds) -> {
+            long[] total = null;
+            for (String id : queryIds) {
+                QueryStatistics.Stats stats = queryStatistics.get(id);
+                if (stats == null)
+                    continue;
+                if (total == null)
+                    total = totals.computeIfAbsent(new Term(term.field(), BytesRef.deepCopyOf(term.bytes())), t -> new long[4]);
+                total[0]++;
+                total[1] += stats.getCalls();
+                total[2] += stats.getMatches();
+                total[3] += stats.getWastedTime();
+            }
+        });
+
+        List<QueryStatistics.TermStats> termStats = new ArrayList<>();
+        for (Map.Entry<Term, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            if (total[3] > 0)
+                termStats.add(new QueryStatistics.TermStats(entry.getKey(), (int) total[0], total[1], total[2], total[3]));
+        }
+        termStats.sort((t1, t2) -> Long.compare(t2.wastedTime, t1.wastedTime));
+        return termStats.size() > n ? new ArrayList<>(termStats.subList(0, n)) : termStats;
+    }
+
     @Override
     public void close() throws IOException {
-        purgeExecutor.shutdown();
-        queryIndex.closeWhileHandlingException();
+        backgroundExecutor.shutdown();
+        try {
+            queryIndex.commitNow();
+        }
+        finally {
+            queryIndex.closeWhileHandlingException();
+        }
+    }
+
+    /**
+     * Merge the query index down to at most a given number of segments
+     *
+     * Presearcher searches look up document terms in every segment of the query index, so
+     * a query index with fewer segments is faster to search.  Merging is expensive, and
+     * this is intended to be called after a large load of queries, for deployments that
+     * rarely update their queries afterwards.  Any pending changes are committed.  The query
+     * index's MergePolicy decides which segments to merge, and may ignore this request.
+     *
+     * @param maxSegments the maximum number of segments to leave in the query index
+     * @throws IOException on IO errors
+     *
+     * @see QueryIndexConfiguration#setMergePolicy(org.apache.lucene.index.MergePolicy)
+     */
+    public void forceMerge(int maxSegments) throws IOException {
+        queryIndex.forceMerge(maxSegments);
+    }
+
+    /**
+     * Durably commit all updates and deletions made to the Monitor, and make them visible to
+     * subsequent matches
+     *
+     * This is only needed if the Monitor is configured to commit in the background, see
+     * {@link QueryIndexConfiguration#setCommitInterval(long, java.util.concurrent.TimeUnit)}
+     *
+     * @throws IOException on IO errors
+     */
+    public void commit() throws IOException {
+        queryIndex.commitNow();
+    }
+
+    /**
+     * Returns a future that completes when all updates and deletions made so far have
+     * been durably committed
+     *
+     * If the Monitor commits on every update, the future is already complete.  Otherwise
+     * it completes on the next background commit, or exceptionally if that commit fails.
+     *
+     * @return a future that completes when all changes so far are committed
+     */
+    public CompletableFuture<Void> awaitCommit() {
+        return queryIndex.awaitCommit();
     }
 
     /**
@@ -344,8 +646,37 @@ public class Monitor implements Closeable {
 
         List<QueryError> errors = new ArrayList<>();
         List<Indexable> updates = new ArrayList<>();
+        // ids already added in an earlier batch must be indexed again, so that the last query wins
+        Set<String> added = skipUnchangedQueries ? new HashSet<>() : null;
 
+        // unchanged queries are looked up in batches
+        int batchSize = skipUnchangedQueries ? UNCHANGED_LOOKUP_BATCH_SIZE : 1;
+        List<MonitorQuery> batch = new ArrayList<>(batchSize);
         for (MonitorQuery query : queries) {
+            batch.add(query);
+            if (batch.size() == batchSize)
+                addUpdates(batch, updates, errors, added);
+        }
+        addUpdates(batch, updates, errors, added);
+        commit(updates);
+
+        if (errors.isEmpty() == false)
+            throw new UpdateException(errors);
+    }
+
+    private static final int UNCHANGED_LOOKUP_BATCH_SIZE = 1000;
+
+    // Builds the documents for a batch of queries, committing whenever the buffer is full.  If
+    // added is not null, queries that are already indexed unchanged are skipped, unless an
+    // earlier batch has added their id
+    private void addUpdates(List<MonitorQuery> batch, List<Indexable> updates, List<QueryError> errors,
+                            Set<String> added) throws IOException {
+        Set<String> unchanged = added != null ? findUnchanged(batch) : Collections.emptySet();
+        for (MonitorQuery query : batch) {
+            if (unchanged.contains(query.getId()) && added.contains(query.getId()) == false)
+                continue;
+            if (added != null)
+                added.add(query.getId());
             try {
                 for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
                     updates.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
@@ -358,13 +689,30 @@ public class Monitor implements Closeable {
                 updates.clear();
             }
         }
-        commit(updates);
+        batch.clear();
+    }
 
-        if (errors.isEmpty() == false)
-            throw new UpdateException(errors);
+    // Returns the ids of queries in the batch that are already indexed unchanged
+    private Set<String> findUnchanged(List<MonitorQuery> batch) throws IOException {
+        if (batch.isEmpty())
+            return Collections.emptySet();
+        Map<String, BytesRef> hashes = new HashMap<>();
+        Set<String> repeated = new HashSet<>();
+        for (MonitorQuery query : batch) {
+            if (hashes.put(query.getId(), query.hash()) != null)
+                repeated.add(query.getId());
+        }
+        // if an id appears more than once, the last query must replace whatever is indexed
+        hashes.keySet().removeAll(repeated);
+        return queryIndex.findUnchanged(hashes);
     }
 
     private Iterable<QueryCacheEntry> decomposeQuery(MonitorQuery query) throws Exception {
+        return decomposeQuery(queryParser, decomposer, query);
+    }
+
+    static List<QueryCacheEntry> decomposeQuery(MonitorQueryParser queryParser, QueryDecomposer decomposer,
+                                                MonitorQuery query) throws Exception {
 
         Query q = queryParser.parse(query.getQuery(), query.getMetadata());
 
@@ -392,16 +740,195 @@ public class Monitor implements Closeable {
         update(Arrays.asList(queries));
     }
 
+    private static final int BULK_LOAD_BATCH_SIZE = 500;
+
+    /**
+     * Load a large number of queries into the Monitor, using one thread per available processor
+     * @param queries the MonitorQueries to add
+     * @return the number of queries loaded, any errors, and the time taken
+     * @throws IOException on IO errors
+     *
+     * @see #bulkLoad(Stream, int)
+     */
+    public BulkLoadResult bulkLoad(Stream<MonitorQuery> queries) throws IOException {
+        return bulkLoad(queries, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Load a large number of queries into the Monitor
+     *
+     * The stream is consumed in batches, and each batch is parsed, decomposed and converted
+     * into query index documents on one of a pool of threads, which then add the documents
+     * directly to the query index.  Unlike {@link #update(Iterable)}, batches are not
+     * serialized behind each other's commits: the query index is committed once, after
+     * all queries have been added.  Queries replace any existing queries with the same id,
+     * but the stream must not contain the same id twice; duplicates are reported as errors.
+     * If {@link QueryIndexConfiguration#setSkipUnchangedQueries(boolean)} is set, queries that
+     * are already indexed unchanged are skipped.
+     *
+     * Queries that are being loaded may not be matched consistently until this method returns.
+     * The Monitor's MonitorQueryParser and Presearcher must be thread-safe.  Any
+     * {@link QueryIndexUpdateListener}s are notified once, on the calling thread, around the
+     * final commit, with all of the updates that were loaded.
+     *
+     * If a batch fails, the stream throws, or the calling thread is interrupted, then no more
+     * batches are started, and the method waits for the batches in progress to finish.  As with
+     * {@link #update(Iterable)}, the queries already loaded are then committed, and the failure
+     * is reported with their ids in a {@link BulkLoadException}.  Queries that were not loaded
+     * keep any version already in the Monitor.
+     *
+     * @param queries the MonitorQueries to add
+     * @param threads the number of threads to use
+     * @return the number of queries loaded, any errors, and the time taken
+     * @throws BulkLoadException if the load failed before all queries were read from the stream
+     * @throws IOException on IO errors
+     */
+    public BulkLoadResult bulkLoad(Stream<MonitorQuery> queries, int threads) throws IOException {
+
+        long start = System.nanoTime();
+        List<QueryError> errors = Collections.synchronizedList(new ArrayList<>());
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        // ids whose documents may have reached the query index, reported if the load fails
+        Set<String> loadedIds = ConcurrentHashMap.newKeySet();
+        LongAdder loaded = new LongAdder();
+        LongAdder unchanged = new LongAdder();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        // listeners are notified once, around the final commit, so the updates are only kept if needed
+        List<Indexable> indexed = listeners.isEmpty() ? null : Collections.synchronizedList(new ArrayList<>());
+
+        // existing queries must be visible, so that their cache entries are replaced
+        queryIndex.refreshNow();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // bounds the number of batches held in memory
+        Semaphore permits = new Semaphore(threads * 2);
+        boolean interrupted = false;
+        try {
+            Iterator<MonitorQuery> it = queries.iterator();
+            while (it.hasNext() && failure.get() == null) {
+                List<MonitorQuery> batch = new ArrayList<>(BULK_LOAD_BATCH_SIZE);
+                while (it.hasNext() && batch.size() < BULK_LOAD_BATCH_SIZE) {
+                    batch.add(it.next());
+                }
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        // batches still queued when the load fails are not started
+                        if (failure.get() == null)
+                            loaded.add(loadBatch(batch, ids, loadedIds, unchanged, errors, indexed));
+                    }
+                    catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+            failure.compareAndSet(null, new InterruptedIOException("Interrupted during bulk load"));
+        }
+        catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        finally {
+            // workers may be writing to the IndexWriter, which an interrupt could close, so wait for them
+            executor.shutdown();
+            interrupted |= awaitTerminationUninterruptibly(executor);
+        }
+
+        Exception e = failure.get();
+        try {
+            // whatever was loaded before a failure is kept, as update() keeps its earlier batches
+            if (indexed != null)
+                beforeCommit(indexed);
+            queryIndex.commitNow();
+            if (indexed != null)
+                afterCommit(indexed);
+        }
+        catch (IOException | RuntimeException commitFailure) {
+            if (e == null)
+                throw commitFailure;
+            e.addSuppressed(commitFailure);
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        BulkLoadResult result = new BulkLoadResult(loaded.sum(), unchanged.sum(), new ArrayList<>(errors), System.nanoTime() - start);
+        if (e != null)
+            throw new BulkLoadException(e, new HashSet<>(loadedIds), result);
+        return result;
+    }
+
+    // Waits for a shut down executor to finish its tasks, returning true if the thread was interrupted
+    private static boolean awaitTerminationUninterruptibly(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+                    return interrupted;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    // Parses and indexes a batch of queries, returning the number added
+    private int loadBatch(List<MonitorQuery> batch, Set<String> ids, Set<String> loadedIds, LongAdder unchanged,
+                          List<QueryError> errors, List<Indexable> indexed) throws IOException {
+        List<Indexable> updates = new ArrayList<>();
+        Set<String> skipped = skipUnchangedQueries ? findUnchanged(batch) : Collections.emptySet();
+        int count = 0;
+        for (MonitorQuery query : batch) {
+            if (ids.add(query.getId()) == false) {
+                errors.add(new QueryError(query, new IllegalArgumentException("Duplicate query id in bulk load: " + query.getId())));
+                continue;
+            }
+            if (skipped.contains(query.getId())) {
+                unchanged.increment();
+                count++;
+                continue;
+            }
+            try {
+                for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
+                    updates.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
+                }
+                count++;
+            }
+            catch (Exception e) {
+                errors.add(new QueryError(query, e));
+            }
+        }
+        if (queryStatistics != null) {
+            for (Indexable update : updates) {
+                queryStatistics.add(update.id);
+            }
+        }
+        for (Indexable update : updates) {
+            loadedIds.add(update.id);
+        }
+        queryIndex.addConcurrently(updates);
+        if (indexed != null)
+            indexed.addAll(updates);
+        return count;
+    }
+
     /**
      * Delete queries from the monitor
      * @param queries the queries to remove
      * @throws IOException on IO errors
      */
     public void delete(Iterable<MonitorQuery> queries) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (MonitorQuery mq : queries) {
-            queryIndex.deleteDocuments(new Term(Monitor.FIELDS.del, mq.getId()));
+            ids.add(mq.getId());
         }
-        commit(null);
+        deleteIds(ids);
     }
 
     /**
@@ -410,10 +937,25 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public void deleteById(Iterable<String> queryIds) throws IOException {
+        List<String> ids = new ArrayList<>();
         for (String queryId : queryIds) {
-            queryIndex.deleteDocuments(new Term(FIELDS.del, queryId));
+            ids.add(queryId);
+        }
+        deleteIds(ids);
+    }
+
+    // the ids are copied first, as the Iterables passed to delete() may only be iterable once
+    private void deleteIds(List<String> ids) throws IOException {
+        for (String id : ids) {
+            queryIndex.deleteDocuments(new Term(FIELDS.del, id));
         }
         commit(null);
+        // statistics are removed once the deletions have reached the query index
+        if (queryStatistics != null) {
+            for (String id : ids) {
+                queryStatistics.remove(id);
+            }
+        }
     }
 
     /**
@@ -432,6 +974,8 @@ public class Monitor implements Closeable {
     public void clear() throws IOException {
         queryIndex.deleteDocuments(new MatchAllDocsQuery());
         commit(null);
+        if (queryStatistics != null)
+            queryStatistics.clear();
     }
 
     /**
@@ -444,8 +988,12 @@ public class Monitor implements Closeable {
      * @throws IOException on IO errors
      */
     public <T extends QueryMatch> Matches<T> match(DocumentBatch docs, MatcherFactory<T> factory) throws IOException {
+        if (termStatistics != null && matchedBatches.getAndIncrement() % documentSampleInterval == 0)
+            termStatistics.addDocuments(docs.getIndexReader());
         CandidateMatcher<T> matcher = factory.createMatcher(docs);
         matcher.setSlowLogLimit(slowLogLimit);
+        if (queryStatistics != null)
+            matcher.setQueryStatistics(queryStatistics);
         match(matcher);
         return matcher.getMatches();
     }
@@ -458,9 +1006,13 @@ public class Monitor implements Closeable {
      * @param <T> the type of {@link QueryMatch} to return
      * @return a {@link Matches} object summarizing the match run.
      * @throws IOException on IO errors
+     *
+     * @see QueryIndexConfiguration#setReuseIndexBuffers(boolean)
      */
     public <T extends QueryMatch> Matches<T> match(InputDocument doc, MatcherFactory<T> factory) throws IOException {
-        return match(DocumentBatch.of(doc), factory);
+        try (DocumentBatch batch = new DocumentBatch.Builder().add(doc).reuseIndexBuffers(reuseIndexBuffers).build()) {
+            return match(batch, factory);
+        }
     }
 
     private class PresearcherQueryBuilder implements QueryIndex.QueryBuilder {
@@ -478,11 +1030,143 @@ public class Monitor implements Closeable {
     }
 
     private <T extends QueryMatch> void match(CandidateMatcher<T> matcher) throws IOException {
-        StandardQueryCollector<T> collector = new StandardQueryCollector<>(matcher);
-        long buildTime = queryIndex.search(new PresearcherQueryBuilder(matcher.getIndexReader()), collector);
-        matcher.finish(buildTime, collector.queryCount);
+        search(new PresearcherQueryBuilder(matcher.getIndexReader()), new StandardQueryCollector<>(matcher), presearcherExecutor);
+    }
+
+    // Runs the presearcher query, then finishes the collector's matcher, or aborts it if the search fails
+    private <T extends QueryMatch> void search(QueryIndex.QueryBuilder queryBuilder, StandardQueryCollector<T> collector,
+                                               ExecutorService executor) throws IOException {
+        long run = queryStatistics == null ? 0 : queryStatistics.startRun();
+        try {
+            long buildTime;
+            boolean searched = false;
+            try {
+                buildTime = queryIndex.search(queryBuilder, collector, executor);
+                searched = true;
+            }
+            finally {
+                if (searched == false)
+                    collector.matcher.abort();
+            }
+            collector.matcher.finish(buildTime, collector.queryCount);
+        }
+        finally {
+            if (queryStatistics != null)
+                queryStatistics.endRun(run);
+        }
+    }
+
+    private static final Set<String> INTERNAL_FIELDS
+            = new HashSet<>(Arrays.asList(FIELDS.id, FIELDS.del, FIELDS.hash, FIELDS.mq));
+
+    /**
+     * Re-index queries that are indexed under terms that have become common in the documents
+     * being matched
+     *
+     * A query indexed under a term is selected by the presearcher for every document containing
+     * that term.  A term is hot if the number of queries indexed under it, multiplied by the
+     * fraction of sampled documents that contain it, is greater than {@code maxCandidateRate}.
+     * Queries indexed under a hot term are parsed again, so that a
+     * {@link uk.co.flax.luwak.termextractor.weights.SelectivityWeightNorm} using the same
+     * statistics can choose rarer terms for them, and are re-indexed if they would no longer
+     * be indexed under all of their hot terms.  Queries with no better term available are
+     * left as they are.  Queries that are updated or deleted while this method runs are not
+     * overwritten.
+     *
+     * @param maxCandidateRate the largest number of queries a single indexed term should
+     *                         select per document, on average
+     * @return the number of queries re-indexed
+     * @throws IOException on IO errors
+     * @throws UpdateException if any of the queries could not be re-indexed
+     * @throws IllegalStateException if document term statistics are not collected, or if
+     *                               queries are not stored in the queryindex
+     */
+    public int reindexHotQueries(double maxCandidateRate) throws IOException, UpdateException {
+        if (termStatistics == null)
+            throw new IllegalStateException("Cannot re-index hot queries as document term statistics are not collected");
+        if (storeQueries == false)
+            throw new IllegalStateException("Cannot re-index hot queries as queries are not stored");
+
+        List<Term> hotTerms = queryIndex.findTerms(INTERNAL_FIELDS,
+                (term, queryCount) -> termStatistics.documentFraction(term) * queryCount > maxCandidateRate);
+        if (hotTerms.isEmpty())
+            return 0;
+
+        // find the hot terms that each query is indexed under
+        Map<String, MonitorQuery> queries = new HashMap<>();
+        Map<String, Set<Term>> queryTerms = new HashMap<>();
+        for (Term term : hotTerms) {
+            queryIndex.scan(new TermQuery(term), (id, query, dataValues) -> {
+                queryTerms.computeIfAbsent(id, k -> new HashSet<>()).add(term);
+                if (queries.containsKey(id) == false)
+                    queries.put(id, MonitorQuery.deserialize(dataValues.mq.binaryValue()));
+            });
+        }
+
+        List<QueryError> errors = new ArrayList<>();
+        List<Indexable> updates = new ArrayList<>();
+        Map<String, BytesRef> hashes = new HashMap<>();
+        Set<String> reindexed = new HashSet<>();
+        for (MonitorQuery query : queries.values()) {
+            try {
+                // re-indexing a query that would still be indexed under all of its hot terms gains nothing
+                if (indexedTerms(query).containsAll(queryTerms.get(query.getId())))
+                    continue;
+                for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
+                    updates.add(new Indexable(query.getId(), queryCacheEntry, buildIndexableQuery(query.getId(), query, queryCacheEntry)));
+                }
+                hashes.put(query.getId(), query.hash());
+            }
+            catch (Exception e) {
+                errors.add(new QueryError(query, e));
+            }
+            if (updates.size() > commitBatchSize) {
+                commitIfUnchanged(updates, hashes, reindexed);
+                updates.clear();
+                hashes.clear();
+            }
+        }
+        commitIfUnchanged(updates, hashes, reindexed);
+        if (errors.isEmpty() == false)
+            throw new UpdateException(errors);
+        return reindexed.size();
     }
 
+    // Commits updates to queries that have not been updated or deleted since they were read
+    private void commitIfUnchanged(List<Indexable> updates, Map<String, BytesRef> hashes,
+                                   Set<String> committedIds) throws IOException {
+        if (updates.isEmpty())
+            return;
+        List<Indexable> committed = queryIndex.commitIfUnchanged(updates, hashes, this::beforeCommit);
+        afterCommit(committed);
+        for (Indexable update : committed) {
+            committedIds.add(update.id);
+        }
+    }
+
+    // Returns the terms that the presearcher would index a query under
+    private Set<Term> indexedTerms(MonitorQuery query) throws Exception {
+        Set<Term> terms = new HashSet<>();
+        for (QueryCacheEntry queryCacheEntry : decomposeQuery(query)) {
+            Document doc = presearcher.indexQuery(queryCacheEntry.matchQuery, query.getMetadata());
+            for (IndexableField field : doc) {
+                if (field.fieldType().indexOptions() == IndexOptions.NONE)
+                    continue;
+                try (TokenStream ts = field.tokenStream(KEYWORD_ANALYZER, null)) {
+                    TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+                    ts.reset();
+                    while (ts.incrementToken()) {
+                        terms.add(new Term(field.name(), BytesRef.deepCopyOf(termAtt.getBytesRef())));
+                    }
+                    ts.end();
+                }
+            }
+        }
+        return terms;
+    }
+
+    private static final Analyzer KEYWORD_ANALYZER = new KeywordAnalyzer();
+
     /**
      * Get the MonitorQuery for a given query id
      * @param queryId the id of the query to get
@@ -494,7 +1178,7 @@ public class Monitor implements Closeable {
         if (storeQueries == false)
             throw new IllegalStateException("Cannot call getQuery() as queries are not stored");
         final MonitorQuery[] queryHolder = new MonitorQuery[]{ null };
-        queryIndex.search(new TermQuery(new Term(FIELDS.id, queryId)), (id, query, dataValues) -> {
+        queryIndex.scan(new TermQuery(new Term(FIELDS.id, queryId)), (id, query, dataValues) -> {
             dataValues.advance(dataValues.doc);
             BytesRef serializedMQ = dataValues.mq.binaryValue();
             queryHolder[0] = MonitorQuery.deserialize(serializedMQ);
@@ -535,6 +1219,11 @@ public class Monitor implements Closeable {
      * @return a Document that will be indexed in the Monitor's queryindex
      */
     protected Document buildIndexableQuery(String id, MonitorQuery mq, QueryCacheEntry query) {
+        return buildIndexableQuery(presearcher, storeQueries, id, mq, query);
+    }
+
+    static Document buildIndexableQuery(Presearcher presearcher, boolean storeQueries,
+                                        String id, MonitorQuery mq, QueryCacheEntry query) {
         Document doc = presearcher.indexQuery(query.matchQuery, mq.getMetadata());
         doc.add(new StringField(FIELDS.id, id, Field.Store.NO));
         doc.add(new StringField(FIELDS.del, id, Field.Store.NO));
@@ -546,7 +1235,7 @@ public class Monitor implements Closeable {
     }
 
     // For each query selected by the presearcher, pass on to a CandidateMatcher
-    private static class StandardQueryCollector<T extends QueryMatch> implements QueryIndex.QueryCollector {
+    private static class StandardQueryCollector<T extends QueryMatch> implements QueryIndex.QueryAndMetadataCollector {
 
         final CandidateMatcher<T> matcher;
         int queryCount = 0;
@@ -556,20 +1245,37 @@ public class Monitor implements Closeable {
         }
 
         @Override
-        public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-            if (query == null)
+        public void matchQuery(String id, Query matchQuery, Map<String, String> metadata,
+                               QueryIndex.DataValues dataValues) throws IOException {
+            if (matchQuery == null)
                 return;
             try {
                 queryCount++;
-                matcher.matchQuery(id, query.matchQuery, query.metadata);
+                matcher.matchQuery(id, matchQuery, metadata);
             }
             catch (Exception e) {
                 matcher.reportError(new MatchError(id, e));
             }
         }
 
+        @Override
+        public void loadError(String id, Exception e) {
+            matcher.reportError(new MatchError(id, e));
+        }
+
     }
 
+    /* Rewrites presearcher queries into span queries, expanding any TermsIntersectionQuery into
+       the equivalent TermInSetQuery so that the terms it selects queries by can be reported */
+    private static final SpanRewriter DEBUG_REWRITER = new SpanRewriter() {
+        @Override
+        public Query rewrite(Query in, IndexSearcher searcher) throws RewriteException, IOException {
+            if (in instanceof TermsIntersectionQuery)
+                return rewrite(((TermsIntersectionQuery) in).toTermInSetQuery(), searcher);
+            return super.rewrite(in, searcher);
+        }
+    };
+
     /**
      * Match a DocumentBatch against the queries stored in the Monitor, also returning information
      * about which queries were selected by the presearcher, and why.
@@ -586,13 +1292,13 @@ public class Monitor implements Closeable {
             @Override
             public Query buildQuery(QueryTermFilter termFilter) throws IOException {
                 try {
-                    return new ForceNoBulkScoringQuery(SpanRewriter.INSTANCE.rewrite(super.buildQuery(termFilter), null));
+                    return new ForceNoBulkScoringQuery(DEBUG_REWRITER.rewrite(super.buildQuery(termFilter), null));
                 } catch (RewriteException e) {
                     throw new IOException(e);
                 }
             }
         };
-        queryIndex.search(queryBuilder, collector);
+        search(queryBuilder, collector, null);
         return collector.getMatches();
     }
 
@@ -627,7 +1333,8 @@ public class Monitor implements Closeable {
         }
 
         @Override
-        public void matchQuery(final String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
+        public void matchQuery(final String id, Query matchQuery, Map<String, String> metadata,
+                               QueryIndex.DataValues dataValues) throws IOException {
 
             SpanCollector collector = new SpanCollector() {
                 @Override
@@ -647,7 +1354,7 @@ public class Monitor implements Closeable {
 
             SpanExtractor.collect(dataValues.scorer, collector, false);
 
-            super.matchQuery(id, query, dataValues);
+            super.matchQuery(id, matchQuery, metadata, dataValues);
         }
 
     }
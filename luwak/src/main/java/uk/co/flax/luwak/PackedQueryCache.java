@@ -0,0 +1,297 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A {@link QueryCache} using primitive-keyed open addressing, for Monitors holding
+ * very large numbers of queries
+ *
+ * Query hashes generated by the Monitor are a 16-byte MD5 digest followed by a
+ * decomposition suffix of the form "_N".  These are stored as two longs and an int
+ * in parallel arrays, rather than as a BytesRef per entry, and each distinct metadata
+ * map is stored only once, and dropped once no entry refers to it.  No per-entry
+ * objects are held apart from the parsed queries themselves; {@link QueryCacheEntry}
+ * objects are built on demand by {@link #get(BytesRef)}, and match runs use
+ * {@link #get(BytesRef, EntryConsumer)}, which builds nothing.  Hashes that do not
+ * follow the Monitor's format are held in a separate map.
+ *
+ * Lookups do not lock.  Updates are synchronized, so this cache is best suited to
+ * workloads where match runs are much more frequent than query updates.
+ */
+public class PackedQueryCache implements QueryCache {
+
+    private static final int DIGEST_LENGTH = 16;
+    private static final int MAX_SUFFIX_DIGITS = 9;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final Object TOMBSTONE = new Object();
+    private static final int MIN_DEAD_METADATA = 64;
+
+    // Slots are claimed by writing the key arrays and then publishing the value with a
+    // volatile write.  Once claimed, a slot's key never changes; removed entries are
+    // marked with a tombstone, and only discarded when the table is rebuilt.  Metadata
+    // ids are only valid for the table they were assigned in, so each table holds its
+    // own metadata array.
+    private static final class Table {
+
+        final long[] high;
+        final long[] low;
+        final int[] suffixes;
+        final int[] metadataIds;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        volatile Map<?, ?>[] metadata = new Map<?, ?>[8];
+
+        int used = 0;
+
+        Table(int capacity) {
+            this.high = new long[capacity];
+            this.low = new long[capacity];
+            this.suffixes = new int[capacity];
+            this.metadataIds = new int[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        // returns the slot holding the key, or the empty slot where it should be inserted
+        int find(long h, long l, int suffix) {
+            int slot = hash(h, l, suffix) & mask;
+            while (true) {
+                if (values.get(slot) == null)
+                    return slot;
+                if (high[slot] == h && low[slot] == l && suffixes[slot] == suffix)
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private volatile int size = 0;
+
+    // The id of each distinct metadata map in the current table, and the number of live
+    // entries referring to it.  Guarded by the lock
+    private Map<Map<String, String>, Integer> metadataIds = new HashMap<>();
+    private int[] metadataRefs = new int[8];
+    private int deadMetadata = 0;
+
+    private final Map<BytesRef, QueryCacheEntry> overflow = new ConcurrentHashMap<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public QueryCacheEntry get(BytesRef hash) {
+        int suffix = parseSuffix(hash);
+        if (suffix < 0)
+            return overflow.get(hash);
+        Table t = this.table;
+        int slot = t.find(readLong(hash, 0), readLong(hash, 8), suffix);
+        Object value = t.values.get(slot);
+        if (value == null || value == TOMBSTONE)
+            return null;
+        Map<String, String> md = (Map<String, String>) t.metadata[t.metadataIds[slot]];
+        return new QueryCacheEntry(BytesRef.deepCopyOf(hash), (Query) value, md);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean get(BytesRef hash, EntryConsumer consumer) throws IOException {
+        int suffix = parseSuffix(hash);
+        if (suffix < 0) {
+            QueryCacheEntry entry = overflow.get(hash);
+            if (entry == null)
+                return false;
+            consumer.accept(entry.matchQuery, entry.metadata);
+            return true;
+        }
+        Table t = this.table;
+        int slot = t.find(readLong(hash, 0), readLong(hash, 8), suffix);
+        Object value = t.values.get(slot);
+        if (value == null || value == TOMBSTONE)
+            return false;
+        consumer.accept((Query) value, (Map<String, String>) t.metadata[t.metadataIds[slot]]);
+        return true;
+    }
+
+    @Override
+    public synchronized void put(QueryCacheEntry entry) {
+        int suffix = parseSuffix(entry.hash);
+        if (suffix < 0) {
+            overflow.put(entry.hash, entry);
+            return;
+        }
+        long h = readLong(entry.hash, 0);
+        long l = readLong(entry.hash, 8);
+        Table t = this.table;
+        int slot = t.find(h, l, suffix);
+        Object previous = t.values.get(slot);
+        if (previous == null) {
+            t.high[slot] = h;
+            t.low[slot] = l;
+            t.suffixes[slot] = suffix;
+            t.used++;
+        }
+        int metadataId = acquireMetadata(t, entry.metadata);
+        if (previous != null && previous != TOMBSTONE)
+            releaseMetadata(t.metadataIds[slot]);
+        t.metadataIds[slot] = metadataId;
+        t.values.set(slot, entry.matchQuery);
+        if (previous == null || previous == TOMBSTONE)
+            size++;
+        if (t.used > (t.mask + 1) * 3 / 4 || tooMuchDeadMetadata())
+            rebuild(t);
+    }
+
+    @Override
+    public synchronized void remove(BytesRef hash) {
+        int suffix = parseSuffix(hash);
+        if (suffix < 0) {
+            overflow.remove(hash);
+            return;
+        }
+        Table t = this.table;
+        int slot = t.find(readLong(hash, 0), readLong(hash, 8), suffix);
+        Object value = t.values.get(slot);
+        if (value != null && value != TOMBSTONE) {
+            t.values.set(slot, TOMBSTONE);
+            releaseMetadata(t.metadataIds[slot]);
+            size--;
+            if (tooMuchDeadMetadata())
+                rebuild(t);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    @Override
+    public boolean buildsEntries() {
+        return true;
+    }
+
+    /**
+     * @return the number of distinct metadata maps held, including any that are no longer referred to
+     */
+    synchronized int metadataCount() {
+        return metadataIds.size();
+    }
+
+    // Copies all live entries into a new table sized for them, dropping tombstones and
+    // metadata that is no longer referred to.  Called while holding the lock
+    @SuppressWarnings("unchecked")
+    private void rebuild(Table old) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size * 4)
+            capacity <<= 1;
+        Table t = new Table(capacity);
+        this.metadataIds = new HashMap<>();
+        this.metadataRefs = new int[8];
+        this.deadMetadata = 0;
+        for (int i = 0; i <= old.mask; i++) {
+            Object value = old.values.get(i);
+            if (value == null || value == TOMBSTONE)
+                continue;
+            int slot = t.find(old.high[i], old.low[i], old.suffixes[i]);
+            t.high[slot] = old.high[i];
+            t.low[slot] = old.low[i];
+            t.suffixes[slot] = old.suffixes[i];
+            t.metadataIds[slot] = acquireMetadata(t, (Map<String, String>) old.metadata[old.metadataIds[i]]);
+            t.values.set(slot, value);
+            t.used++;
+        }
+        this.table = t;
+    }
+
+    // Returns the id of a metadata map in a table, adding a reference to it.  Called while holding the lock
+    private int acquireMetadata(Table t, Map<String, String> md) {
+        Integer id = metadataIds.get(md);
+        if (id != null) {
+            if (metadataRefs[id]++ == 0)
+                deadMetadata--;
+            return id;
+        }
+        int newId = metadataIds.size();
+        Map<?, ?>[] current = t.metadata;
+        if (newId == current.length)
+            current = Arrays.copyOf(current, ArrayUtil.oversize(newId + 1, 8));
+        if (newId == metadataRefs.length)
+            metadataRefs = ArrayUtil.grow(metadataRefs, newId + 1);
+        current[newId] = md;
+        // published before the slot that refers to it
+        t.metadata = current;
+        metadataIds.put(md, newId);
+        metadataRefs[newId] = 1;
+        return newId;
+    }
+
+    // Removes a reference to a metadata map.  Called while holding the lock
+    private void releaseMetadata(int id) {
+        if (--metadataRefs[id] == 0)
+            deadMetadata++;
+    }
+
+    // Unreferenced metadata is kept in case an entry with the same metadata is added again,
+    // until there is more of it than live metadata
+    private boolean tooMuchDeadMetadata() {
+        return deadMetadata > MIN_DEAD_METADATA && deadMetadata > metadataIds.size() / 2;
+    }
+
+    // Returns the decomposition suffix, or -1 if the hash is not of the form <digest>_N
+    static int parseSuffix(BytesRef hash) {
+        int digits = hash.length - DIGEST_LENGTH - 1;
+        if (digits < 1 || digits > MAX_SUFFIX_DIGITS || hash.bytes[hash.offset + DIGEST_LENGTH] != '_')
+            return -1;
+        int start = hash.offset + DIGEST_LENGTH + 1;
+        if (digits > 1 && hash.bytes[start] == '0')
+            return -1;
+        int suffix = 0;
+        for (int i = start; i < start + digits; i++) {
+            int digit = hash.bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            suffix = suffix * 10 + digit;
+        }
+        return suffix;
+    }
+
+    private static long readLong(BytesRef bytes, int pos) {
+        long value = 0;
+        for (int i = bytes.offset + pos; i < bytes.offset + pos + 8; i++) {
+            value = (value << 8) | (bytes.bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int hash(long high, long low, int suffix) {
+        // the key is already an MD5 digest, so its bits are well distributed
+        long h = high ^ low ^ (suffix * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,110 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Holds the parsed queries for a Monitor, keyed by the hash of each decomposed query
+ *
+ * Lookups are made during match runs, possibly from several threads at once, while
+ * entries are added by commits and cache purges, so implementations must be safe for
+ * concurrent use.  The BytesRef passed to {@link #get(BytesRef)} may be reused by the
+ * caller after the call returns, so implementations must not hold on to it.
+ *
+ * @see QueryIndexConfiguration#setQueryCacheFactory(java.util.function.Supplier)
+ */
+public interface QueryCache {
+
+    /**
+     * @param hash the hash of a decomposed query
+     * @return the cached entry for the hash, or {@code null} if there is none
+     */
+    QueryCacheEntry get(BytesRef hash);
+
+    /**
+     * Receives the query and metadata of a cache entry
+     */
+    interface EntryConsumer {
+
+        /**
+         * @param matchQuery the cached query
+         * @param metadata   the cached query's metadata
+         * @throws IOException on IO errors
+         */
+        void accept(Query matchQuery, Map<String, String> metadata) throws IOException;
+    }
+
+    /**
+     * Pass the query and metadata cached for a hash to a consumer
+     *
+     * Match runs only need the query and metadata of each selected entry, so caches that
+     * build {@link QueryCacheEntry} objects on demand should override this to avoid
+     * building one for every lookup.
+     *
+     * @param hash     the hash of a decomposed query
+     * @param consumer the consumer to pass the query and metadata to
+     * @return {@code true} if the hash was found in the cache
+     * @throws IOException if the consumer throws an IOException
+     */
+    default boolean get(BytesRef hash, EntryConsumer consumer) throws IOException {
+        QueryCacheEntry entry = get(hash);
+        if (entry == null)
+            return false;
+        consumer.accept(entry.matchQuery, entry.metadata);
+        return true;
+    }
+
+    /**
+     * Add an entry to the cache, replacing any existing entry with the same hash
+     * @param entry the entry to add
+     */
+    void put(QueryCacheEntry entry);
+
+    /**
+     * Remove an entry from the cache
+     * @param hash the hash of the entry to remove
+     */
+    void remove(BytesRef hash);
+
+    /**
+     * @return the number of entries in the cache
+     */
+    int size();
+
+    /**
+     * @return {@code true} if the cache may discard entries before they are removed,
+     *         in which case it can only be used by Monitors that store their queries
+     */
+    default boolean isBounded() {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the cache builds a new {@link QueryCacheEntry} for each call to
+     *         {@link #get(BytesRef)}, rather than holding its entries, in which case the
+     *         Monitor does not keep the entries it reads
+     */
+    default boolean buildsEntries() {
+        return false;
+    }
+
+}
@@ -34,6 +34,10 @@ public class QueryCacheEntry {
     /** The metadata from the entry's parent {@link MonitorQuery} */
     public final Map<String,String> metadata;
 
+    /* Set when the entry is removed from the query cache, so that a query index segment
+       holding on to it looks its hash up again */
+    volatile boolean evicted = false;
+
     public QueryCacheEntry(BytesRef hash, Query matchQuery, Map<String, String> metadata) {
         this.hash = hash;
         this.matchQuery = matchQuery;
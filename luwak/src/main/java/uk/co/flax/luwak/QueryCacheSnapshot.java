@@ -0,0 +1,140 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * A record of the query cache state for a query index commit, written alongside the
+ * query index so that a restarted Monitor can skip parsing all its stored queries
+ *
+ * The snapshot holds the generation of the commit it was written for, and the number
+ * of extra references to each query hash that is shared by several query index
+ * documents.  Every query in a commit was parsed successfully when it was added,
+ * so if the snapshot matches the latest commit, the Monitor can start with an empty
+ * query cache and parse each query when it is first selected.  A missing, stale or
+ * corrupt snapshot is ignored, and the Monitor falls back to parsing every query.
+ *
+ * Snapshots are read and written through the query index Directory, and so are
+ * memory-mapped when the index is on an MMapDirectory.  Each snapshot is written to
+ * a temporary file and then renamed over the previous one, and is protected by a
+ * checksum.
+ */
+final class QueryCacheSnapshot {
+
+    static final String FILENAME = "luwak_querycache.snapshot";
+
+    private static final String CODEC = "LuwakQueryCacheSnapshot";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    /** The commit generation the snapshot was written for */
+    final long generation;
+
+    /** The extra references to each shared query hash */
+    final Map<BytesRef, Integer> sharedHashes;
+
+    QueryCacheSnapshot(long generation, Map<BytesRef, Integer> sharedHashes) {
+        this.generation = generation;
+        this.sharedHashes = sharedHashes;
+    }
+
+    /**
+     * Write the snapshot to a directory, replacing any existing snapshot
+     */
+    void write(Directory directory) throws IOException {
+        IndexOutput out = directory.createTempOutput("luwak_querycache", "snapshot", IOContext.DEFAULT);
+        String tempName = out.getName();
+        boolean success = false;
+        try {
+            CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+            out.writeVLong(generation);
+            out.writeVInt(sharedHashes.size());
+            for (Map.Entry<BytesRef, Integer> entry : sharedHashes.entrySet()) {
+                out.writeVInt(entry.getKey().length);
+                out.writeBytes(entry.getKey().bytes, entry.getKey().offset, entry.getKey().length);
+                out.writeVInt(entry.getValue());
+            }
+            CodecUtil.writeFooter(out);
+            out.close();
+            success = true;
+        }
+        finally {
+            if (success == false) {
+                IOUtils.closeWhileHandlingException(out);
+                IOUtils.deleteFilesIgnoringExceptions(directory, tempName);
+            }
+        }
+        directory.sync(Collections.singleton(tempName));
+        if (slowFileExists(directory, FILENAME))
+            directory.deleteFile(FILENAME);
+        directory.rename(tempName, FILENAME);
+        directory.syncMetaData();
+    }
+
+    /**
+     * Read the snapshot for the latest commit in a directory
+     * @return the snapshot, or {@code null} if there is no valid snapshot for the latest commit
+     */
+    static QueryCacheSnapshot read(Directory directory) throws IOException {
+        long generation = SegmentInfos.getLastCommitGeneration(directory);
+        if (generation < 0 || slowFileExists(directory, FILENAME) == false)
+            return null;
+        try (ChecksumIndexInput in = directory.openChecksumInput(FILENAME, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            long snapshotGeneration = in.readVLong();
+            if (snapshotGeneration != generation)
+                return null;
+            int count = in.readVInt();
+            Map<BytesRef, Integer> sharedHashes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[in.readVInt()];
+                in.readBytes(hash, 0, hash.length);
+                sharedHashes.put(new BytesRef(hash), in.readVInt());
+            }
+            CodecUtil.checkFooter(in);
+            return new QueryCacheSnapshot(generation, sharedHashes);
+        }
+        catch (CorruptIndexException | IndexFormatTooOldException | IndexFormatTooNewException
+                | EOFException | NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static boolean slowFileExists(Directory directory, String name) throws IOException {
+        for (String file : directory.listAll()) {
+            if (name.equals(file))
+                return true;
+        }
+        return false;
+    }
+
+}
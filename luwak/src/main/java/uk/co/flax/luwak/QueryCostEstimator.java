@@ -0,0 +1,44 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Estimates how expensive a candidate query will be to run against a DocumentBatch
+ *
+ * Estimates are relative: they are used to order and distribute work between
+ * matcher threads, so only the ratio between two estimates is significant.
+ *
+ * @see uk.co.flax.luwak.matchers.PartitionMatcher
+ */
+public interface QueryCostEstimator {
+
+    /**
+     * Estimate the cost of running a query
+     * @param queryId the query id
+     * @param query the query to run
+     * @return the estimated cost, higher values being more expensive
+     */
+    double estimateCost(String queryId, Query query);
+
+    /**
+     * A QueryCostEstimator that treats all queries as equally expensive
+     */
+    QueryCostEstimator UNIFORM = (queryId, query) -> 1;
+
+}
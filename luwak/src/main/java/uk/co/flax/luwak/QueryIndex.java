@@ -2,39 +2,119 @@ package uk.co.flax.luwak;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
 
 class QueryIndex {
     
     private final IndexWriter writer;
     private final SearcherManager manager;
 
-    /* Used to cache updates while a purge is ongoing */
-    private volatile Map<BytesRef, QueryCacheEntry> purgeCache = null;
-
-    /* Used to lock around the creation of the purgeCache */
+    /* Used to lock around swapping out the query cache on a purge */
     private final ReadWriteLock purgeLock = new ReentrantReadWriteLock();
     private final Object commitLock = new Object();
 
+    /* Deletions made since the last commit, applied to the IndexWriter on the next commit */
+    private final List<Query> pendingDeletes = new ArrayList<>();
+
+    /* If false, updates are made durable by background calls to commitNow().  Guarded by commitLock */
+    private boolean commitOnUpdate = true;
+    private boolean uncommittedChanges = false;
+    private CompletableFuture<Void> nextCommit = new CompletableFuture<>();
+
+    /* If false, updates are made visible by background calls to refreshNow().  Guarded by commitLock */
+    private boolean refreshOnUpdate = true;
+    private boolean unrefreshedChanges = false;
+
+    /* Ids of queries updated or deleted since the last refresh, and whether any deletes since the
+       last refresh were not by id.  Guarded by commitLock */
+    private final Set<String> unrefreshedIds = new HashSet<>();
+    private boolean unrefreshedQueryDeletes = false;
+
+    /* Hashes of deleted documents, to be removed from the query cache when the deletion is visible.
+       Guarded by commitLock */
+    private final List<BytesRef> pendingRemovals = new ArrayList<>();
+
+    /* Deletions applied since the last refresh, whose hashes are resolved against the current
+       searcher just before the next refresh.  Guarded by commitLock */
+    private final Set<String> unresolvedDeletedIds = new HashSet<>();
+    private final List<Query> unresolvedQueryDeletes = new ArrayList<>();
+
+    /* Hashes added to the query cache since the last refresh, by query id.  These documents are not
+       visible to the current searcher, so their hashes are recorded here in case they are deleted
+       again before the next refresh.  Guarded by commitLock */
+    private final Map<String, List<BytesRef>> unrefreshedHashes = new HashMap<>();
+
+    /* The number of extra references to hashes that are shared by more than one query index document.
+       Guarded by commitLock */
+    private final Map<BytesRef, Integer> sharedHashes = new HashMap<>();
+
     /* The current query cache */
-    private volatile ConcurrentMap<BytesRef, QueryCacheEntry> queries = new ConcurrentHashMap<>();
+    private volatile QueryCache queries;
     // NB this is not final because it can be replaced by purgeCache()
 
+    private final Supplier<QueryCache> cacheFactory;
+
+    /* Used to parse queries on a cache miss, or null if queries are not stored */
+    private final QueryLoader loader;
+
+    /* Whether or not to write a QueryCacheSnapshot on each commit */
+    private boolean writeSnapshots = false;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
     // package-private for testing
-    final Map<IndexReader.CacheKey, QueryTermFilter> termFilters = new HashMap<>();
+    final Map<IndexReader.CacheKey, QueryTermFilter> termFilters = new ConcurrentHashMap<>();
+
+    /* The terms of each segment, keyed by segment core, so that they are only collected once */
+    final Map<IndexReader.CacheKey, QueryTermFilter.SegmentTerms> segmentTerms = new ConcurrentHashMap<>();
+
+    /* The decoded ids and cache entries of each segment's queries, keyed by segment core */
+    final Map<IndexReader.CacheKey, SegmentQueries> segmentQueries = new ConcurrentHashMap<>();
+
+    /* Bloom filter bits per term for each segment's terms, or 0 to hold them exactly */
+    private final int termFilterBitsPerTerm;
     
-    QueryIndex(IndexWriter indexWriter) throws IOException {
+    QueryIndex(IndexWriter indexWriter, Supplier<QueryCache> cacheFactory, QueryLoader loader) throws IOException {
+        this(indexWriter, cacheFactory, loader, 0);
+    }
+
+    QueryIndex(IndexWriter indexWriter, Supplier<QueryCache> cacheFactory, QueryLoader loader, int termFilterBitsPerTerm) throws IOException {
+        this.termFilterBitsPerTerm = termFilterBitsPerTerm;
         this.writer = indexWriter;
         this.manager = new SearcherManager(writer, true, true, new TermsHashBuilder());
+        this.cacheFactory = cacheFactory;
+        this.queries = cacheFactory.get();
+        this.loader = loader;
+        if (loader == null && queries.isBounded())
+            throw new IllegalArgumentException("A bounded query cache can only be used if queries are stored");
+    }
+
+    QueryIndex(IndexWriter indexWriter) throws IOException {
+        this(indexWriter, ConcurrentQueryCache::new, null);
     }
     
     QueryIndex() throws IOException {
@@ -46,45 +126,543 @@ class QueryIndex {
         public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
             IndexSearcher searcher = super.newSearcher(reader, previousReader);
             searcher.setQueryCache(null);
-            termFilters.put(reader.getReaderCacheHelper().getKey(), new QueryTermFilter(reader));
+            List<QueryTermFilter.SegmentTerms> segments = new ArrayList<>();
+            for (LeafReaderContext ctx : reader.leaves()) {
+                segments.add(getSegmentTerms(ctx.reader()));
+            }
+            termFilters.put(reader.getReaderCacheHelper().getKey(), new QueryTermFilter(segments));
             reader.getReaderCacheHelper().addClosedListener(termFilters::remove);
+            releaseDeletedEntries(reader);
             return searcher;
         }
+
+        // segments are shared between readers, so entries held for documents that are now deleted are released
+        private void releaseDeletedEntries(IndexReader reader) {
+            for (LeafReaderContext ctx : reader.leaves()) {
+                IndexReader.CacheHelper helper = ctx.reader().getCoreCacheHelper();
+                if (helper == null)
+                    continue;
+                SegmentQueries segment = segmentQueries.get(helper.getKey());
+                if (segment != null)
+                    segment.releaseDeleted(ctx.reader().getLiveDocs());
+            }
+        }
+
+        // new searchers are only built by one thread at a time, so no further locking is needed
+        private QueryTermFilter.SegmentTerms getSegmentTerms(LeafReader reader) throws IOException {
+            IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+            if (helper == null)
+                return new QueryTermFilter.SegmentTerms(reader, termFilterBitsPerTerm);
+            QueryTermFilter.SegmentTerms terms = segmentTerms.get(helper.getKey());
+            if (terms == null) {
+                terms = new QueryTermFilter.SegmentTerms(reader, termFilterBitsPerTerm);
+                segmentTerms.put(helper.getKey(), terms);
+                helper.addClosedListener(segmentTerms::remove);
+            }
+            return terms;
+        }
+    }
+
+    /**
+     * Register a listener that is called each time the searcher is refreshed
+     */
+    void addRefreshListener(ReferenceManager.RefreshListener listener) {
+        manager.addListener(listener);
     }
 
+    /**
+     * Apply updates and any pending deletions to the query index
+     *
+     * By default, the changes are committed and made visible to searches before this
+     * method returns, and cache entries for deleted queries are removed.  If the query
+     * index is configured to commit or refresh in the background, then the changes
+     * are only committed or made visible by the next call to {@link #commitNow()} or
+     * {@link #refreshNow()}.  Cache entries for queries deleted or replaced by id are
+     * then removed by that refresh, so an update does not itself force a refresh; only
+     * deletions by query, such as {@link Monitor#clear()}, refresh first if there are
+     * unrefreshed updates.
+     */
     void commit(List<Indexable> updates) throws IOException {
         synchronized (commitLock) {
-            purgeLock.readLock().lock();
-            try {
-                if (updates != null) {
-                    Set<String> ids = new HashSet<>();
-                    for (Indexable update : updates) {
-                        ids.add(update.id);
+            List<Query> deletes = new ArrayList<>();
+            synchronized (pendingDeletes) {
+                deletes.addAll(pendingDeletes);
+                pendingDeletes.clear();
+            }
+            if (updates != null) {
+                Set<String> ids = new HashSet<>();
+                for (Indexable update : updates) {
+                    ids.add(update.id);
+                }
+                for (String id : ids) {
+                    deletes.add(new TermQuery(new Term(Monitor.FIELDS.del, id)));
+                }
+            }
+            // we can only tell which unrefreshed documents a deletion by query matches by
+            // making them visible, but deletions by id are resolved on the next refresh
+            if (unrefreshedHashes.isEmpty() == false) {
+                for (Query delete : deletes) {
+                    if (isDeleteById(delete) == false) {
+                        refresh();
+                        break;
                     }
-                    for (String id : ids) {
-                        writer.deleteDocuments(new Term(Monitor.FIELDS.del, id));
+                }
+            }
+            for (Query delete : deletes) {
+                if (isDeleteById(delete)) {
+                    String id = ((TermQuery) delete).getTerm().text();
+                    writer.deleteDocuments(((TermQuery) delete).getTerm());
+                    unrefreshedIds.add(id);
+                    unresolvedDeletedIds.add(id);
+                    List<BytesRef> added = unrefreshedHashes.remove(id);
+                    if (added != null)
+                        pendingRemovals.addAll(added);
+                }
+                else {
+                    writer.deleteDocuments(delete);
+                    unrefreshedQueryDeletes = true;
+                    unresolvedQueryDeletes.add(delete);
+                }
+            }
+            if (updates != null) {
+                for (Indexable update : updates) {
+                    addToCache(update.queryCacheEntry);
+                    unrefreshedHashes.computeIfAbsent(update.id, id -> new ArrayList<>()).add(update.queryCacheEntry.hash);
+                    writer.addDocument(update.document);
+                }
+            }
+            uncommittedChanges = true;
+            unrefreshedChanges = true;
+            if (commitOnUpdate)
+                durableCommit();
+            else if (refreshOnUpdate)
+                refresh();
+        }
+    }
+
+    /**
+     * Apply updates to queries that have not changed since they were read, along with any
+     * pending deletions
+     *
+     * An update is dropped if its query has since been updated or deleted, including by a
+     * deletion that has not yet been committed, so that it cannot overwrite a newer version
+     * of the query or bring back a deleted one.
+     *
+     * @param updates       the updates to apply
+     * @param hashes        the {@link MonitorQuery#hash()} of the query that each update was built from, by id
+     * @param beforeCommit  called with the updates that will be applied, before they are applied
+     * @return the updates that were applied
+     */
+    List<Indexable> commitIfUnchanged(List<Indexable> updates, Map<String, BytesRef> hashes,
+                                      Consumer<List<Indexable>> beforeCommit) throws IOException {
+        synchronized (commitLock) {
+            Set<String> unchanged = findUnchanged(hashes);
+            synchronized (pendingDeletes) {
+                for (Query delete : pendingDeletes) {
+                    if (delete instanceof TermQuery && Monitor.FIELDS.del.equals(((TermQuery) delete).getTerm().field()))
+                        unchanged.remove(((TermQuery) delete).getTerm().text());
+                    else
+                        unchanged.clear();
+                }
+            }
+            List<Indexable> applied = new ArrayList<>();
+            for (Indexable update : updates) {
+                if (unchanged.contains(update.id))
+                    applied.add(update);
+            }
+            if (applied.isEmpty())
+                return applied;
+            beforeCommit.accept(applied);
+            commit(applied);
+            return applied;
+        }
+    }
+
+    /**
+     * Add a batch of queries to the index, replacing any existing queries with the same ids,
+     * without committing or refreshing
+     *
+     * Unlike {@link #commit(List)}, this may be called concurrently from several threads, and
+     * only holds the commit lock while updating the query cache, after the documents have been
+     * added to the IndexWriter in parallel.  The changes are made visible and durable by the next call to
+     * {@link #commitNow()}.  Queries in the batch may not be matched consistently until then.
+     *
+     * All Indexables for a given id must be in the same batch.
+     */
+    void addConcurrently(List<Indexable> updates) throws IOException {
+        Map<String, List<Document>> docs = new LinkedHashMap<>();
+        for (Indexable update : updates) {
+            docs.computeIfAbsent(update.id, id -> new ArrayList<>()).add(update.document);
+        }
+        List<Query> replaced = new ArrayList<>();
+        for (String id : docs.keySet()) {
+            replaced.add(new TermQuery(new Term(Monitor.FIELDS.del, id)));
+        }
+        // deleted hashes can be resolved outside the lock, as long as all existing queries are visible
+        List<BytesRef> removals = findHashes(replaced);
+        for (Map.Entry<String, List<Document>> entry : docs.entrySet()) {
+            writer.updateDocuments(new Term(Monitor.FIELDS.del, entry.getKey()), entry.getValue());
+        }
+        // the documents must be in the writer before the changes are recorded, so that a concurrent
+        // commit or refresh cannot clear the flags or evict the replaced hashes before they are added
+        synchronized (commitLock) {
+            pendingRemovals.addAll(removals);
+            unrefreshedIds.addAll(docs.keySet());
+            for (String id : docs.keySet()) {
+                List<BytesRef> added = unrefreshedHashes.remove(id);
+                if (added != null)
+                    pendingRemovals.addAll(added);
+            }
+            for (Indexable update : updates) {
+                addToCache(update.queryCacheEntry);
+                unrefreshedHashes.computeIfAbsent(update.id, id -> new ArrayList<>()).add(update.queryCacheEntry.hash);
+            }
+            uncommittedChanges = true;
+            unrefreshedChanges = true;
+        }
+    }
+
+    /**
+     * Set whether or not each call to {@link #commit(List)} should commit and refresh the index
+     * @param commitOnUpdate if false, changes are only committed by {@link #commitNow()}
+     * @param refreshOnUpdate if false, changes are only made visible by {@link #refreshNow()}
+     *                        or {@link #commitNow()}
+     */
+    void setUpdatePolicy(boolean commitOnUpdate, boolean refreshOnUpdate) {
+        synchronized (commitLock) {
+            this.commitOnUpdate = commitOnUpdate;
+            this.refreshOnUpdate = refreshOnUpdate;
+        }
+    }
+
+    /**
+     * Make all changes to the query index visible to searches
+     */
+    void refreshNow() throws IOException {
+        synchronized (commitLock) {
+            if (unrefreshedChanges)
+                refresh();
+        }
+    }
+
+    /**
+     * Durably commit all changes to the query index, and make them visible to searches
+     */
+    void commitNow() throws IOException {
+        synchronized (commitLock) {
+            if (uncommittedChanges)
+                durableCommit();
+        }
+    }
+
+    /**
+     * Merge the index down to at most maxSegments segments, and commit
+     */
+    void forceMerge(int maxSegments) throws IOException {
+        synchronized (commitLock) {
+            writer.forceMerge(maxSegments);
+            uncommittedChanges = true;
+            unrefreshedChanges = true;
+            durableCommit();
+        }
+    }
+
+    /**
+     * @return a future that completes when all changes made so far have been durably committed
+     */
+    CompletableFuture<Void> awaitCommit() {
+        synchronized (commitLock) {
+            return uncommittedChanges ? nextCommit : CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static boolean isDeleteById(Query delete) {
+        return delete instanceof TermQuery && Monitor.FIELDS.del.equals(((TermQuery) delete).getTerm().field());
+    }
+
+    // called while holding commitLock
+    private void refresh() throws IOException {
+        // the current searcher was opened before any of the unresolved deletions were applied,
+        // so it still holds every document that they deleted, other than those in unrefreshedHashes
+        List<Query> deletes = new ArrayList<>(unresolvedQueryDeletes);
+        if (unresolvedDeletedIds.isEmpty() == false) {
+            List<BytesRef> ids = new ArrayList<>(unresolvedDeletedIds.size());
+            for (String id : unresolvedDeletedIds) {
+                ids.add(new BytesRef(id));
+            }
+            deletes.add(new TermInSetQuery(Monitor.FIELDS.del, ids));
+        }
+        pendingRemovals.addAll(findHashes(deletes));
+        unresolvedDeletedIds.clear();
+        unresolvedQueryDeletes.clear();
+
+        manager.maybeRefreshBlocking();
+        for (BytesRef hash : pendingRemovals) {
+            removeFromCache(hash);
+        }
+        pendingRemovals.clear();
+        unrefreshedHashes.clear();
+        unrefreshedIds.clear();
+        unrefreshedQueryDeletes = false;
+        unrefreshedChanges = false;
+    }
+
+    // called while holding commitLock
+    private void durableCommit() throws IOException {
+        CompletableFuture<Void> committed = nextCommit;
+        nextCommit = new CompletableFuture<>();
+        try {
+            // refresh first, so that the snapshot includes all pending cache removals
+            refresh();
+            writer.commit();
+            uncommittedChanges = false;
+            if (writeSnapshots)
+                writeSnapshot();
+            committed.complete(null);
+        }
+        catch (IOException | RuntimeException e) {
+            committed.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Find which queries are already in the index, unchanged
+     *
+     * Queries that have been updated or deleted since the last refresh are never reported
+     * as unchanged, as their current state is not yet visible.
+     *
+     * @param hashes the {@link MonitorQuery#hash()} of each query, by id
+     * @return the ids of queries whose documents in the index were built from a query with the same hash
+     */
+    Set<String> findUnchanged(Map<String, BytesRef> hashes) throws IOException {
+        Set<String> unchanged = new HashSet<>();
+        synchronized (commitLock) {
+            if (unrefreshedQueryDeletes)
+                return unchanged;
+            IndexSearcher searcher = manager.acquire();
+            try {
+                for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                    Terms terms = ctx.reader().terms(Monitor.FIELDS.id);
+                    if (terms == null)
+                        continue;
+                    TermsEnum te = terms.iterator();
+                    PostingsEnum postings = null;
+                    Bits liveDocs = ctx.reader().getLiveDocs();
+                    for (Map.Entry<String, BytesRef> entry : hashes.entrySet()) {
+                        String id = entry.getKey();
+                        if (unchanged.contains(id) || unrefreshedIds.contains(id) || te.seekExact(new BytesRef(id)) == false)
+                            continue;
+                        postings = te.postings(postings, PostingsEnum.NONE);
+                        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                            if (liveDocs != null && liveDocs.get(doc) == false)
+                                continue;
+                            // every document for an id has the same root hash, so checking one is enough
+                            BinaryDocValues hashValues = ctx.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+                            if (hashValues != null && hashValues.advanceExact(doc)
+                                    && StringHelper.startsWith(hashValues.binaryValue(), entry.getValue()))
+                                unchanged.add(id);
+                            break;
+                        }
                     }
-                    for (Indexable update : updates) {
-                        this.queries.put(update.queryCacheEntry.hash, update.queryCacheEntry);
-                        writer.addDocument(update.document);
-                        if (purgeCache != null)
-                            purgeCache.put(update.queryCacheEntry.hash, update.queryCacheEntry);
+                }
+            }
+            finally {
+                manager.release(searcher);
+            }
+        }
+        return unchanged;
+    }
+
+    // Returns the hashes of all documents visible to the current searcher that match any of the queries
+    private List<BytesRef> findHashes(List<Query> deletes) throws IOException {
+        List<BytesRef> hashes = new ArrayList<>();
+        if (deletes.isEmpty())
+            return hashes;
+        IndexSearcher searcher = manager.acquire();
+        try {
+            List<Weight> weights = new ArrayList<>();
+            for (Query delete : deletes) {
+                weights.add(searcher.createWeight(searcher.rewrite(delete), false, 1f));
+            }
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                // a document may match several deletions, but must only be counted once
+                FixedBitSet deleted = new FixedBitSet(ctx.reader().maxDoc());
+                for (Weight weight : weights) {
+                    Scorer scorer = weight.scorer(ctx);
+                    if (scorer != null)
+                        deleted.or(scorer.iterator());
+                }
+                BinaryDocValues hashValues = ctx.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+                if (hashValues == null)
+                    continue;
+                Bits liveDocs = ctx.reader().getLiveDocs();
+                DocIdSetIterator it = new BitSetIterator(deleted, deleted.cardinality());
+                for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                    if ((liveDocs == null || liveDocs.get(doc)) && hashValues.advanceExact(doc))
+                        hashes.add(BytesRef.deepCopyOf(hashValues.binaryValue()));
+                }
+            }
+        }
+        finally {
+            manager.release(searcher);
+        }
+        return hashes;
+    }
+
+    // called while holding commitLock
+    private void addToCache(QueryCacheEntry entry) {
+        // If not every query is cached, then we can't always tell if a hash is already in
+        // use, and may later remove a hash that is still shared.  This just means that the
+        // query will be reloaded when it is next selected.
+        if (queries.get(entry.hash) != null)
+            sharedHashes.merge(BytesRef.deepCopyOf(entry.hash), 1, Integer::sum);
+        queries.put(entry);
+    }
+
+    // called while holding commitLock
+    private void removeFromCache(BytesRef hash) {
+        Integer shared = sharedHashes.get(hash);
+        if (shared == null) {
+            // entries may be held by query index segments, which must know to stop using them
+            QueryCacheEntry entry = SegmentQueries.holdsEntries(queries) ? queries.get(hash) : null;
+            queries.remove(hash);
+            if (entry != null)
+                entry.evicted = true;
+        }
+        else if (shared == 1)
+            sharedHashes.remove(hash);
+        else
+            sharedHashes.put(hash, shared - 1);
+    }
+
+    interface TermSelector {
+
+        /**
+         * @param term       the term, which must not be retained
+         * @param queryCount the number of query index documents containing the term
+         * @return {@code true} if the term should be selected
+         */
+        boolean select(Term term, int queryCount);
+    }
+
+    /**
+     * Find the terms in the query index that are selected by a TermSelector
+     * @param excludeFields fields that should not be searched
+     */
+    List<Term> findTerms(Set<String> excludeFields, TermSelector selector) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            List<Term> selected = new ArrayList<>();
+            for (String field : MultiFields.getIndexedFields(reader)) {
+                if (excludeFields.contains(field))
+                    continue;
+                Terms terms = MultiFields.getTerms(reader, field);
+                if (terms == null)
+                    continue;
+                TermsEnum te = terms.iterator();
+                BytesRef term;
+                while ((term = te.next()) != null) {
+                    if (selector.select(new Term(field, term), te.docFreq()))
+                        selected.add(new Term(field, BytesRef.deepCopyOf(term)));
+                }
+            }
+            return selected;
+        }
+        finally {
+            manager.release(searcher);
+        }
+    }
+
+    interface TermQueriesVisitor {
+
+        /**
+         * @param term     the term, which must not be retained
+         * @param queryIds the ids of the live queries in a segment that are indexed under the term
+         */
+        void visit(Term term, Set<String> queryIds);
+    }
+
+    /**
+     * Pass each term in the query index to a TermQueriesVisitor, with the ids of the queries
+     * indexed under it
+     *
+     * The visitor is called once for each segment containing the term.
+     *
+     * @param excludeFields fields that should not be visited
+     */
+    void visitTerms(Set<String> excludeFields, TermQueriesVisitor visitor) throws IOException {
+        IndexSearcher searcher = manager.acquire();
+        try {
+            Set<String> queryIds = new HashSet<>();
+            PostingsEnum postings = null;
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                LeafReader reader = ctx.reader();
+                SortedDocValues idValues = reader.getSortedDocValues(Monitor.FIELDS.id);
+                if (idValues == null)
+                    continue;
+                // decode each id once per segment, as queries are indexed under many terms
+                String[] ids = new String[idValues.getValueCount()];
+                int[] docOrds = new int[reader.maxDoc()];
+                Arrays.fill(docOrds, -1);
+                for (int doc = idValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = idValues.nextDoc()) {
+                    docOrds[doc] = idValues.ordValue();
+                }
+                Bits liveDocs = reader.getLiveDocs();
+                for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+                    if (excludeFields.contains(fieldInfo.name))
+                        continue;
+                    Terms terms = reader.terms(fieldInfo.name);
+                    if (terms == null)
+                        continue;
+                    TermsEnum te = terms.iterator();
+                    BytesRef term;
+                    while ((term = te.next()) != null) {
+                        queryIds.clear();
+                        postings = te.postings(postings, PostingsEnum.NONE);
+                        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                            int ord = docOrds[doc];
+                            if (ord == -1 || (liveDocs != null && liveDocs.get(doc) == false))
+                                continue;
+                            if (ids[ord] == null)
+                                ids[ord] = idValues.lookupOrd(ord).utf8ToString();
+                            queryIds.add(ids[ord]);
+                        }
+                        if (queryIds.isEmpty() == false)
+                            visitor.visit(new Term(fieldInfo.name, term), queryIds);
                     }
                 }
-                writer.commit();
-                manager.maybeRefresh();
-            } finally {
-                purgeLock.readLock().unlock();
             }
         }
+        finally {
+            manager.release(searcher);
+        }
     }
 
     interface QueryBuilder {
         Query buildQuery(QueryTermFilter termFilter) throws IOException;
     }
 
+    /**
+     * Pass every query in the index to a QueryCollector
+     *
+     * Queries that are not in the query cache are passed as {@code null}, and are not
+     * loaded.
+     */
     long scan(QueryCollector matcher) throws IOException {
-        return search(new MatchAllDocsQuery(), matcher);
+        return search(termFilter -> new MatchAllDocsQuery(), matcher, null, false);
+    }
+
+    /**
+     * Pass each query selected by a query to a QueryCollector, without loading queries that
+     * are missing from the query cache
+     *
+     * Use this for lookups that only need the stored query data, so that they do not parse
+     * queries, evict cached entries or count as cache hits or misses.
+     */
+    long scan(final Query query, QueryCollector matcher) throws IOException {
+        return search(termFilter -> query, matcher, null, false);
     }
 
     long search(final Query query, QueryCollector matcher) throws IOException {
@@ -93,9 +671,26 @@ class QueryIndex {
     }
 
     long search(QueryBuilder queryBuilder, QueryCollector matcher) throws IOException {
+        return search(queryBuilder, matcher, null);
+    }
+
+    /**
+     * Run a presearcher query over the query index, passing each selected query to a QueryCollector
+     *
+     * If an ExecutorService is supplied, then each segment of the query index is searched
+     * on a separate task, and calls to the QueryCollector are synchronized.
+     *
+     * @return the time taken to build the presearcher query, in nanoseconds
+     */
+    long search(QueryBuilder queryBuilder, QueryCollector matcher, ExecutorService executor) throws IOException {
+        return search(queryBuilder, matcher, executor, true);
+    }
+
+    private long search(QueryBuilder queryBuilder, QueryCollector matcher, ExecutorService executor,
+                        boolean loadQueries) throws IOException {
         IndexSearcher searcher = null;
         try {
-            Map<BytesRef, QueryCacheEntry> queries;
+            QueryCache queries;
 
             purgeLock.readLock().lock();
             try {
@@ -106,11 +701,16 @@ class QueryIndex {
                 purgeLock.readLock().unlock();
             }
 
-            MonitorQueryCollector collector = new MonitorQueryCollector(queries, matcher);
             long buildTime = System.nanoTime();
             Query query = queryBuilder.buildQuery(termFilters.get(searcher.getIndexReader().getReaderCacheHelper().getKey()));
             buildTime = System.nanoTime() - buildTime;
-            searcher.search(query, collector);
+            QueryLoader loader = loadQueries ? this.loader : null;
+            if (executor == null || searcher.getIndexReader().leaves().size() < 2) {
+                searcher.search(query, new MonitorQueryCollector(queries, loader, matcher));
+            }
+            else {
+                searchConcurrently(searcher, query, queries, loader, SynchronizedQueryCollector.wrap(matcher), executor);
+            }
             return buildTime;
         }
         finally {
@@ -120,18 +720,185 @@ class QueryIndex {
         }
     }
     
+    private void searchConcurrently(IndexSearcher searcher, Query query, QueryCache queries, QueryLoader loader,
+                                           QueryCollector matcher, ExecutorService executor) throws IOException {
+        Weight weight = searcher.createWeight(searcher.rewrite(query), matcher.needsScores(), 1f);
+        List<SearchTask> tasks = new ArrayList<>();
+        for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+            tasks.add(() -> searchLeaf(ctx, weight, new MonitorQueryCollector(queries, loader, matcher)));
+        }
+        runAll(tasks, executor, "Interrupted during presearcher search");
+    }
+
+    private interface SearchTask {
+        void run() throws IOException;
+    }
+
+    /*
+     * Runs tasks on an executor, and waits for them all to finish
+     *
+     * The tasks use the caller's searcher, so this does not return until every task has either
+     * completed or been skipped, even if one of them fails or the caller is interrupted.  Tasks
+     * that have not started when a failure occurs are skipped.
+     */
+    private static void runAll(List<SearchTask> tasks, ExecutorService executor, String interruptMessage) throws IOException {
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (SearchTask task : tasks) {
+                futures.add(executor.submit(() -> {
+                    if (aborted.get())
+                        return null;
+                    try {
+                        task.run();
+                    }
+                    catch (Throwable t) {
+                        aborted.set(true);
+                        throw t;
+                    }
+                    return null;
+                }));
+            }
+        }
+        catch (RuntimeException e) {
+            aborted.set(true);
+            waitUninterruptibly(futures);
+            throw e;
+        }
+
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                aborted.set(true);
+                interrupted = true;
+                waitUninterruptibly(futures);
+                break;
+            }
+            catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException(interruptMessage);
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new IOException(failure);
+    }
+
+    private static void waitUninterruptibly(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static final int SCAN_SLICE_SIZE = 8192;
+
+    /**
+     * Pass every query in the index to a QueryCollector, scanning slices of the index concurrently
+     *
+     * Queries that are not in the query cache are passed as {@code null}, and are not loaded.
+     * Calls to the QueryCollector are not synchronized, so it must be safe for concurrent use;
+     * the DataValues passed to it are only valid for the duration of the call.
+     */
+    void scanConcurrently(QueryCollector collector, ExecutorService executor) throws IOException {
+        IndexSearcher searcher = null;
+        try {
+            QueryCache queries;
+            purgeLock.readLock().lock();
+            try {
+                searcher = manager.acquire();
+                queries = this.queries;
+            }
+            finally {
+                purgeLock.readLock().unlock();
+            }
+
+            // split segments into slices, so that large segments are spread over several threads
+            List<SearchTask> tasks = new ArrayList<>();
+            for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+                int maxDoc = ctx.reader().maxDoc();
+                for (int start = 0; start < maxDoc; start += SCAN_SLICE_SIZE) {
+                    int sliceStart = start;
+                    int sliceEnd = Math.min(maxDoc, start + SCAN_SLICE_SIZE);
+                    tasks.add(() -> scanSlice(ctx.reader(), sliceStart, sliceEnd, queries, collector));
+                }
+            }
+            runAll(tasks, executor, "Interrupted during query index scan");
+        }
+        finally {
+            if (searcher != null) {
+                manager.release(searcher);
+            }
+        }
+    }
+
+    private static void scanSlice(LeafReader reader, int start, int end, QueryCache queries,
+                                  QueryCollector collector) throws IOException {
+        DataValues dataValues = new DataValues();
+        dataValues.hash = reader.getBinaryDocValues(Monitor.FIELDS.hash);
+        dataValues.id = reader.getSortedDocValues(Monitor.FIELDS.id);
+        dataValues.mq = reader.getBinaryDocValues(Monitor.FIELDS.mq);
+        if (dataValues.hash == null || dataValues.id == null)
+            return;
+        Bits liveDocs = reader.getLiveDocs();
+        for (int doc = start; doc < end; doc++) {
+            if (liveDocs != null && liveDocs.get(doc) == false)
+                continue;
+            dataValues.advance(doc);
+            QueryCacheEntry query = queries.get(dataValues.hash.binaryValue());
+            collector.matchQuery(dataValues.id.binaryValue().utf8ToString(), query, dataValues);
+        }
+    }
+
+    private static void searchLeaf(LeafReaderContext ctx, Weight weight, MonitorQueryCollector collector) throws IOException {
+        LeafCollector leafCollector = collector.getLeafCollector(ctx);
+        BulkScorer scorer = weight.bulkScorer(ctx);
+        if (scorer != null) {
+            scorer.score(leafCollector, ctx.reader().getLiveDocs());
+        }
+    }
+
     interface CachePopulator {
-        void populateCacheWithIndex(Map<BytesRef, QueryCacheEntry> newCache) throws IOException;
+        void populateCacheWithIndex(QueryCache newCache) throws IOException;
     }
     
     /**
-     * Remove unused queries from the query cache.
+     * Rebuild the query cache from the query index.
      *
-     * This is normally called from a background thread at a rate set by configurePurgeFrequency().
+     * Entries for deleted queries are removed from the cache as each deletion is committed,
+     * so this is only needed to populate the cache on startup, or to discard queries loaded
+     * into a lazily-populated cache that are no longer being used.
      *
      * @throws IOException on IO errors
      */
-    synchronized void purgeCache(CachePopulator populator) throws IOException {
+    void purgeCache(CachePopulator populator) throws IOException {
 
         /*
             Note on implementation
@@ -140,38 +907,80 @@ class QueryIndex {
             for each query in the index.  When the scan is complete, the old query cache is swapped
             for the new, allowing it to be garbage-collected.
 
-            In order to not drop cached queries that have been added while a purge is ongoing,
-            we use a ReadWriteLock to guard the creation and removal of an update log.  Commits take
-            the read lock.  If the update log has been created, then a purge is ongoing, and queries
-            are added to the update log within the read lock guard.
-
-            The purge takes the write lock when creating the update log, and then when swapping out
-            the old query cache.  Within the second write lock guard, the contents of the update log
-            are added to the new query cache, and the update log itself is removed.
+            Commits are blocked while the purge is running, so that neither new queries nor the
+            removal of deleted queries are missed from the new cache.  The swap itself is guarded
+            by the purgeLock, so that a search always sees a query cache matching its searcher.
          */
 
-        final ConcurrentMap<BytesRef, QueryCacheEntry> newCache = new ConcurrentHashMap<>();
+        synchronized (commitLock) {
+            if (unrefreshedChanges)
+                refresh();
+            final QueryCache newCache = cacheFactory.get();
+            populator.populateCacheWithIndex(newCache);
+            Map<BytesRef, Integer> newSharedHashes = countSharedHashes();
 
-        purgeLock.writeLock().lock();
-        try {
-            purgeCache = new ConcurrentHashMap<>();
-        }
-        finally {
-            purgeLock.writeLock().unlock();
+            purgeLock.writeLock().lock();
+            try {
+                queries = newCache;
+                sharedHashes.clear();
+                sharedHashes.putAll(newSharedHashes);
+            }
+            finally {
+                purgeLock.writeLock().unlock();
+            }
+            // a snapshot must match the last commit, so wait for the next commit if there are uncommitted changes
+            if (writeSnapshots && uncommittedChanges == false)
+                writeSnapshot();
         }
-        
-        populator.populateCacheWithIndex(newCache);
+    }
 
-        purgeLock.writeLock().lock();
-        try {
-            newCache.putAll(purgeCache);
-            purgeCache = null;
-            queries = newCache;
-        }
-        finally {
-            purgeLock.writeLock().unlock();
+    /**
+     * Write a {@link QueryCacheSnapshot} on each commit and purge
+     */
+    void enableSnapshots() {
+        this.writeSnapshots = true;
+    }
+
+    // called while holding commitLock
+    private void writeSnapshot() throws IOException {
+        Directory directory = writer.getDirectory();
+        long generation = SegmentInfos.getLastCommitGeneration(directory);
+        if (generation >= 0)
+            new QueryCacheSnapshot(generation, sharedHashes).write(directory);
+    }
+
+    /**
+     * Restore the shared hash counts from a snapshot of the latest commit
+     *
+     * The query cache is left empty, and queries will be loaded as they are selected,
+     * so this can only be used if queries are stored.
+     *
+     * @return {@code true} if a valid snapshot was found
+     */
+    boolean restoreSnapshot() throws IOException {
+        if (loader == null)
+            throw new IllegalStateException("Cannot restore a snapshot if queries are not stored");
+        synchronized (commitLock) {
+            QueryCacheSnapshot snapshot = QueryCacheSnapshot.read(writer.getDirectory());
+            if (snapshot == null)
+                return false;
+            sharedHashes.clear();
+            sharedHashes.putAll(snapshot.sharedHashes);
+            return true;
         }
     }
+
+    // Counts the extra references to each hash that is shared between documents in the index
+    private Map<BytesRef, Integer> countSharedHashes() throws IOException {
+        Map<BytesRef, Integer> counts = new HashMap<>();
+        BytesRefHash seen = new BytesRefHash();
+        scan((id, query, dataValues) -> {
+            BytesRef hash = dataValues.hash.binaryValue();
+            if (seen.add(hash) < 0)
+                counts.merge(BytesRef.deepCopyOf(hash), 1, Integer::sum);
+        });
+        return counts;
+    }
     
     
     // ---------------------------------------------
@@ -194,28 +1003,121 @@ class QueryIndex {
         return queries.size();
     }
 
-    void deleteDocuments(Term term) throws IOException {
-        writer.deleteDocuments(term);
+    long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    long cacheMisses() {
+        return cacheMisses.sum();
     }
 
-    void deleteDocuments(Query query) throws IOException {
-        writer.deleteDocuments(query);            
+    // Deletions are applied on the next call to commit()
+    void deleteDocuments(Term term) {
+        deleteDocuments(new TermQuery(term));
+    }
+
+    void deleteDocuments(Query query) {
+        synchronized (pendingDeletes) {
+            pendingDeletes.add(query);
+        }
     }
 
     interface QueryCollector {
 
         void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException;
 
+        /**
+         * Called if a query selected by the presearcher could not be loaded into the query cache
+         */
+        default void loadError(String id, Exception e) throws IOException {
+            throw new IOException("Error loading query " + id, e);
+        }
+
         default boolean needsScores() {
             return false;
         }
 
     }
 
+    /**
+     * A QueryCollector that only uses the query and metadata of each selected entry, so that
+     * queries can be passed to it without building a QueryCacheEntry
+     */
+    interface QueryAndMetadataCollector extends QueryCollector {
+
+        void matchQuery(String id, Query matchQuery, Map<String, String> metadata, DataValues dataValues) throws IOException;
+
+        @Override
+        default void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException {
+            if (query == null)
+                matchQuery(id, null, null, dataValues);
+            else
+                matchQuery(id, query.matchQuery, query.metadata, dataValues);
+        }
+    }
+
+    /**
+     * Parses the stored query for a document in the query index, on a query cache miss
+     */
+    interface QueryLoader {
+
+        /**
+         * @param dataValues the doc values of the current query index document
+         * @return all the cache entries decomposed from the document's query
+         */
+        Iterable<QueryCacheEntry> load(DataValues dataValues) throws Exception;
+
+    }
+
     // ---------------------------------------------
     //  Helper classes...
     // ---------------------------------------------
 
+    // Serializes calls to a QueryCollector that is shared between concurrent segment searches
+    private static class SynchronizedQueryCollector implements QueryCollector {
+
+        final QueryCollector in;
+
+        SynchronizedQueryCollector(QueryCollector in) {
+            this.in = in;
+        }
+
+        static QueryCollector wrap(QueryCollector in) {
+            if (in instanceof QueryAndMetadataCollector)
+                return new SynchronizedQueryAndMetadataCollector((QueryAndMetadataCollector) in);
+            return new SynchronizedQueryCollector(in);
+        }
+
+        @Override
+        public synchronized void matchQuery(String id, QueryCacheEntry query, DataValues dataValues) throws IOException {
+            in.matchQuery(id, query, dataValues);
+        }
+
+        @Override
+        public synchronized void loadError(String id, Exception e) throws IOException {
+            in.loadError(id, e);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return in.needsScores();
+        }
+    }
+
+    private static final class SynchronizedQueryAndMetadataCollector extends SynchronizedQueryCollector
+            implements QueryAndMetadataCollector {
+
+        SynchronizedQueryAndMetadataCollector(QueryAndMetadataCollector in) {
+            super(in);
+        }
+
+        @Override
+        public synchronized void matchQuery(String id, Query matchQuery, Map<String, String> metadata,
+                                            DataValues dataValues) throws IOException {
+            ((QueryAndMetadataCollector) in).matchQuery(id, matchQuery, metadata, dataValues);
+        }
+    }
+
     static final class DataValues {
         public BinaryDocValues hash;
         public SortedDocValues id;
@@ -233,18 +1135,111 @@ class QueryIndex {
         }
     }
 
+    /**
+     * The query ids and cache entries of a segment of the query index, decoded as queries
+     * are selected by the presearcher
+     *
+     * Ids are held by ordinal, and cache entries by docid.  Entries are only valid for the
+     * query cache they were read from.  They are not held at all for a bounded cache, so that
+     * evicted queries can be freed, or for a cache that builds entries on demand, which would
+     * otherwise have an entry object pinned for every selected query.  Entries of documents
+     * that a refresh finds deleted are released, and an entry removed from the query cache is
+     * not returned again.  Concurrent searches may decode the same value twice, but entries
+     * and ids are immutable, so no locking is needed.
+     */
+    static final class SegmentQueries {
+
+        final QueryCache cache;
+        private final String[] ids;
+        private final QueryCacheEntry[] entries;
+
+        /* The live docs of the newest reader whose deleted documents were released.  Only used
+           by the thread building new searchers */
+        private Bits releasedLiveDocs;
+
+        SegmentQueries(QueryCache cache, LeafReader reader) throws IOException {
+            SortedDocValues idValues = reader.getSortedDocValues(Monitor.FIELDS.id);
+            this.cache = cache;
+            this.ids = new String[idValues == null ? 0 : idValues.getValueCount()];
+            this.entries = holdsEntries(cache) ? new QueryCacheEntry[reader.maxDoc()] : null;
+        }
+
+        static boolean holdsEntries(QueryCache cache) {
+            return cache.isBounded() == false && cache.buildsEntries() == false;
+        }
+
+        /**
+         * @param idValues the id doc values, positioned on the current document
+         * @return the id of the current document
+         */
+        String id(SortedDocValues idValues) throws IOException {
+            int ord = idValues.ordValue();
+            String id = ids[ord];
+            if (id == null) {
+                id = idValues.lookupOrd(ord).utf8ToString();
+                ids[ord] = id;
+            }
+            return id;
+        }
+
+        boolean holdsEntries() {
+            return entries != null;
+        }
+
+        QueryCacheEntry entry(int doc) {
+            if (entries == null)
+                return null;
+            QueryCacheEntry entry = entries[doc];
+            if (entry != null && entry.evicted) {
+                entries[doc] = null;
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+         * Release the entries of documents that are deleted in a newer reader of the segment
+         *
+         * Searches of older readers may still hold entries again for deleted documents, which
+         * are released when the segment next has documents deleted.
+         */
+        void releaseDeleted(Bits liveDocs) {
+            if (entries == null || liveDocs == null || liveDocs == releasedLiveDocs)
+                return;
+            for (int doc = 0; doc < entries.length; doc++) {
+                if (entries[doc] != null && liveDocs.get(doc) == false)
+                    entries[doc] = null;
+            }
+            releasedLiveDocs = liveDocs;
+        }
+
+        void setEntry(int doc, QueryCacheEntry entry) {
+            if (entries != null)
+                entries[doc] = entry;
+        }
+    }
+
     /**
      * A Collector that decodes the stored query for each document hit.
+     *
+     * If a QueryLoader is supplied, then queries missing from the query cache are
+     * parsed and added to it.
      */
-    static final class MonitorQueryCollector extends SimpleCollector {
+    final class MonitorQueryCollector extends SimpleCollector implements QueryCache.EntryConsumer {
 
-        private final Map<BytesRef, QueryCacheEntry> queries;
+        private final QueryCache queries;
+        private final QueryLoader loader;
         private final QueryCollector matcher;
+        private final QueryAndMetadataCollector entryFreeMatcher;
         private final DataValues dataValues = new DataValues();
+        private SegmentQueries segment;
+        private String currentId;
 
-        public MonitorQueryCollector(Map<BytesRef, QueryCacheEntry> queries, QueryCollector matcher) {
+        public MonitorQueryCollector(QueryCache queries, QueryLoader loader, QueryCollector matcher) {
             this.queries = queries;
+            this.loader = loader;
             this.matcher = matcher;
+            this.entryFreeMatcher = matcher instanceof QueryAndMetadataCollector ? (QueryAndMetadataCollector) matcher : null;
         }
 
         @Override
@@ -255,17 +1250,80 @@ class QueryIndex {
         @Override
         public void collect(int doc) throws IOException {
             dataValues.advance(doc);
-            BytesRef hash = dataValues.hash.binaryValue();
-            BytesRef id = dataValues.id.binaryValue();
-            QueryCacheEntry query = queries.get(hash);
-            matcher.matchQuery(id.utf8ToString(), query, dataValues);
+            QueryCacheEntry query = segment.entry(doc);
+            if (query == null) {
+                if (entryFreeMatcher != null && segment.holdsEntries() == false) {
+                    // pass the query straight to the matcher, so the cache need not build an entry for it
+                    currentId = segment.id(dataValues.id);
+                    if (queries.get(dataValues.hash.binaryValue(), this)) {
+                        if (loader != null)
+                            cacheHits.increment();
+                        return;
+                    }
+                }
+                else {
+                    query = queries.get(dataValues.hash.binaryValue());
+                    if (query != null)
+                        segment.setEntry(doc, query);
+                }
+            }
+            if (loader != null) {
+                if (query != null)
+                    cacheHits.increment();
+                else
+                    cacheMisses.increment();
+            }
+            if (query == null && loader != null && dataValues.mq != null) {
+                try {
+                    query = load(dataValues.hash.binaryValue());
+                    if (query != null)
+                        segment.setEntry(doc, query);
+                }
+                catch (Exception e) {
+                    matcher.loadError(segment.id(dataValues.id), e);
+                    return;
+                }
+            }
+            matcher.matchQuery(segment.id(dataValues.id), query, dataValues);
+        }
+
+        @Override
+        public void accept(Query matchQuery, Map<String, String> metadata) throws IOException {
+            entryFreeMatcher.matchQuery(currentId, matchQuery, metadata, dataValues);
+        }
+
+        private QueryCacheEntry load(BytesRef hash) throws Exception {
+            QueryCacheEntry query = null;
+            for (QueryCacheEntry entry : loader.load(dataValues)) {
+                queries.put(entry);
+                if (entry.hash.bytesEquals(hash))
+                    query = entry;
+            }
+            return query;
         }
 
         @Override
         public void doSetNextReader(LeafReaderContext context) throws IOException {
-            this.dataValues.hash = context.reader().getBinaryDocValues(Monitor.FIELDS.hash);
-            this.dataValues.id = context.reader().getSortedDocValues(Monitor.FIELDS.id);
-            this.dataValues.mq = context.reader().getBinaryDocValues(Monitor.FIELDS.mq);
+            LeafReader reader = context.reader();
+            this.dataValues.hash = reader.getBinaryDocValues(Monitor.FIELDS.hash);
+            this.dataValues.id = reader.getSortedDocValues(Monitor.FIELDS.id);
+            this.dataValues.mq = reader.getBinaryDocValues(Monitor.FIELDS.mq);
+            this.segment = getSegmentQueries(reader);
+        }
+
+        // segment docs never change, and a hash always maps to the same entry, so the decoded
+        // values can be shared by all searches of a segment that use the same query cache
+        private SegmentQueries getSegmentQueries(LeafReader reader) throws IOException {
+            IndexReader.CacheHelper helper = reader.getCoreCacheHelper();
+            if (helper == null)
+                return new SegmentQueries(queries, reader);
+            SegmentQueries segment = segmentQueries.get(helper.getKey());
+            if (segment == null || segment.cache != queries) {
+                segment = new SegmentQueries(queries, reader);
+                if (segmentQueries.put(helper.getKey(), segment) == null)
+                    helper.addClosedListener(segmentQueries::remove);
+            }
+            return segment;
         }
 
         @Override
@@ -0,0 +1,288 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Builds a complete query index offline, ready to be opened by a Monitor
+ *
+ * Queries are parsed, decomposed and indexed by a pool of threads, each writing to its
+ * own IndexWriter in a separate partition directory, so that no locks are shared between
+ * threads.  The partitions are then merged into the target directory with
+ * {@link IndexWriter#addIndexes(Directory...)}, and a query cache snapshot is written
+ * for the merged index.  A Monitor opened on the target directory with
+ * {@link QueryIndexConfiguration#setQueryCacheSnapshots(boolean)} enabled starts without
+ * parsing any queries.
+ *
+ * Use as follows:
+ * <pre class="prettyprint">
+ *     QueryIndexBuilder builder = new QueryIndexBuilder(parser, presearcher, config)
+ *         .setThreads(8)
+ *         .setWorkingDirectory(Paths.get("/tmp/luwak-build"));
+ *     Monitor.BulkLoadResult result = builder.build(queries, FSDirectory.open(indexPath));
+ *     Monitor monitor = new Monitor(parser, presearcher, FSDirectory.open(indexPath), config);
+ * </pre>
+ *
+ * The parser, presearcher and configuration must match those used to open the Monitor,
+ * and the MonitorQueryParser and Presearcher must be thread-safe.  Queries must be stored,
+ * see {@link QueryIndexConfiguration#storeQueries()}.
+ */
+public class QueryIndexBuilder {
+
+    private static final int BATCH_SIZE = 500;
+    private static final double PARTITION_RAM_BUFFER_MB = 128;
+
+    private final MonitorQueryParser queryParser;
+    private final Presearcher presearcher;
+    private final QueryDecomposer decomposer;
+    private final QueryIndexConfiguration configuration;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path workingDirectory;
+
+    /**
+     * Create a new QueryIndexBuilder
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     * @param configuration the configuration of the Monitor that will open the index
+     */
+    public QueryIndexBuilder(MonitorQueryParser queryParser, Presearcher presearcher, QueryIndexConfiguration configuration) {
+        if (configuration.storeQueries() == false)
+            throw new IllegalArgumentException("A query index can only be built offline if queries are stored");
+        this.queryParser = queryParser;
+        this.presearcher = presearcher;
+        this.decomposer = configuration.getQueryDecomposer();
+        this.configuration = configuration;
+    }
+
+    /**
+     * Create a new QueryIndexBuilder, using the default configuration
+     * @param queryParser the query parser to use
+     * @param presearcher the presearcher to use
+     */
+    public QueryIndexBuilder(MonitorQueryParser queryParser, Presearcher presearcher) {
+        this(queryParser, presearcher, new QueryIndexConfiguration());
+    }
+
+    /**
+     * Set the number of threads, and so index partitions, to use
+     *
+     * Defaults to the number of available processors
+     *
+     * @param threads the number of threads
+     * @return the current builder
+     */
+    public QueryIndexBuilder setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is required");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set the filesystem directory in which to build the index partitions
+     *
+     * Partitions are deleted once they have been merged into the target directory.  If no
+     * working directory is set, partitions are built in a temporary directory.
+     *
+     * @param workingDirectory the working directory
+     * @return the current builder
+     */
+    public QueryIndexBuilder setWorkingDirectory(Path workingDirectory) {
+        this.workingDirectory = workingDirectory;
+        return this;
+    }
+
+    /**
+     * Build a query index in a directory, replacing any index already there
+     *
+     * Queries that cannot be parsed, and queries with an id that has already been seen,
+     * are reported in the result and left out of the index.
+     *
+     * @param queries the queries to index
+     * @param target the directory to build the index in
+     * @return the number of queries indexed, any errors, and the time taken
+     * @throws IOException on IO errors
+     */
+    public Monitor.BulkLoadResult build(Stream<MonitorQuery> queries, Directory target) throws IOException {
+
+        long start = System.nanoTime();
+        Path root = workingDirectory == null ? Files.createTempDirectory("luwak") : workingDirectory;
+        List<Path> partitionPaths = new ArrayList<>();
+        List<Directory> partitions = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                Path path = root.resolve("partition_" + i);
+                partitionPaths.add(path);
+                partitions.add(FSDirectory.open(path));
+            }
+
+            List<QueryError> errors = Collections.synchronizedList(new ArrayList<>());
+            long loaded = buildPartitions(queries, partitions, errors);
+
+            try (IndexWriter writer = new IndexWriter(target, Monitor.defaultIndexWriterConfig(IndexWriterConfig.OpenMode.CREATE, configuration))) {
+                writer.addIndexes(partitions.toArray(new Directory[0]));
+                // close() waits for any merges triggered by addIndexes, and commits them
+            }
+            writeSnapshot(target);
+
+            return new Monitor.BulkLoadResult(loaded, new ArrayList<>(errors), System.nanoTime() - start);
+        }
+        finally {
+            IOUtils.close(partitions);
+            IOUtils.rm(partitionPaths.toArray(new Path[0]));
+            if (workingDirectory == null)
+                IOUtils.rm(root);
+        }
+    }
+
+    private long buildPartitions(Stream<MonitorQuery> queries, List<Directory> partitions, List<QueryError> errors) throws IOException {
+
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        LongAdder loaded = new LongAdder();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        BlockingQueue<List<MonitorQuery>> batches = new ArrayBlockingQueue<>(threads * 2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (Directory partition : partitions) {
+                workers.add(executor.submit(() -> {
+                    IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer())
+                            .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                            .setRAMBufferSizeMB(PARTITION_RAM_BUFFER_MB);
+                    boolean finished = false;
+                    try (IndexWriter writer = new IndexWriter(partition, iwc)) {
+                        List<MonitorQuery> batch;
+                        // an empty batch marks the end of the queries
+                        while ((batch = batches.take()).isEmpty() == false) {
+                            // keep draining after a failure elsewhere, so that the producer is not blocked
+                            if (failure.get() == null)
+                                loaded.add(indexBatch(writer, batch, ids, errors));
+                        }
+                        finished = true;
+                    }
+                    catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        while (finished == false && batches.take().isEmpty() == false) { }
+                    }
+                    return null;
+                }));
+            }
+
+            Iterator<MonitorQuery> it = queries.iterator();
+            while (it.hasNext() && failure.get() == null) {
+                List<MonitorQuery> batch = new ArrayList<>(BATCH_SIZE);
+                while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                    batch.add(it.next());
+                }
+                batches.put(batch);
+            }
+            for (int i = 0; i < threads; i++) {
+                batches.put(Collections.emptyList());
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building query index");
+        }
+        catch (ExecutionException e) {
+            failure.compareAndSet(null, new IOException(e.getCause()));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e != null)
+            throw (RuntimeException) e;
+        return loaded.sum();
+    }
+
+    // Parses and indexes a batch of queries, returning the number added
+    private int indexBatch(IndexWriter writer, List<MonitorQuery> batch, Set<String> ids, List<QueryError> errors) throws IOException {
+        int count = 0;
+        for (MonitorQuery query : batch) {
+            if (ids.add(query.getId()) == false) {
+                errors.add(new QueryError(query, new IllegalArgumentException("Duplicate query id: " + query.getId())));
+                continue;
+            }
+            List<Document> docs = new ArrayList<>();
+            try {
+                for (QueryCacheEntry entry : Monitor.decomposeQuery(queryParser, decomposer, query)) {
+                    docs.add(Monitor.buildIndexableQuery(presearcher, true, query.getId(), query, entry));
+                }
+            }
+            catch (Exception e) {
+                errors.add(new QueryError(query, e));
+                continue;
+            }
+            writer.addDocuments(docs);
+            count++;
+        }
+        return count;
+    }
+
+    // Counts the query hashes shared between documents, and writes them as a snapshot of the last commit
+    private static void writeSnapshot(Directory target) throws IOException {
+        Map<BytesRef, Integer> sharedHashes = new HashMap<>();
+        BytesRefHash seen = new BytesRefHash();
+        try (DirectoryReader reader = DirectoryReader.open(target)) {
+            for (LeafReaderContext ctx : reader.leaves()) {
+                BinaryDocValues hashes = ctx.reader().getBinaryDocValues(Monitor.FIELDS.hash);
+                if (hashes == null)
+                    continue;
+                Bits liveDocs = ctx.reader().getLiveDocs();
+                int doc;
+                while ((doc = hashes.nextDoc()) != BinaryDocValues.NO_MORE_DOCS) {
+                    if (liveDocs != null && liveDocs.get(doc) == false)
+                        continue;
+                    BytesRef hash = hashes.binaryValue();
+                    if (seen.add(hash) < 0)
+                        sharedHashes.merge(BytesRef.deepCopyOf(hash), 1, Integer::sum);
+                }
+            }
+            long generation = reader.getIndexCommit().getGeneration();
+            new QueryCacheSnapshot(generation, sharedHashes).write(target);
+        }
+    }
+
+}
@@ -16,7 +16,15 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import uk.co.flax.luwak.termextractor.weights.DocumentTermStatistics;
+import uk.co.flax.luwak.termextractor.weights.SelectivityWeightNorm;
 
 /**
  * Encapsulates various configuration settings for a Monitor's query index
@@ -24,10 +32,30 @@ import java.util.concurrent.TimeUnit;
 public class QueryIndexConfiguration {
 
     private int queryUpdateBufferSize = 5000;
-    private long purgeFrequency = 5;
+    private long purgeFrequency = 0;
     private TimeUnit purgeFrequencyUnits = TimeUnit.MINUTES;
     private QueryDecomposer queryDecomposer = new QueryDecomposer();
     private boolean storeQueries = true;
+    private ExecutorService presearcherExecutor = null;
+    private boolean collectQueryStatistics = false;
+    private boolean reuseIndexBuffers = false;
+    private Supplier<QueryCache> queryCacheFactory = ConcurrentQueryCache::new;
+    private boolean lazyQueryParsing = false;
+    private boolean queryCacheSnapshots = false;
+    private ExecutorService warmupExecutor = null;
+    private Consumer<QueryError> warmupErrorHandler = null;
+    private long commitInterval = 0;
+    private TimeUnit commitIntervalUnits = TimeUnit.SECONDS;
+    private long refreshInterval = 0;
+    private TimeUnit refreshIntervalUnits = TimeUnit.MILLISECONDS;
+    private boolean skipUnchangedQueries = false;
+    private MergePolicy mergePolicy = null;
+    private int termFilterBitsPerTerm = 0;
+    private DocumentTermStatistics documentTermStatistics = null;
+    private int documentSampleInterval = 1;
+    private double hotQueryCandidateRate = 0;
+    private long hotQueryReindexInterval = 0;
+    private TimeUnit hotQueryReindexIntervalUnits = TimeUnit.MINUTES;
 
     /**
      * Set the QueryDecomposer to be used by the Monitor
@@ -48,7 +76,13 @@ public class QueryIndexConfiguration {
 
     /**
      * Set the frequency with with the Monitor's querycache will be garbage-collected
-     * @param frequency the frequency value
+     *
+     * Deleted queries are removed from the querycache as each deletion is committed,
+     * so a periodic purge is only useful to discard unused queries from a cache that
+     * is populated lazily, see {@link #setLazyQueryParsing(boolean)}.  Updates to the
+     * Monitor are blocked while a purge runs.  By default, no periodic purges are run.
+     *
+     * @param frequency the frequency value, or 0 to disable periodic purges
      * @param units     the frequency units
      * @return the current configuration
      */
@@ -110,4 +144,444 @@ public class QueryIndexConfiguration {
         return storeQueries;
     }
 
+    /**
+     * Set an ExecutorService to use for searching the query index
+     *
+     * If set, the segments of the Monitor's query index will be searched concurrently
+     * during a match run, with selected queries streamed to the CandidateMatcher as
+     * they are found.  By default the query index is searched on the calling thread.
+     *
+     * @param executor the ExecutorService to use, or {@code null} to search on the calling thread
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setPresearcherExecutor(ExecutorService executor) {
+        this.presearcherExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return the ExecutorService used to search the query index, or {@code null} if not set
+     */
+    public ExecutorService getPresearcherExecutor() {
+        return presearcherExecutor;
+    }
+
+    /**
+     * Set whether or not single documents passed to {@link Monitor#match(InputDocument, MatcherFactory)}
+     * should be indexed using in-memory index buffers held by the calling thread
+     *
+     * Reusing buffers saves allocating a new in-memory index for every document, but each
+     * thread that calls match() then holds on to a buffer as large as the largest document
+     * it has matched.  Defaults to {@code false}.
+     *
+     * @param reuseIndexBuffers whether or not to reuse per-thread index buffers
+     * @return the current configuration
+     *
+     * @see DocumentBatch.Builder#reuseIndexBuffers(boolean)
+     */
+    public QueryIndexConfiguration setReuseIndexBuffers(boolean reuseIndexBuffers) {
+        this.reuseIndexBuffers = reuseIndexBuffers;
+        return this;
+    }
+
+    /**
+     * @return whether or not single documents are matched using per-thread index buffers
+     */
+    public boolean reuseIndexBuffers() {
+        return reuseIndexBuffers;
+    }
+
+    /**
+     * Set whether or not the Monitor should record execution statistics for its queries
+     *
+     * If {@code true}, the time taken by each query on each match run, and whether or
+     * not it matched, is recorded in a {@link QueryStatistics} registry, available from
+     * {@link Monitor#getQueryStatistics()}.  Defaults to {@code false}.
+     *
+     * @param collectQueryStatistics whether or not to record query statistics
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setCollectQueryStatistics(boolean collectQueryStatistics) {
+        this.collectQueryStatistics = collectQueryStatistics;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor records execution statistics for its queries
+     */
+    public boolean collectQueryStatistics() {
+        return collectQueryStatistics;
+    }
+
+    /**
+     * Set the factory used to create the Monitor's query cache
+     *
+     * A new cache is created when the Monitor starts, and on every cache purge.  Defaults
+     * to {@link ConcurrentQueryCache}; Monitors holding very large numbers of queries
+     * may use less memory with a {@link PackedQueryCache}, or, if queries are stored,
+     * with a {@link BoundedQueryCache} that only holds recently used queries.
+     *
+     * @param queryCacheFactory a Supplier of new, empty QueryCache instances
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setQueryCacheFactory(Supplier<QueryCache> queryCacheFactory) {
+        this.queryCacheFactory = queryCacheFactory;
+        return this;
+    }
+
+    /**
+     * @return the factory used to create the Monitor's query cache
+     */
+    public Supplier<QueryCache> getQueryCacheFactory() {
+        return queryCacheFactory;
+    }
+
+    /**
+     * Set whether or not the Monitor should parse stored queries lazily
+     *
+     * If {@code true}, queries already in the query index when the Monitor is started
+     * are not parsed up-front, but only when they are first selected by the presearcher,
+     * and the query cache then only holds queries that have been used since the last
+     * purge.  This speeds up startup and reduces memory use for large query sets with
+     * few active queries, at the cost of slower first matches.  Parse errors for stored
+     * queries are reported as match errors rather than on startup.
+     *
+     * Cache hits and misses are reported by {@link Monitor#getQueryCacheStats()}.
+     *
+     * Queries must be stored, see {@link #storeQueries(boolean)}.  Defaults to {@code false}.
+     *
+     * @param lazyQueryParsing whether or not to parse stored queries lazily
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setLazyQueryParsing(boolean lazyQueryParsing) {
+        this.lazyQueryParsing = lazyQueryParsing;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor parses stored queries lazily
+     */
+    public boolean lazyQueryParsing() {
+        return lazyQueryParsing;
+    }
+
+    /**
+     * Set whether or not the Monitor should write query cache snapshots
+     *
+     * If {@code true}, a small snapshot file is written to the query index directory
+     * on every commit.  When a Monitor is reopened on a directory containing a snapshot
+     * of its latest commit, it skips parsing all its stored queries on startup, and
+     * instead parses each query when it is first selected by the presearcher.  If the
+     * snapshot is missing, out of date or corrupt, all queries are parsed as usual.
+     *
+     * Queries must be stored, see {@link #storeQueries(boolean)}.  Defaults to {@code false}.
+     *
+     * @param queryCacheSnapshots whether or not to write query cache snapshots
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setQueryCacheSnapshots(boolean queryCacheSnapshots) {
+        this.queryCacheSnapshots = queryCacheSnapshots;
+        return this;
+    }
+
+    /**
+     * @return whether or not the Monitor writes query cache snapshots
+     */
+    public boolean queryCacheSnapshots() {
+        return queryCacheSnapshots;
+    }
+
+    /**
+     * Set an ExecutorService to use for populating the query cache on startup
+     *
+     * If set, the stored queries in an existing query index are read and parsed
+     * concurrently, in slices of the index.  By default they are parsed on the thread
+     * that creates the Monitor.
+     *
+     * @param executor the ExecutorService to use, or {@code null} to parse on the calling thread
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setWarmupExecutor(ExecutorService executor) {
+        this.warmupExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return the ExecutorService used to populate the query cache on startup, or {@code null} if not set
+     */
+    public ExecutorService getWarmupExecutor() {
+        return warmupExecutor;
+    }
+
+    /**
+     * Set a handler for errors parsing stored queries when populating the query cache on startup
+     *
+     * If set, each error is passed to the handler as it is found, and the Monitor
+     * starts up without the failing queries in its cache.  If they are later selected by
+     * the presearcher, they are parsed again and any errors reported as match errors.
+     * The handler may be called from several threads at once if a warmup executor is
+     * set.  By default, errors are collected and the Monitor constructor throws an
+     * IOException once all queries have been parsed.
+     *
+     * @param handler a handler for parse errors, or {@code null} to fail on errors
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setWarmupErrorHandler(Consumer<QueryError> handler) {
+        this.warmupErrorHandler = handler;
+        return this;
+    }
+
+    /**
+     * @return the handler for errors parsing stored queries on startup, or {@code null} if not set
+     */
+    public Consumer<QueryError> getWarmupErrorHandler() {
+        return warmupErrorHandler;
+    }
+
+    /**
+     * Set the interval at which the Monitor durably commits updates in the background
+     *
+     * By default, every update and deletion is committed to the query index, including
+     * an fsync, before the call returns.  If an interval is set, changes are instead
+     * grouped together and committed by a background thread, and are made visible to
+     * matches according to the refresh interval.  Use {@link Monitor#awaitCommit()} to
+     * wait until changes are durable, or {@link Monitor#commit()} to commit them
+     * immediately.  Changes that have not been committed when the Monitor is closed
+     * are committed on close.
+     *
+     * @param interval the interval between commits, or 0 to commit on every update
+     * @param units    the interval units
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setCommitInterval(long interval, TimeUnit units) {
+        this.commitInterval = interval;
+        this.commitIntervalUnits = units;
+        return this;
+    }
+
+    /**
+     * @return the interval between background commits, or 0 if changes are committed on every update
+     */
+    public long getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * @return the units of the interval between background commits
+     */
+    public TimeUnit getCommitIntervalUnits() {
+        return commitIntervalUnits;
+    }
+
+    /**
+     * Set the interval at which updates become visible to matches, when committing in the background
+     *
+     * By default, each update is visible to matches as soon as the call returns.  If an
+     * interval is set, then the query index is refreshed by a background thread instead,
+     * so that a burst of updates only pays for a single refresh.  Updates are always made
+     * visible when they are committed.  This setting has no effect unless a commit interval
+     * is also set.
+     *
+     * @param interval the interval between refreshes, or 0 to refresh on every update
+     * @param units    the interval units
+     * @return the current configuration
+     *
+     * @see #setCommitInterval(long, TimeUnit)
+     */
+    public QueryIndexConfiguration setRefreshInterval(long interval, TimeUnit units) {
+        this.refreshInterval = interval;
+        this.refreshIntervalUnits = units;
+        return this;
+    }
+
+    /**
+     * @return the interval between background refreshes, or 0 if updates are visible immediately
+     */
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * @return the units of the interval between background refreshes
+     */
+    public TimeUnit getRefreshIntervalUnits() {
+        return refreshIntervalUnits;
+    }
+
+    /**
+     * Set whether or not updates should skip queries that are already indexed unchanged
+     *
+     * If {@code true}, a query passed to {@link Monitor#update(Iterable)} or
+     * {@link Monitor#bulkLoad(java.util.stream.Stream)} is not parsed or re-indexed if the
+     * query index already holds a query with the same id and the same {@link MonitorQuery#hash()}.
+     * This makes re-submitting a large, mostly unchanged, set of queries much cheaper.
+     *
+     * Unchanged queries keep the documents they were indexed with, so this should not be used
+     * if the Monitor's presearcher or query decomposer have changed since they were indexed.
+     * Defaults to {@code false}.
+     *
+     * @param skipUnchangedQueries whether or not to skip unchanged queries on update
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setSkipUnchangedQueries(boolean skipUnchangedQueries) {
+        this.skipUnchangedQueries = skipUnchangedQueries;
+        return this;
+    }
+
+    /**
+     * @return whether or not updates skip queries that are already indexed unchanged
+     */
+    public boolean skipUnchangedQueries() {
+        return skipUnchangedQueries;
+    }
+
+    /**
+     * Set the MergePolicy used by the query index's IndexWriter
+     *
+     * Presearcher queries look up every term of the documents being matched in every
+     * segment of the query index, so search times grow with the number of segments.  The
+     * default policy is a {@link TieredMergePolicy} with four segments per tier.  Deployments
+     * whose queries rarely change can keep fewer, larger segments with
+     * {@link #readMostlyMergePolicy()}, or merge the index down explicitly with
+     * {@link Monitor#forceMerge(int)}.
+     *
+     * This is only used if the Monitor creates its own IndexWriter.
+     *
+     * @param mergePolicy the MergePolicy
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+        return this;
+    }
+
+    /**
+     * @return the MergePolicy used by the query index
+     */
+    public MergePolicy getMergePolicy() {
+        if (mergePolicy != null)
+            return mergePolicy;
+        TieredMergePolicy defaultPolicy = new TieredMergePolicy();
+        defaultPolicy.setSegmentsPerTier(4);
+        return defaultPolicy;
+    }
+
+    /**
+     * @return a MergePolicy that keeps the query index in as few segments as is practical,
+     *         at the cost of more merging when queries are updated
+     */
+    public static MergePolicy readMostlyMergePolicy() {
+        TieredMergePolicy policy = new TieredMergePolicy();
+        policy.setSegmentsPerTier(2);
+        // treat all small segments as if they were large, so that they are merged away quickly
+        policy.setFloorSegmentMB(256);
+        policy.setMaxMergedSegmentMB(64 * 1024);
+        return policy;
+    }
+
+    /**
+     * Set how the terms of the query index are held for presearcher queries
+     *
+     * Presearchers only add document terms to their queries if they are in the query index,
+     * using a {@link QueryTermFilter}.  By default, the filter holds a copy of every term in
+     * the query index.  If this is set to a value greater than zero, it instead holds each
+     * field's terms in a Bloom filter using this many bits per term, which is much smaller
+     * for large query sets.  Bloom filters may accept terms that are not in the query index,
+     * at a rate of about 1% with ten bits per term; these terms are added to presearcher
+     * queries, but do not match any queries, so results are unchanged.
+     *
+     * Defaults to 0, holding terms exactly.
+     *
+     * @param bitsPerTerm the number of Bloom filter bits per term, or 0 to hold terms exactly
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setTermFilterBitsPerTerm(int bitsPerTerm) {
+        if (bitsPerTerm < 0)
+            throw new IllegalArgumentException("Bits per term cannot be negative");
+        this.termFilterBitsPerTerm = bitsPerTerm;
+        return this;
+    }
+
+    /**
+     * @return the number of Bloom filter bits per query index term, or 0 if terms are held exactly
+     */
+    public int getTermFilterBitsPerTerm() {
+        return termFilterBitsPerTerm;
+    }
+
+    /**
+     * Collect statistics on the terms of the documents matched by the Monitor
+     *
+     * Every {@code sampleInterval}th batch of documents passed to
+     * {@link Monitor#match(DocumentBatch, MatcherFactory)} is added to the statistics.  Use
+     * the same statistics in a {@link SelectivityWeightNorm} to index queries under the
+     * terms that appear least often in documents.
+     *
+     * @param statistics     the statistics to add documents to
+     * @param sampleInterval the interval between sampled document batches
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setDocumentTermStatistics(DocumentTermStatistics statistics, int sampleInterval) {
+        if (sampleInterval < 1)
+            throw new IllegalArgumentException("Sample interval must be at least 1");
+        this.documentTermStatistics = statistics;
+        this.documentSampleInterval = sampleInterval;
+        return this;
+    }
+
+    /**
+     * @return the statistics collected on matched documents, or {@code null} if none are collected
+     */
+    public DocumentTermStatistics getDocumentTermStatistics() {
+        return documentTermStatistics;
+    }
+
+    /**
+     * @return the interval between document batches added to the document term statistics
+     */
+    public int getDocumentSampleInterval() {
+        return documentSampleInterval;
+    }
+
+    /**
+     * Periodically re-index queries that are indexed under terms that have become common
+     * in the documents being matched
+     *
+     * See {@link Monitor#reindexHotQueries(double)}.  This requires document term statistics
+     * to be collected, and queries to be stored.  Defaults to never re-indexing.
+     *
+     * @param maxCandidateRate the largest number of queries a single indexed term should
+     *                         select per document, on average
+     * @param interval         the interval between re-indexing runs
+     * @param units            the units of the interval
+     * @return the current configuration
+     */
+    public QueryIndexConfiguration setHotQueryReindexing(double maxCandidateRate, long interval, TimeUnit units) {
+        this.hotQueryCandidateRate = maxCandidateRate;
+        this.hotQueryReindexInterval = interval;
+        this.hotQueryReindexIntervalUnits = units;
+        return this;
+    }
+
+    /**
+     * @return the largest number of queries a single indexed term should select per document
+     */
+    public double getHotQueryCandidateRate() {
+        return hotQueryCandidateRate;
+    }
+
+    /**
+     * @return the interval between hot query re-indexing runs, or 0 if queries are not re-indexed
+     */
+    public long getHotQueryReindexInterval() {
+        return hotQueryReindexInterval;
+    }
+
+    /**
+     * @return the units of the hot query re-indexing interval
+     */
+    public TimeUnit getHotQueryReindexIntervalUnits() {
+        return hotQueryReindexIntervalUnits;
+    }
+
 }
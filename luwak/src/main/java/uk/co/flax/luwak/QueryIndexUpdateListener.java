@@ -34,4 +34,6 @@ public abstract class QueryIndexUpdateListener {
 
     public void onPurgeError(Throwable t) {}
 
+    public void onCommitError(Throwable t) {}
+
 }
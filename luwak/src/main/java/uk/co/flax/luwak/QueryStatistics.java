@@ -0,0 +1,519 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+/**
+ * Records execution statistics for each query in a Monitor, across match runs
+ *
+ * For each query id, the registry records how many times the query has been run,
+ * the total time taken, how often it produced a match, and a coarse histogram
+ * of run times from which percentiles can be estimated.  All updates are lock-free,
+ * so a single registry can be shared by concurrent match runs.  Each query's statistics
+ * are held in a single object of about 100 bytes, plus a map entry of about 40 bytes.
+ *
+ * Every run is a query selected by the presearcher, so a run that produces no match
+ * is a presearcher false positive.  The registry keeps the number of false positives,
+ * and the time wasted on them, for each query and in total, and
+ * {@link #getMostWastefulQueries(int)} lists the queries that waste the most matching
+ * time.  {@link Monitor#getMostWastefulTerms(int)} rolls the same figures up by the
+ * terms that queries are indexed under.
+ *
+ * Enable collection with {@link QueryIndexConfiguration#setCollectQueryStatistics(boolean)},
+ * and retrieve the registry with {@link Monitor#getQueryStatistics()}.
+ *
+ * The registry can also be used as a {@link QueryCostEstimator}, returning the mean run
+ * time of a query in nanoseconds, or zero if the query has not yet been run.
+ */
+public class QueryStatistics implements QueryCostEstimator {
+
+    /*
+     * Histogram bucket i holds run times in the range [2^(i + MIN_BUCKET_BITS - 1), 2^(i + MIN_BUCKET_BITS)),
+     * except for the first bucket which holds everything below 2^MIN_BUCKET_BITS ns (~1us), and the last
+     * bucket which holds everything above 2^(MIN_BUCKET_BITS + BUCKETS - 2) ns (~8.6s).
+     */
+    private static final int MIN_BUCKET_BITS = 10;
+    private static final int BUCKETS = 25;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /* Ids of removed queries, whose runs should no longer be recorded, mapped to the
+       query index generation in which they were removed */
+    private final ConcurrentMap<String, Long> removed = new ConcurrentHashMap<>();
+
+    /* Incremented each time the Monitor's query index is refreshed */
+    private final AtomicLong generation = new AtomicLong();
+
+    /* The number of match runs in progress, by the generation they started in */
+    private final ConcurrentMap<Long, Integer> runs = new ConcurrentHashMap<>();
+
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder wastedTime = new LongAdder();
+
+    /**
+     * Record a single run of a query
+     *
+     * Runs of queries that have been removed are ignored, as they may still be selected by
+     * match runs that started before the removal.
+     *
+     * @param queryId the query id
+     * @param nanos the time taken to run the query, in nanoseconds
+     * @param matched whether or not the query matched any documents
+     */
+    public void record(String queryId, long nanos, boolean matched) {
+        Stats s = stats.get(queryId);
+        if (s == null) {
+            // checked inside compute(), so that a concurrent remove() cannot be missed
+            s = stats.compute(queryId, (id, old) -> old != null ? old : removed.containsKey(id) ? null : new Stats());
+            if (s == null)
+                return;
+        }
+        s.record(nanos, matched);
+        candidates.increment();
+        if (matched)
+            matches.increment();
+        else
+            wastedTime.add(nanos);
+    }
+
+    /**
+     * Get the statistics for a query
+     * @param queryId the query id
+     * @return the statistics for the query, or {@code null} if it has not been run
+     */
+    public Stats get(String queryId) {
+        return stats.get(queryId);
+    }
+
+    /**
+     * @return the ids of all queries with recorded statistics
+     */
+    public Set<String> getQueryIds() {
+        return Collections.unmodifiableSet(stats.keySet());
+    }
+
+    /**
+     * Remove the statistics for a query
+     *
+     * Further runs of the query are not recorded until it is added again with {@link #add(String)}.
+     * When used by a Monitor, the removal is forgotten once no match run can still select
+     * the query.
+     *
+     * @param queryId the query id
+     */
+    public void remove(String queryId) {
+        removed.put(queryId, generation.get());
+        stats.remove(queryId);
+    }
+
+    /**
+     * Start recording runs of a query again after it has been removed
+     * @param queryId the query id
+     */
+    public void add(String queryId) {
+        removed.remove(queryId);
+    }
+
+    /**
+     * Called by the Monitor when a match run starts, before it searches the query index
+     * @return the generation to pass to {@link #endRun(long)}
+     */
+    long startRun() {
+        // a run that reads an old generation is only kept track of for longer than it needs to be
+        long runGeneration = generation.get();
+        runs.merge(runGeneration, 1, Integer::sum);
+        return runGeneration;
+    }
+
+    /**
+     * Called by the Monitor when a match run has finished running queries
+     *
+     * Removed queries that the run was holding on to are forgotten on the next refresh.
+     *
+     * @param runGeneration the generation returned by {@link #startRun()}
+     */
+    void endRun(long runGeneration) {
+        runs.computeIfPresent(runGeneration, (g, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Called by the Monitor after its query index is refreshed
+     */
+    void afterRefresh() {
+        generation.incrementAndGet();
+        pruneRemoved();
+    }
+
+    /**
+     * @return the number of removed queries whose runs are still being ignored
+     */
+    int removedCount() {
+        return removed.size();
+    }
+
+    private void pruneRemoved() {
+        if (removed.isEmpty())
+            return;
+        // A query is removed after its deletion reaches the query index, but a refresh that was
+        // already under way may have missed it, so only the second refresh after the removal is
+        // certain to hide it.  Runs that start after that refresh cannot select the query, and
+        // a run that has not yet been counted will search a searcher at least as new as this one.
+        long oldestRun = generation.get();
+        for (Long runGeneration : runs.keySet()) {
+            oldestRun = Math.min(oldestRun, runGeneration);
+        }
+        long oldest = oldestRun;
+        removed.values().removeIf(g -> g + 1 < oldest);
+    }
+
+    /**
+     * Remove all statistics
+     *
+     * Further runs of the queries that had statistics are not recorded until they are
+     * added again with {@link #add(String)}
+     */
+    public void clear() {
+        long removedGeneration = generation.get();
+        for (String queryId : stats.keySet()) {
+            removed.put(queryId, removedGeneration);
+        }
+        stats.clear();
+        candidates.reset();
+        matches.reset();
+        wastedTime.reset();
+    }
+
+    /**
+     * @return the total number of query runs recorded since the registry was last cleared
+     */
+    public long getCandidates() {
+        return candidates.sum();
+    }
+
+    /**
+     * @return the total number of query runs that produced at least one match
+     */
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    /**
+     * @return the total time spent running queries that produced no match, in nanoseconds
+     */
+    public long getWastedTime() {
+        return wastedTime.sum();
+    }
+
+    /**
+     * @return the proportion of all query runs that produced no match
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate(getCandidates(), getMatches());
+    }
+
+    /**
+     * List the queries that have spent the most time running without producing a match
+     * @param n the maximum number of query ids to return
+     * @return the ids of the queries with the most wasted time, most wasteful first
+     */
+    public List<String> getMostWastefulQueries(int n) {
+        List<Map.Entry<String, Long>> wasted = new ArrayList<>();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            long w = entry.getValue().getWastedTime();
+            if (w > 0)
+                wasted.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), w));
+        }
+        wasted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < Math.min(n, wasted.size()); i++) {
+            ids.add(wasted.get(i).getKey());
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of queries with recorded statistics
+     */
+    public int size() {
+        return stats.size();
+    }
+
+    @Override
+    public double estimateCost(String queryId, Query query) {
+        Stats s = stats.get(queryId);
+        return s == null ? 0 : s.getMeanTime();
+    }
+
+    private static double falsePositiveRate(long candidates, long matches) {
+        return candidates == 0 ? 0 : (candidates - matches) / (double) candidates;
+    }
+
+    private static int bucket(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(nanos);
+        return Math.max(0, Math.min(BUCKETS - 1, bits - MIN_BUCKET_BITS));
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        if (bucket == BUCKETS - 1)
+            return Long.MAX_VALUE;
+        return 1L << (bucket + MIN_BUCKET_BITS);
+    }
+
+    /**
+     * Execution statistics for a single query
+     *
+     * The counters are plain fields updated by compare-and-set, and the histogram is packed
+     * into 16-bit buckets, so that a registry holding millions of queries stays small.  When
+     * a bucket fills up, every bucket is halved, which keeps the shape of the distribution.
+     */
+    public static final class Stats {
+
+        private static final int BUCKET_BITS = 16;
+        private static final long BUCKET_MASK = (1L << BUCKET_BITS) - 1;
+        private static final int BUCKETS_PER_WORD = Long.SIZE / BUCKET_BITS;
+        private static final long HALVE_MASK = 0x7FFF7FFF7FFF7FFFL;
+
+        private static final AtomicLongFieldUpdater<Stats> CALLS = AtomicLongFieldUpdater.newUpdater(Stats.class, "calls");
+        private static final AtomicLongFieldUpdater<Stats> TOTAL_TIME = AtomicLongFieldUpdater.newUpdater(Stats.class, "totalTime");
+        private static final AtomicLongFieldUpdater<Stats> MATCHES = AtomicLongFieldUpdater.newUpdater(Stats.class, "matches");
+        private static final AtomicLongFieldUpdater<Stats> WASTED_TIME = AtomicLongFieldUpdater.newUpdater(Stats.class, "wastedTime");
+
+        @SuppressWarnings("unchecked")
+        private static final AtomicLongFieldUpdater<Stats>[] HISTOGRAM = new AtomicLongFieldUpdater[]{
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram0"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram1"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram2"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram3"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram4"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram5"),
+                AtomicLongFieldUpdater.newUpdater(Stats.class, "histogram6")
+        };
+
+        static {
+            assert HISTOGRAM.length * BUCKETS_PER_WORD >= BUCKETS;
+        }
+
+        private volatile long calls;
+        private volatile long totalTime;
+        private volatile long matches;
+        private volatile long wastedTime;
+
+        private volatile long histogram0;
+        private volatile long histogram1;
+        private volatile long histogram2;
+        private volatile long histogram3;
+        private volatile long histogram4;
+        private volatile long histogram5;
+        private volatile long histogram6;
+
+        private Stats() {}
+
+        private void record(long nanos, boolean matched) {
+            CALLS.incrementAndGet(this);
+            TOTAL_TIME.addAndGet(this, nanos);
+            if (matched)
+                MATCHES.incrementAndGet(this);
+            else
+                WASTED_TIME.addAndGet(this, nanos);
+            addToHistogram(bucket(nanos));
+        }
+
+        private void addToHistogram(int bucket) {
+            AtomicLongFieldUpdater<Stats> word = HISTOGRAM[bucket / BUCKETS_PER_WORD];
+            int shift = (bucket % BUCKETS_PER_WORD) * BUCKET_BITS;
+            while (true) {
+                long value = word.get(this);
+                if (((value >>> shift) & BUCKET_MASK) == BUCKET_MASK)
+                    halveHistogram();
+                else if (word.compareAndSet(this, value, value + (1L << shift)))
+                    return;
+            }
+        }
+
+        // concurrent halvings may both be applied, which only makes the older runs count for less
+        private void halveHistogram() {
+            for (AtomicLongFieldUpdater<Stats> word : HISTOGRAM) {
+                long value;
+                do {
+                    value = word.get(this);
+                } while (word.compareAndSet(this, value, (value >>> 1) & HALVE_MASK) == false);
+            }
+        }
+
+        private long bucketCount(int bucket) {
+            long value = HISTOGRAM[bucket / BUCKETS_PER_WORD].get(this);
+            return (value >>> ((bucket % BUCKETS_PER_WORD) * BUCKET_BITS)) & BUCKET_MASK;
+        }
+
+        /**
+         * @return the number of times the query has been run
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return the total time spent running the query, in nanoseconds
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        /**
+         * @return the mean time taken to run the query, in nanoseconds
+         */
+        public double getMeanTime() {
+            long c = getCalls();
+            return c == 0 ? 0 : getTotalTime() / (double) c;
+        }
+
+        /**
+         * @return the number of runs that produced at least one match
+         */
+        public long getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return the proportion of runs that produced at least one match
+         */
+        public double getSelectivity() {
+            long c = getCalls();
+            return c == 0 ? 0 : getMatches() / (double) c;
+        }
+
+        /**
+         * @return the proportion of runs that produced no match
+         */
+        public double getFalsePositiveRate() {
+            return falsePositiveRate(getCalls(), getMatches());
+        }
+
+        /**
+         * @return the time spent on runs that produced no match, in nanoseconds
+         */
+        public long getWastedTime() {
+            return wastedTime;
+        }
+
+        /**
+         * Estimate a percentile of the query's run times
+         *
+         * Times are recorded in power-of-two buckets, so the returned value is the upper
+         * bound of the bucket containing the percentile, and may be up to twice the
+         * true value.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return an upper bound for the percentile, in nanoseconds
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = bucketCount(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0)
+                    return bucketUpperBound(i);
+            }
+            return bucketUpperBound(BUCKETS - 1);
+        }
+
+        /**
+         * @return an estimate of the median run time, in nanoseconds
+         */
+        public long getP50() {
+            return getPercentile(50);
+        }
+
+        /**
+         * @return an estimate of the 99th percentile run time, in nanoseconds
+         */
+        public long getP99() {
+            return getPercentile(99);
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + getCalls() + " totalTime=" + getTotalTime() + "ns p50=" + getP50() + "ns p99=" + getP99()
+                    + "ns selectivity=" + getSelectivity() + " wastedTime=" + getWastedTime() + "ns";
+        }
+    }
+
+    /**
+     * Execution statistics for the queries indexed under a single query index term
+     *
+     * The figures are the sums of the {@link Stats} of each query indexed under the term.
+     *
+     * @see Monitor#getMostWastefulTerms(int)
+     */
+    public static final class TermStats {
+
+        /** The query index term */
+        public final Term term;
+
+        /** The number of queries indexed under the term that have been run */
+        public final int queries;
+
+        /** The number of runs of queries indexed under the term */
+        public final long candidates;
+
+        /** The number of runs of queries indexed under the term that produced a match */
+        public final long matches;
+
+        /** The time spent on runs of queries indexed under the term that produced no match, in nanoseconds */
+        public final long wastedTime;
+
+        TermStats(Term term, int queries, long candidates, long matches, long wastedTime) {
+            this.term = term;
+            this.queries = queries;
+            this.candidates = candidates;
+            this.matches = matches;
+            this.wastedTime = wastedTime;
+        }
+
+        /**
+         * @return the proportion of runs of queries indexed under the term that produced no match
+         */
+        public double getFalsePositiveRate() {
+            return falsePositiveRate(candidates, matches);
+        }
+
+        @Override
+        public String toString() {
+            return term + ": queries=" + queries + " candidates=" + candidates + " matches=" + matches
+                    + " wastedTime=" + wastedTime + "ns";
+        }
+    }
+
+}
@@ -17,12 +17,17 @@ package uk.co.flax.luwak;
  */
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import org.apache.lucene.index.*;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FutureArrays;
+import org.apache.lucene.util.StringHelper;
 
 /**
  * Class for recording terms stored in the query index.
@@ -30,11 +35,24 @@ import org.apache.lucene.util.BytesRefHash;
  * An instance of QueryTermFilter is passed to {@link Presearcher#buildQuery(LeafReader, QueryTermFilter)},
  * and can be used to restrict the presearcher's disjunction query to terms in the index.
  *
+ * Terms are collected separately for each segment of the query index, so that a Monitor
+ * can reuse the terms of unchanged segments when its query index is refreshed.  The terms
+ * are immutable once collected, and may be read from several threads at once.
+ *
+ * Terms are held exactly by default.  A Monitor can instead hold them in compact Bloom
+ * filters, see {@link QueryIndexConfiguration#setTermFilterBitsPerTerm(int)}, in which
+ * case the term predicates may accept some terms that are not in the index.
+ *
  * @see uk.co.flax.luwak.analysis.BytesRefFilteredTokenFilter
  */
 public class QueryTermFilter {
 
-    private final Map<String, BytesRefHash> termsHash = new HashMap<>();
+    private static final List<FieldTerms> NO_TERMS = Collections.emptyList();
+
+    private final Map<String, List<FieldTerms>> termsByField = new HashMap<>();
+
+    /* The merged terms of each field requested through getTerms(), built on first use */
+    private final Map<String, BytesRefHash> mergedTerms = new ConcurrentHashMap<>();
 
     /**
      * Create a QueryTermFilter for an IndexReader
@@ -42,32 +60,259 @@ public class QueryTermFilter {
      * @throws IOException on error
      */
     public QueryTermFilter(IndexReader reader) throws IOException {
-        Fields mf = MultiFields.getFields(reader);
-        for (String field : mf) {
-            BytesRefHash terms = new BytesRefHash();
-            Terms t = mf.terms(field);
-            if (t != null) {
-                TermsEnum te = t.iterator();
-                BytesRef term;
-                while ((term = te.next()) != null) {
-                    terms.add(term);
-                }
+        this(collectTerms(reader));
+    }
+
+    /**
+     * Create a QueryTermFilter combining the terms of several segments
+     */
+    QueryTermFilter(List<SegmentTerms> segments) {
+        for (SegmentTerms segment : segments) {
+            for (Map.Entry<String, FieldTerms> entry : segment.fields.entrySet()) {
+                termsByField.computeIfAbsent(entry.getKey(), f -> new ArrayList<>()).add(entry.getValue());
             }
-            termsHash.put(field, terms);
         }
+    }
+
+    private static List<SegmentTerms> collectTerms(IndexReader reader) throws IOException {
+        List<SegmentTerms> segments = new ArrayList<>();
+        for (LeafReaderContext ctx : reader.leaves()) {
+            segments.add(new SegmentTerms(ctx.reader()));
+        }
+        return segments;
+    }
 
+    /**
+     * @param field the field
+     * @return {@code true} if any terms are indexed in the specified field
+     */
+    public boolean hasTerms(String field) {
+        return termsByField.containsKey(field);
+    }
+
+    /**
+     * Get a predicate that accepts all terms in the index for a particular field
+     * @param field the field
+     * @return a predicate that returns {@code true} for terms in the specified field
+     */
+    public Predicate<BytesRef> getTermPredicate(String field) {
+        List<FieldTerms> segments = termsByField.getOrDefault(field, NO_TERMS);
+        if (segments.isEmpty())
+            return term -> false;
+        return term -> {
+            int hash = StringHelper.murmurhash3_x86_32(term, 0);
+            for (FieldTerms terms : segments) {
+                if (terms.contains(term, hash))
+                    return true;
+            }
+            return false;
+        };
     }
 
     /**
      * Get a BytesRefHash containing all terms for a particular field
+     *
+     * The terms of every segment are copied into the BytesRefHash on the first call for
+     * each field, and the same BytesRefHash is returned by later calls, so it must not be
+     * modified.  If the terms are held in Bloom filters, see
+     * {@link QueryIndexConfiguration#setTermFilterBitsPerTerm(int)}, the first call reads
+     * them again from the query index, which must still be open.
+     *
      * @param field the field
      * @return a {@link BytesRefHash} containing all terms for the specified field
+     * @deprecated use {@link #getTermPredicate(String)}, which does not copy the terms
      */
+    @Deprecated
     public BytesRefHash getTerms(String field) {
-        BytesRefHash existing = termsHash.get(field);
-        if (existing != null)
-            return existing;
+        return mergedTerms.computeIfAbsent(field, f -> {
+            BytesRefHash hash = new BytesRefHash();
+            for (FieldTerms terms : termsByField.getOrDefault(f, NO_TERMS)) {
+                terms.addTo(hash);
+            }
+            return hash;
+        });
+    }
+
+    /**
+     * The terms of a single segment of the query index
+     */
+    static final class SegmentTerms {
+
+        final Map<String, FieldTerms> fields = new HashMap<>();
+
+        SegmentTerms(LeafReader reader) throws IOException {
+            this(reader, 0);
+        }
+
+        /**
+         * @param bitsPerTerm if greater than zero, hold each field's terms in a Bloom filter
+         *                    of this many bits per term, rather than exactly
+         */
+        SegmentTerms(LeafReader reader, int bitsPerTerm) throws IOException {
+            for (FieldInfo fi : reader.getFieldInfos()) {
+                Terms terms = reader.terms(fi.name);
+                if (terms == null)
+                    continue;
+                if (bitsPerTerm > 0)
+                    fields.put(fi.name, new BloomFieldTerms(terms, bitsPerTerm));
+                else
+                    fields.put(fi.name, new ExactFieldTerms(terms.iterator()));
+            }
+        }
+    }
+
+    /**
+     * The terms of a single field.  Lookups do not modify any state, so these can be shared
+     * between threads.
+     */
+    abstract static class FieldTerms {
 
-        return new BytesRefHash();
+        /**
+         * @param term the term to look up
+         * @param hash the murmurhash3 of the term, with seed 0
+         * @return {@code true} if the term may be in the field
+         */
+        abstract boolean contains(BytesRef term, int hash);
+
+        /**
+         * Add all terms of the field to a BytesRefHash
+         */
+        abstract void addTo(BytesRefHash hash);
+    }
+
+    /**
+     * Field terms packed into one array and indexed by an open-addressed hash table.  Unlike
+     * a {@link BytesRefHash}, lookups do not modify any state.
+     */
+    static final class ExactFieldTerms extends FieldTerms {
+
+        private byte[] bytes = new byte[64];
+        private int[] offsets = new int[9];
+        private final int[] table;
+        private final int mask;
+        private int count = 0;
+
+        ExactFieldTerms(TermsEnum te) throws IOException {
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                int start = offsets[count];
+                bytes = ArrayUtil.grow(bytes, start + term.length);
+                System.arraycopy(term.bytes, term.offset, bytes, start, term.length);
+                offsets = ArrayUtil.grow(offsets, count + 2);
+                offsets[++count] = start + term.length;
+            }
+            int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+            this.table = new int[size];
+            this.mask = size - 1;
+            Arrays.fill(table, -1);
+            BytesRef scratch = new BytesRef();
+            for (int i = 0; i < count; i++) {
+                int slot = StringHelper.murmurhash3_x86_32(term(i, scratch), 0) & mask;
+                while (table[slot] != -1)
+                    slot = (slot + 1) & mask;
+                table[slot] = i;
+            }
+        }
+
+        private BytesRef term(int i, BytesRef scratch) {
+            scratch.bytes = bytes;
+            scratch.offset = offsets[i];
+            scratch.length = offsets[i + 1] - offsets[i];
+            return scratch;
+        }
+
+        @Override
+        boolean contains(BytesRef term, int hash) {
+            int slot = hash & mask;
+            int ord;
+            while ((ord = table[slot]) != -1) {
+                if (FutureArrays.equals(bytes, offsets[ord], offsets[ord + 1],
+                        term.bytes, term.offset, term.offset + term.length))
+                    return true;
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        @Override
+        void addTo(BytesRefHash hash) {
+            BytesRef scratch = new BytesRef();
+            for (int i = 0; i < count; i++) {
+                hash.add(term(i, scratch));
+            }
+        }
+    }
+
+    /**
+     * Field terms held in a blocked Bloom filter.  Each term sets bits in a single 512-bit
+     * block, so a lookup touches one cache line, and no term bytes are kept at all.
+     *
+     * Lookups may return false positives, at a rate of about 1% with ten bits per term.  A
+     * false positive only adds a term to the presearcher query that matches no queries.
+     * The terms can still be listed, by reading them again from the segment.
+     */
+    static final class BloomFieldTerms extends FieldTerms {
+
+        private static final int BLOCK_LONGS = 8;
+        private static final int BLOCK_BITS = BLOCK_LONGS * 64;
+
+        private final Terms terms;
+        private final long[] bits;
+        private final int blockMask;
+        private final int probes;
+
+        BloomFieldTerms(Terms terms, int bitsPerTerm) throws IOException {
+            this.terms = terms;
+            TermsEnum te = terms.iterator();
+            int[] hashes = new int[16];
+            int count = 0;
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                hashes = ArrayUtil.grow(hashes, count + 1);
+                hashes[count++] = StringHelper.murmurhash3_x86_32(term, 0);
+            }
+            long totalBits = Math.max((long) count * bitsPerTerm, BLOCK_BITS);
+            int blocks = Integer.highestOneBit((int) Math.min((totalBits - 1) / BLOCK_BITS, 1 << 24) * 2 + 1);
+            this.bits = new long[blocks * BLOCK_LONGS];
+            this.blockMask = blocks - 1;
+            this.probes = Math.max(1, Math.min(16, (int) Math.round(bitsPerTerm * Math.log(2))));
+            for (int i = 0; i < count; i++) {
+                int hash = hashes[i];
+                int base = (hash & blockMask) * BLOCK_LONGS;
+                int h1 = hash * 0x85EBCA6B;
+                int h2 = (hash * 0xC2B2AE35) | 1;
+                for (int p = 0; p < probes; p++) {
+                    int bit = (h1 + p * h2) >>> 23;
+                    bits[base + (bit >>> 6)] |= 1L << bit;
+                }
+            }
+        }
+
+        @Override
+        boolean contains(BytesRef term, int hash) {
+            int base = (hash & blockMask) * BLOCK_LONGS;
+            int h1 = hash * 0x85EBCA6B;
+            int h2 = (hash * 0xC2B2AE35) | 1;
+            for (int p = 0; p < probes; p++) {
+                int bit = (h1 + p * h2) >>> 23;
+                if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        void addTo(BytesRefHash hash) {
+            try {
+                TermsEnum te = terms.iterator();
+                BytesRef term;
+                while ((term = te.next()) != null) {
+                    hash.add(term);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 }
@@ -82,13 +82,27 @@ public class SlowLog implements Iterable<SlowLog.Entry> {
         /** The query id */
         final String queryId;
 
-        /** The time taken to execute the query in ms */
+        /** The time taken to execute the query in ns */
         final long time;
 
         public Entry(String queryId, long time) {
             this.queryId = queryId;
             this.time = time;
         }
+
+        /**
+         * @return the query id
+         */
+        public String getQueryId() {
+            return queryId;
+        }
+
+        /**
+         * @return the time taken to execute the query in ns
+         */
+        public long getTime() {
+            return time;
+        }
     }
 
     @Override
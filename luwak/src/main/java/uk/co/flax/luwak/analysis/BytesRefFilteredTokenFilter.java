@@ -16,28 +16,35 @@ package uk.co.flax.luwak.analysis;
  */
 
 import java.io.IOException;
+import java.util.function.Predicate;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
 
 /**
- * A FilteringTokenFilter that only accepts terms already contained in a BytesRefHash
+ * A FilteringTokenFilter that only accepts terms already contained in a BytesRefHash,
+ * or accepted by a Predicate
  */
 public class BytesRefFilteredTokenFilter extends FilteringTokenFilter {
 
-    private final BytesRefHash termsHash;
+    private final Predicate<BytesRef> terms;
 
     private final TermToBytesRefAttribute bytesAtt = addAttribute(TermToBytesRefAttribute.class);
 
     public BytesRefFilteredTokenFilter(TokenStream ts, BytesRefHash termsHash) {
+        this(ts, term -> termsHash.find(term) >= 0);
+    }
+
+    public BytesRefFilteredTokenFilter(TokenStream ts, Predicate<BytesRef> terms) {
         super(ts);
-        this.termsHash = termsHash;
+        this.terms = terms;
     }
 
     @Override
     protected boolean accept() throws IOException {
-        return termsHash.find(bytesAtt.getBytesRef()) >= 0;
+        return terms.test(bytesAtt.getBytesRef());
     }
 }
@@ -90,6 +90,13 @@ public class ParallelMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
         }
     }
 
+    @Override
+    public void setQueryStatistics(QueryStatistics queryStatistics) {
+        for (MatcherWorker mw : workers) {
+            mw.matcher.setQueryStatistics(queryStatistics);
+        }
+    }
+
     @Override
     public void finish(long buildTime, int queryCount) {
         try {
@@ -8,6 +8,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.search.Query;
 import uk.co.flax.luwak.*;
@@ -41,6 +42,13 @@ import uk.co.flax.luwak.util.CollectionUtils;
  * the synchronization overhead of {@link uk.co.flax.luwak.matchers.ParallelMatcher}
  * can outweigh the benefit of multithreading.
  *
+ * By default, each worker thread is given the same number of queries to run.  If
+ * a {@link QueryCostEstimator} is supplied, then the queries are instead ordered by
+ * their estimated cost, most expensive first, and each worker thread takes the next
+ * query from this shared list as soon as it has finished its previous one.  This
+ * prevents a thread that has been handed several expensive queries from holding up
+ * the whole match run.
+ *
  * @see uk.co.flax.luwak.matchers.ParallelMatcher
  *
  * @param <T> the type of QueryMatch to return
@@ -55,32 +63,53 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
 
     private final CandidateMatcher<T> resolvingMatcher;
 
+    private final QueryCostEstimator costEstimator;
+
+    private QueryStatistics queryStatistics = null;
+
     private static class MatchTask {
 
         final String queryId;
         final Query matchQuery;
         final Map<String, String> metadata;
+        final double cost;
 
-        private MatchTask(String queryId, Query matchQuery, Map<String, String> metadata) {
+        private MatchTask(String queryId, Query matchQuery, Map<String, String> metadata, double cost) {
             this.queryId = queryId;
             this.matchQuery = matchQuery;
             this.metadata = metadata;
+            this.cost = cost;
         }
     }
 
     private final List<MatchTask> tasks = new ArrayList<>();
 
     public PartitionMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads) {
+        this(docs, executor, matcherFactory, threads, null);
+    }
+
+    /**
+     * Create a new PartitionMatcher that distributes queries to threads by their estimated cost
+     * @param docs the DocumentBatch to match against
+     * @param executor an ExecutorService to use for parallel execution
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers
+     * @param threads the number of threads to execute on
+     * @param costEstimator the QueryCostEstimator to use, or {@code null} to partition queries by count
+     */
+    public PartitionMatcher(DocumentBatch docs, ExecutorService executor, MatcherFactory<T> matcherFactory, int threads,
+                            QueryCostEstimator costEstimator) {
         super(docs);
         this.executor = executor;
         this.matcherFactory = matcherFactory;
         this.threads = threads;
         this.resolvingMatcher = matcherFactory.createMatcher(docs);
+        this.costEstimator = costEstimator;
     }
 
     @Override
     protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
-        tasks.add(new MatchTask(queryId, matchQuery, metadata));
+        double cost = costEstimator == null ? 1 : costEstimator.estimateCost(queryId, matchQuery);
+        tasks.add(new MatchTask(queryId, matchQuery, metadata, cost));
     }
 
     @Override
@@ -88,14 +117,33 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         return resolvingMatcher.resolve(match1, match2);
     }
 
+    @Override
+    public void setQueryStatistics(QueryStatistics queryStatistics) {
+        // statistics are recorded by the worker matchers
+        this.queryStatistics = queryStatistics;
+    }
+
     @Override
     public void finish(long buildTime, int queryCount) {
 
         List<Callable<Matches<T>>> workers = new ArrayList<>(threads);
-        for (List<MatchTask> taskset : CollectionUtils.partition(tasks, threads)) {
-            CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
-            matcher.setSlowLogLimit(this.slowlog.getLimit());
-            workers.add(new MatcherWorker(taskset, matcher));
+        if (costEstimator == null) {
+            for (List<MatchTask> taskset : CollectionUtils.partition(tasks, threads)) {
+                CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
+                matcher.setSlowLogLimit(this.slowlog.getLimit());
+                matcher.setQueryStatistics(queryStatistics);
+                workers.add(new MatcherWorker(taskset, matcher));
+            }
+        }
+        else {
+            tasks.sort((t1, t2) -> Double.compare(t2.cost, t1.cost));
+            AtomicInteger nextTask = new AtomicInteger();
+            for (int i = 0; i < threads; i++) {
+                CandidateMatcher<T> matcher = matcherFactory.createMatcher(docs);
+                matcher.setSlowLogLimit(this.slowlog.getLimit());
+                matcher.setQueryStatistics(queryStatistics);
+                workers.add(new CostOrderedWorker(nextTask, matcher));
+            }
         }
 
         try {
@@ -106,6 +154,9 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
                         addMatch(match);
                     }
                 }
+                for (MatchError error : matches.getErrors()) {
+                    reportError(error);
+                }
                 this.slowlog.addAll(matches.getSlowLog());
             }
 
@@ -139,25 +190,73 @@ public class PartitionMatcher<T extends QueryMatch> extends CandidateMatcher<T>
         }
     }
 
+    // Takes tasks in cost order from the shared task list until it is exhausted
+    private class CostOrderedWorker implements Callable<Matches<T>> {
+
+        final AtomicInteger nextTask;
+        final CandidateMatcher<T> matcher;
+
+        private CostOrderedWorker(AtomicInteger nextTask, CandidateMatcher<T> matcher) {
+            this.nextTask = nextTask;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public Matches<T> call() {
+            int i;
+            while ((i = nextTask.getAndIncrement()) < tasks.size()) {
+                MatchTask task = tasks.get(i);
+                try {
+                    matcher.matchQuery(task.queryId, task.matchQuery, task.metadata);
+                } catch (IOException e) {
+                    matcher.reportError(new MatchError(task.queryId, e));
+                }
+            }
+            return matcher.getMatches();
+        }
+    }
+
     public static class PartitionMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
 
         private final ExecutorService executor;
         private final MatcherFactory<T> matcherFactory;
         private final int threads;
+        private final QueryCostEstimator costEstimator;
 
         public PartitionMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
                                       int threads) {
+            this(executor, matcherFactory, threads, null);
+        }
+
+        public PartitionMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
+                                       int threads, QueryCostEstimator costEstimator) {
             this.executor = executor;
             this.matcherFactory = matcherFactory;
             this.threads = threads;
+            this.costEstimator = costEstimator;
         }
 
         @Override
         public PartitionMatcher<T> createMatcher(DocumentBatch docs) {
-            return new PartitionMatcher<>(docs, executor, matcherFactory, threads);
+            return new PartitionMatcher<>(docs, executor, matcherFactory, threads, costEstimator);
         }
     }
 
+    /**
+     * Create a new PartitionMatcherFactory that distributes queries by their estimated cost
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param threads the number of threads to use
+     * @param costEstimator the QueryCostEstimator to use
+     * @param <T> the type of QueryMatch generated
+     * @return a PartitionMatcherFactory
+     */
+    public static <T extends QueryMatch> PartitionMatcherFactory<T> factory(ExecutorService executor,
+                                                                           MatcherFactory<T> matcherFactory, int threads,
+                                                                           QueryCostEstimator costEstimator) {
+        return new PartitionMatcherFactory<>(executor, matcherFactory, threads, costEstimator);
+    }
+
     /**
      * Create a new PartitionMatcherFactory
      * @param executor the ExecutorService to use
@@ -0,0 +1,323 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.util.RingBuffer;
+
+/*
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Matcher class that runs candidate queries on worker threads while the query index
+ * is still being searched.
+ *
+ * Candidate queries are collected into batches as the presearcher selects them, and
+ * each full batch is handed to the worker threads through a lock-free {@link RingBuffer}.
+ * If the workers fall behind then the buffer fills up, and the presearcher search waits
+ * for space to become available.
+ *
+ * Use this when a document selects large numbers of candidate queries.  Unlike
+ * {@link uk.co.flax.luwak.matchers.PartitionMatcher}, matching starts as soon as the
+ * first batch is full, and unlike {@link uk.co.flax.luwak.matchers.ParallelMatcher},
+ * synchronization costs are paid once per batch rather than once per query.
+ *
+ * @see uk.co.flax.luwak.matchers.ParallelMatcher
+ * @see uk.co.flax.luwak.matchers.PartitionMatcher
+ *
+ * @param <T> the QueryMatch type returned
+ */
+public class PipelinedMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /** The default number of candidate queries in a batch */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int BUFFER_BATCHES_PER_THREAD = 4;
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final RingBuffer<List<MatcherTask>> buffer;
+
+    private final int batchSize;
+
+    private List<MatcherTask> batch;
+
+    private final List<Future<CandidateMatcher<T>>> futures = new ArrayList<>();
+
+    private final List<MatcherWorker> workers = new ArrayList<>();
+
+    private final CandidateMatcher<T> collectorMatcher;
+
+    /* The first exception thrown by a worker, after which no more tasks are accepted */
+    private final AtomicReference<Throwable> workerFailure = new AtomicReference<>();
+
+    /* Set when the match run is finished or has failed, to stop any workers still waiting for tasks */
+    private volatile boolean stopped = false;
+
+    /**
+     * Create a new PipelinedMatcher
+     * @param docs the DocumentBatch to match against
+     * @param executor an ExecutorService to use for parallel execution
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers
+     * @param threads the number of threads to execute on
+     * @param batchSize the number of candidate queries to pass to a worker at once
+     */
+    public PipelinedMatcher(DocumentBatch docs, ExecutorService executor,
+                            MatcherFactory<T> matcherFactory, int threads, int batchSize) {
+        super(docs);
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+        this.buffer = new RingBuffer<>(threads * BUFFER_BATCHES_PER_THREAD);
+        for (int i = 0; i < threads; i++) {
+            MatcherWorker mw = new MatcherWorker(matcherFactory);
+            workers.add(mw);
+            futures.add(executor.submit(mw));
+        }
+        collectorMatcher = matcherFactory.createMatcher(docs);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        checkWorkers();
+        batch.add(new MatcherTask(queryId, matchQuery, metadata));
+        if (batch.size() >= batchSize) {
+            // the batch is replaced before publishing, so that a failed publish cannot grow it
+            List<MatcherTask> tasks = batch;
+            batch = new ArrayList<>(batchSize);
+            publish(tasks);
+        }
+    }
+
+    private void checkWorkers() throws IOException {
+        Throwable failure = workerFailure.get();
+        if (failure != null) {
+            batch.clear();
+            throw new IOException("Worker thread failed during match: " + failure, failure);
+        }
+    }
+
+    private void publish(List<MatcherTask> tasks) throws IOException {
+        long parkNanos = 1;
+        while (buffer.offer(tasks) == false) {
+            checkWorkers();
+            if (Thread.interrupted())
+                throw new IOException("Interrupted during match", new InterruptedException());
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return collectorMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void setSlowLogLimit(long t) {
+        for (MatcherWorker mw : workers) {
+            mw.setSlowLogLimit(t);
+        }
+    }
+
+    @Override
+    public void setQueryStatistics(QueryStatistics queryStatistics) {
+        for (MatcherWorker mw : workers) {
+            mw.matcher.setQueryStatistics(queryStatistics);
+        }
+    }
+
+    @Override
+    public void abort() {
+        stopped = true;
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+        try {
+            if (batch.isEmpty() == false)
+                publish(batch);
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < futures.size(); i++) {
+                publish(END);
+            }
+
+            for (Future<CandidateMatcher<T>> future : futures) {
+                Matches<T> matches = future.get().getMatches();
+                for (DocumentMatches<T> docMatches : matches) {
+                    for (T match : docMatches) {
+                        this.addMatch(match);
+                    }
+                }
+                for (MatchError error : matches.getErrors()) {
+                    this.reportError(error);
+                }
+                this.slowlog.addAll(matches.getSlowLog());
+            }
+
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Worker thread failed during match: " + e.getCause(), e.getCause());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted during match", e);
+        } finally {
+            // if END could not be published to every worker, make sure the rest still exit
+            stopped = true;
+        }
+        super.finish(buildTime, queryCount);
+    }
+
+    private class MatcherWorker implements Callable<CandidateMatcher<T>> {
+
+        final CandidateMatcher<T> matcher;
+
+        private MatcherWorker(MatcherFactory<T> matcherFactory) {
+            this.matcher = matcherFactory.createMatcher(docs);
+            this.matcher.setSlowLogLimit(slowlog.getLimit());
+        }
+
+        @Override
+        public CandidateMatcher<T> call() {
+            try {
+                List<MatcherTask> tasks;
+                while ((tasks = take()) != END && stopped == false) {
+                    for (MatcherTask task : tasks) {
+                        try {
+                            matcher.matchQuery(task.id, task.matchQuery, task.metadata);
+                        } catch (IOException e) {
+                            matcher.reportError(new MatchError(task.id, e));
+                        }
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                workerFailure.compareAndSet(null, e);
+                throw e;
+            }
+            return matcher;
+        }
+
+        private List<MatcherTask> take() {
+            long parkNanos = 1;
+            List<MatcherTask> tasks;
+            while ((tasks = buffer.poll()) == null) {
+                if (stopped)
+                    return END;
+                if (Thread.currentThread().isInterrupted())
+                    throw new RuntimeException("Interrupted during match", new InterruptedException());
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+            }
+            return tasks;
+        }
+
+        public void setSlowLogLimit(long t) {
+            matcher.setSlowLogLimit(t);
+        }
+
+    }
+
+    private static class MatcherTask {
+
+        final String id;
+        final Query matchQuery;
+        final Map<String,String> metadata;
+
+        private MatcherTask(String id, Query matchQuery, Map<String, String> metadata) {
+            this.id = id;
+            this.matchQuery = matchQuery;
+            this.metadata = metadata;
+        }
+    }
+
+    /* Marker batch placed on the buffer after all matches are done, to indicate to the
+       worker threads that they should finish */
+    private static final List<MatcherTask> END = Collections.emptyList();
+
+    public static class PipelinedMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+        private final ExecutorService executor;
+        private final MatcherFactory<T> matcherFactory;
+        private final int threads;
+        private final int batchSize;
+
+        public PipelinedMatcherFactory(ExecutorService executor, MatcherFactory<T> matcherFactory,
+                                       int threads, int batchSize) {
+            this.executor = executor;
+            this.matcherFactory = matcherFactory;
+            this.threads = threads;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public PipelinedMatcher<T> createMatcher(DocumentBatch docs) {
+            return new PipelinedMatcher<>(docs, executor, matcherFactory, threads, batchSize);
+        }
+    }
+
+    /**
+     * Create a new PipelinedMatcherFactory
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param threads the number of threads to use
+     * @param batchSize the number of candidate queries to pass to a worker at once
+     * @param <T> the type of QueryMatch generated
+     * @return a PipelinedMatcherFactory
+     */
+    public static <T extends QueryMatch> PipelinedMatcherFactory<T> factory(ExecutorService executor,
+                                                                            MatcherFactory<T> matcherFactory,
+                                                                            int threads, int batchSize) {
+        return new PipelinedMatcherFactory<>(executor, matcherFactory, threads, batchSize);
+    }
+
+    /**
+     * Create a new PipelinedMatcherFactory, using {@link #DEFAULT_BATCH_SIZE}
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param threads the number of threads to use
+     * @param <T> the type of QueryMatch generated
+     * @return a PipelinedMatcherFactory
+     */
+    public static <T extends QueryMatch> PipelinedMatcherFactory<T> factory(ExecutorService executor,
+                                                                            MatcherFactory<T> matcherFactory, int threads) {
+        return new PipelinedMatcherFactory<>(executor, matcherFactory, threads, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Create a new PipelinedMatcherFactory
+     *
+     * This factory will create a PipelinedMatcher that uses as many threads as there are cores available
+     * to the JVM (as determined by {@code Runtime.getRuntime().availableProcessors()}).
+     *
+     * @param executor the ExecutorService to use
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param <T> the type of QueryMatch generated
+     * @return a PipelinedMatcherFactory
+     */
+    public static <T extends QueryMatch> PipelinedMatcherFactory<T> factory(ExecutorService executor,
+                                                                            MatcherFactory<T> matcherFactory) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return new PipelinedMatcherFactory<>(executor, matcherFactory, threads, DEFAULT_BATCH_SIZE);
+    }
+
+}
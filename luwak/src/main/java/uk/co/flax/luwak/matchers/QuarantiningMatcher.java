@@ -0,0 +1,326 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.*;
+
+/*
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Matcher class that sends chronically expensive queries to a separate pool of threads
+ *
+ * Each candidate query is checked against a {@link Policy}, using the statistics recorded
+ * for it in a Monitor's {@link QueryStatistics} registry.  Queries that the policy
+ * quarantines are set aside, and all other queries are run directly by a matcher built
+ * from the supplied MatcherFactory.  Quarantined queries continue to have their statistics
+ * recorded, so a query that becomes cheaper will be released from quarantine.
+ *
+ * Quarantined queries do not hold up the match run.  The {@link Matches} returned by the
+ * Monitor only contain the matches of the queries that were not quarantined, and once the
+ * run has finished, the quarantined queries are run on the quarantine executor, which would
+ * normally use low-priority threads.  Their matches, errors and slow log are passed to the
+ * supplied consumer as a separate Matches object, on a quarantine thread, after all of them
+ * have been run.  The consumer is not called for runs with no quarantined queries, or for
+ * runs that fail.  The quarantined queries are run against a private copy of the
+ * DocumentBatch, so the caller may close its batch as soon as the match run returns.
+ *
+ * The Monitor must be configured to collect statistics, see
+ * {@link QueryIndexConfiguration#setCollectQueryStatistics(boolean)}.
+ *
+ * @param <T> the QueryMatch type returned
+ */
+public class QuarantiningMatcher<T extends QueryMatch> extends CandidateMatcher<T> {
+
+    /**
+     * Decides whether or not a query should be quarantined
+     */
+    public interface Policy {
+
+        /**
+         * @param stats the recorded statistics for a query
+         * @return {@code true} if the query should be run on the quarantine executor
+         */
+        boolean quarantine(QueryStatistics.Stats stats);
+
+        /**
+         * Quarantine queries whose median run time is above a limit
+         * @param minCalls the minimum number of recorded runs before a query can be quarantined
+         * @param limit the median run time limit, in nanoseconds
+         * @return a quarantine Policy
+         */
+        static Policy medianTimeAbove(long minCalls, long limit) {
+            return stats -> stats.getCalls() >= minCalls && stats.getP50() > limit;
+        }
+    }
+
+    private final QueryStatistics statistics;
+    private final Policy policy;
+
+    private final MatcherFactory<T> matcherFactory;
+    private final ExecutorService quarantineExecutor;
+    private final int quarantineThreads;
+    private final Consumer<Matches<T>> quarantinedMatches;
+
+    private final CandidateMatcher<T> fastMatcher;
+
+    /* Queries set aside during the run, which are only handed to the quarantine executor by
+       finish(), so that a failed run has nothing to cancel */
+    private final List<MatcherTask> quarantined = new ArrayList<>();
+
+    private QueryStatistics queryStatistics;
+
+    /**
+     * Create a new QuarantiningMatcher
+     * @param docs the DocumentBatch to match against
+     * @param statistics the Monitor's QueryStatistics registry
+     * @param policy the Policy deciding which queries to quarantine
+     * @param matcherFactory MatcherFactory to use to create CandidateMatchers
+     * @param quarantineExecutor the ExecutorService to run quarantined queries on
+     * @param quarantineThreads the number of threads to run quarantined queries on
+     * @param quarantinedMatches called with the results of the quarantined queries
+     */
+    public QuarantiningMatcher(DocumentBatch docs, QueryStatistics statistics, Policy policy,
+                               MatcherFactory<T> matcherFactory, ExecutorService quarantineExecutor, int quarantineThreads,
+                               Consumer<Matches<T>> quarantinedMatches) {
+        super(docs);
+        this.statistics = statistics;
+        this.policy = policy;
+        this.matcherFactory = matcherFactory;
+        this.quarantineExecutor = quarantineExecutor;
+        this.quarantineThreads = quarantineThreads;
+        this.quarantinedMatches = quarantinedMatches;
+        this.fastMatcher = matcherFactory.createMatcher(docs);
+    }
+
+    @Override
+    protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+        QueryStatistics.Stats stats = statistics.get(queryId);
+        if (stats != null && policy.quarantine(stats))
+            quarantined.add(new MatcherTask(queryId, matchQuery, metadata));
+        else
+            fastMatcher.matchQuery(queryId, matchQuery, metadata);
+    }
+
+    @Override
+    public T resolve(T match1, T match2) {
+        return fastMatcher.resolve(match1, match2);
+    }
+
+    @Override
+    public void setSlowLogLimit(long t) {
+        super.setSlowLogLimit(t);
+        fastMatcher.setSlowLogLimit(t);
+    }
+
+    @Override
+    public void setQueryStatistics(QueryStatistics queryStatistics) {
+        // statistics are recorded by the delegate matchers
+        this.queryStatistics = queryStatistics;
+        fastMatcher.setQueryStatistics(queryStatistics);
+    }
+
+    @Override
+    public void abort() {
+        fastMatcher.abort();
+        quarantined.clear();
+    }
+
+    @Override
+    public void finish(long buildTime, int queryCount) {
+        fastMatcher.finish(buildTime, queryCount);
+        Matches<T> matches = fastMatcher.getMatches();
+        for (DocumentMatches<T> docMatches : matches) {
+            for (T match : docMatches) {
+                this.addMatch(match);
+            }
+        }
+        for (MatchError error : matches.getErrors()) {
+            this.reportError(error);
+        }
+        this.slowlog.addAll(matches.getSlowLog());
+        super.finish(buildTime, queryCount);
+        if (quarantined.isEmpty() == false)
+            new QuarantineRun(new ArrayList<>(quarantined)).start();
+        quarantined.clear();
+    }
+
+    // Runs the quarantined queries of a finished match run on the quarantine executor
+    private class QuarantineRun {
+
+        private final int queryCount;
+        private final Queue<MatcherTask> tasks;
+        private final DocumentBatch batch;
+        private final List<CandidateMatcher<T>> workers = new ArrayList<>();
+        private final AtomicInteger running;
+
+        QuarantineRun(List<MatcherTask> tasks) {
+            this.queryCount = tasks.size();
+            this.tasks = new ConcurrentLinkedQueue<>(tasks);
+            // the caller's batch may be closed, or its index buffers reused, once the run returns
+            List<InputDocument> documents = new ArrayList<>();
+            for (InputDocument doc : docs) {
+                documents.add(doc);
+            }
+            this.batch = new DocumentBatch.Builder().addAll(documents).setSimilarity(docs.getSimilarity()).build();
+            for (int i = 0; i < Math.max(1, Math.min(quarantineThreads, tasks.size())); i++) {
+                CandidateMatcher<T> worker = matcherFactory.createMatcher(batch);
+                worker.setSlowLogLimit(slowlog.getLimit());
+                if (queryStatistics != null)
+                    worker.setQueryStatistics(queryStatistics);
+                workers.add(worker);
+            }
+            this.running = new AtomicInteger(workers.size());
+        }
+
+        void start() {
+            for (CandidateMatcher<T> worker : workers) {
+                try {
+                    quarantineExecutor.execute(() -> {
+                        try {
+                            run(worker);
+                        }
+                        finally {
+                            workerFinished();
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    workerFinished();
+                }
+            }
+        }
+
+        private void run(CandidateMatcher<T> worker) {
+            MatcherTask task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    worker.matchQuery(task.id, task.matchQuery, task.metadata);
+                }
+                catch (IOException | RuntimeException e) {
+                    worker.reportError(new MatchError(task.id, e));
+                }
+            }
+        }
+
+        private void workerFinished() {
+            if (running.decrementAndGet() > 0)
+                return;
+            // the workers' results are merged as ParallelMatcher merges them, into a matcher that
+            // resolves repeated matches with a matcher built by the wrapped factory, and has no
+            // queries of its own to run or quarantine
+            QuarantiningMatcher<T> merged = new QuarantiningMatcher<>(batch, statistics, policy, matcherFactory,
+                    quarantineExecutor, quarantineThreads, quarantinedMatches);
+            merged.setSlowLogLimit(slowlog.getLimit());
+            for (CandidateMatcher<T> worker : workers) {
+                Matches<T> matches = worker.getMatches();
+                for (DocumentMatches<T> docMatches : matches) {
+                    for (T match : docMatches) {
+                        merged.addMatch(match);
+                    }
+                }
+                for (MatchError error : matches.getErrors()) {
+                    merged.reportError(error);
+                }
+                merged.slowlog.addAll(matches.getSlowLog());
+            }
+            // only left over if the quarantine executor rejected every worker
+            MatcherTask task;
+            while ((task = tasks.poll()) != null) {
+                merged.reportError(new MatchError(task.id, new RejectedExecutionException("Quarantined query was not run")));
+            }
+            merged.finish(0, queryCount);
+            try {
+                batch.close();
+            }
+            catch (IOException e) {
+                // in-memory index, so should never happen
+            }
+            quarantinedMatches.accept(merged.getMatches());
+        }
+    }
+
+    private static class MatcherTask {
+
+        final String id;
+        final Query matchQuery;
+        final Map<String, String> metadata;
+
+        private MatcherTask(String id, Query matchQuery, Map<String, String> metadata) {
+            this.id = id;
+            this.matchQuery = matchQuery;
+            this.metadata = metadata;
+        }
+    }
+
+    public static class QuarantiningMatcherFactory<T extends QueryMatch> implements MatcherFactory<T> {
+
+        private final QueryStatistics statistics;
+        private final Policy policy;
+        private final MatcherFactory<T> matcherFactory;
+        private final ExecutorService quarantineExecutor;
+        private final int quarantineThreads;
+        private final Consumer<Matches<T>> quarantinedMatches;
+
+        public QuarantiningMatcherFactory(QueryStatistics statistics, Policy policy, MatcherFactory<T> matcherFactory,
+                                          ExecutorService quarantineExecutor, int quarantineThreads,
+                                          Consumer<Matches<T>> quarantinedMatches) {
+            this.statistics = statistics;
+            this.policy = policy;
+            this.matcherFactory = matcherFactory;
+            this.quarantineExecutor = quarantineExecutor;
+            this.quarantineThreads = quarantineThreads;
+            this.quarantinedMatches = quarantinedMatches;
+        }
+
+        @Override
+        public QuarantiningMatcher<T> createMatcher(DocumentBatch docs) {
+            return new QuarantiningMatcher<>(docs, statistics, policy, matcherFactory, quarantineExecutor,
+                    quarantineThreads, quarantinedMatches);
+        }
+    }
+
+    /**
+     * Create a new QuarantiningMatcherFactory
+     * @param statistics the Monitor's QueryStatistics registry
+     * @param policy the Policy deciding which queries to quarantine
+     * @param matcherFactory the MatcherFactory to use to create submatchers
+     * @param quarantineExecutor the ExecutorService to run quarantined queries on
+     * @param quarantineThreads the number of threads to run quarantined queries on
+     * @param quarantinedMatches called on a quarantine thread with the results of each run's quarantined queries
+     * @param <T> the type of QueryMatch generated
+     * @return a QuarantiningMatcherFactory
+     */
+    public static <T extends QueryMatch> QuarantiningMatcherFactory<T> factory(QueryStatistics statistics, Policy policy,
+                                                                               MatcherFactory<T> matcherFactory,
+                                                                               ExecutorService quarantineExecutor,
+                                                                               int quarantineThreads,
+                                                                               Consumer<Matches<T>> quarantinedMatches) {
+        return new QuarantiningMatcherFactory<>(statistics, policy, matcherFactory, quarantineExecutor,
+                quarantineThreads, quarantinedMatches);
+    }
+
+}
@@ -0,0 +1,116 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanQuery;
+import uk.co.flax.luwak.QueryCostEstimator;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
+
+/**
+ * A QueryCostEstimator that uses the structure of a query to guess its cost
+ *
+ * Simple term queries are given a cost of 1.  Positional queries are more expensive,
+ * and queries that need to expand against the document terms (wildcards, regular expressions,
+ * fuzzy queries, etc) are more expensive still.  Compound queries cost the sum of their
+ * clauses.
+ *
+ * Override the individual cost methods to tune the estimates for a particular query set.
+ */
+public class QueryTypeCostEstimator implements QueryCostEstimator {
+
+    @Override
+    public double estimateCost(String queryId, Query query) {
+        return cost(query);
+    }
+
+    /**
+     * Estimate the cost of a query
+     * @param query the query
+     * @return the estimated cost
+     */
+    protected double cost(Query query) {
+        if (query instanceof ForceNoBulkScoringQuery)
+            return cost(((ForceNoBulkScoringQuery) query).getWrappedQuery());
+        if (query instanceof BoostQuery)
+            return cost(((BoostQuery) query).getQuery());
+        if (query instanceof ConstantScoreQuery)
+            return cost(((ConstantScoreQuery) query).getQuery());
+        if (query instanceof BooleanQuery) {
+            double cost = 0;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                cost += cost(clause.getQuery());
+            }
+            return Math.max(cost, termCost());
+        }
+        if (query instanceof DisjunctionMaxQuery) {
+            double cost = 0;
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                cost += cost(disjunct);
+            }
+            return Math.max(cost, termCost());
+        }
+        if (query instanceof TermQuery)
+            return termCost();
+        if (query instanceof TermInSetQuery)
+            return termCost() * Math.max(1, ((TermInSetQuery) query).getTermData().size());
+        if (query instanceof PhraseQuery)
+            return phraseCost(((PhraseQuery) query).getTerms().length);
+        if (query instanceof MultiPhraseQuery) {
+            int terms = 0;
+            for (Object[] position : ((MultiPhraseQuery) query).getTermArrays()) {
+                terms += position.length;
+            }
+            return phraseCost(terms);
+        }
+        if (query instanceof SpanMultiTermQueryWrapper || query instanceof MultiTermQuery)
+            return multiTermCost();
+        if (query instanceof SpanQuery)
+            return spanCost();
+        return unknownCost();
+    }
+
+    /** @return the cost of a single term query */
+    protected double termCost() {
+        return 1;
+    }
+
+    /**
+     * @param terms the number of terms in the phrase
+     * @return the cost of a phrase query
+     */
+    protected double phraseCost(int terms) {
+        return 4 * terms * termCost();
+    }
+
+    /** @return the cost of a span query */
+    protected double spanCost() {
+        return 20;
+    }
+
+    /** @return the cost of a query that expands to multiple terms, such as a wildcard or regexp query */
+    protected double multiTermCost() {
+        return 100;
+    }
+
+    /** @return the cost of a query of unknown type */
+    protected double unknownCost() {
+        return 10;
+    }
+
+}
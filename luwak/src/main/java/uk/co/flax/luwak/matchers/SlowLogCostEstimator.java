@@ -0,0 +1,143 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+import uk.co.flax.luwak.QueryCostEstimator;
+import uk.co.flax.luwak.QueryStatistics;
+import uk.co.flax.luwak.SlowLog;
+
+/**
+ * A QueryCostEstimator that learns query costs from the {@link SlowLog}s of previous match runs
+ *
+ * Feed the estimator with {@link #update(SlowLog)} after each match run.  Queries that have
+ * appeared in a slow log are estimated using an exponentially-weighted moving average of
+ * their recorded times; other queries fall back to a second estimator, scaled by a
+ * fixed number of nanoseconds per unit of cost.
+ *
+ * A slow log only records queries that take longer than its limit, so the average is only
+ * fed by slow runs of a query, and is biased towards them.  A query that stops appearing
+ * in slow logs, because it now runs faster than the limit, keeps its estimate until the
+ * estimate expires, after a fixed number of updates, when it falls back to the second
+ * estimator again.  Expiry also bounds the number of queries held.  To estimate costs from
+ * every run of a query, use {@link QueryStatistics} instead.
+ */
+public class SlowLogCostEstimator implements QueryCostEstimator {
+
+    private final ConcurrentMap<String, Cost> costs = new ConcurrentHashMap<>();
+    private final AtomicLong updates = new AtomicLong();
+
+    private final QueryCostEstimator fallback;
+    private final double nanosPerUnit;
+    private final double weight;
+    private final long maxAge;
+
+    /**
+     * Create a new SlowLogCostEstimator
+     * @param fallback the estimator to use for queries that have not appeared in a slow log
+     * @param nanosPerUnit the time in nanoseconds assumed for each unit of fallback cost
+     * @param weight the weight given to a new slow log entry in the moving average, between 0 and 1
+     * @param maxAge the number of updates after which the estimate for a query that has not
+     *               appeared in them expires
+     */
+    public SlowLogCostEstimator(QueryCostEstimator fallback, double nanosPerUnit, double weight, long maxAge) {
+        if (weight <= 0 || weight > 1)
+            throw new IllegalArgumentException("Moving average weight must be in the range (0, 1]");
+        if (maxAge < 1)
+            throw new IllegalArgumentException("Maximum age must be at least one update");
+        this.fallback = fallback;
+        this.nanosPerUnit = nanosPerUnit;
+        this.weight = weight;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Create a new SlowLogCostEstimator whose estimates expire after 1000 updates
+     * @param fallback the estimator to use for queries that have not appeared in a slow log
+     * @param nanosPerUnit the time in nanoseconds assumed for each unit of fallback cost
+     * @param weight the weight given to a new slow log entry in the moving average, between 0 and 1
+     */
+    public SlowLogCostEstimator(QueryCostEstimator fallback, double nanosPerUnit, double weight) {
+        this(fallback, nanosPerUnit, weight, 1000);
+    }
+
+    /**
+     * Create a new SlowLogCostEstimator, falling back to a {@link QueryTypeCostEstimator}
+     */
+    public SlowLogCostEstimator() {
+        this(new QueryTypeCostEstimator(), 10000, 0.5);
+    }
+
+    /**
+     * Record the query times from a slow log
+     * @param slowlog the slow log from a match run
+     */
+    public void update(SlowLog slowlog) {
+        long update = updates.incrementAndGet();
+        for (SlowLog.Entry entry : slowlog) {
+            costs.merge(entry.getQueryId(), new Cost(entry.getTime(), update),
+                    (previous, cost) -> new Cost(previous.nanos + weight * (cost.nanos - previous.nanos), update));
+        }
+        // expired estimates are ignored by estimateCost(), and swept out every maxAge updates
+        if (update % maxAge == 0)
+            costs.values().removeIf(cost -> isExpired(cost, update));
+    }
+
+    @Override
+    public double estimateCost(String queryId, Query query) {
+        Cost cost = costs.get(queryId);
+        if (cost != null && isExpired(cost, updates.get()) == false)
+            return cost.nanos;
+        return fallback.estimateCost(queryId, query) * nanosPerUnit;
+    }
+
+    /**
+     * Forget the recorded time for a query
+     * @param queryId the query id
+     */
+    public void remove(String queryId) {
+        costs.remove(queryId);
+    }
+
+    /**
+     * @return the number of queries with a recorded time, including any that have expired
+     *         but not yet been discarded
+     */
+    public int size() {
+        return costs.size();
+    }
+
+    private boolean isExpired(Cost cost, long update) {
+        return update - cost.lastUpdate >= maxAge;
+    }
+
+    private static final class Cost {
+
+        final double nanos;
+        final long lastUpdate;
+
+        Cost(double nanos, long lastUpdate) {
+            this.nanos = nanos;
+            this.lastUpdate = lastUpdate;
+        }
+    }
+
+}
@@ -55,7 +55,7 @@ import java.util.Map;
  */
 public class MultipassTermFilteredPresearcher extends TermFilteredPresearcher {
 
-    private final int passes;
+    protected final int passes;
     private final float minWeight;
 
     /**
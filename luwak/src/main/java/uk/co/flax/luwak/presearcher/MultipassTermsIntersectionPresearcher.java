@@ -0,0 +1,70 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import uk.co.flax.luwak.QueryTermFilter;
+import uk.co.flax.luwak.termextractor.weights.TermWeightor;
+
+/**
+ * A MultipassTermFilteredPresearcher that selects queries with a {@link TermsIntersectionQuery}
+ *
+ * Queries are indexed in the same way as by {@link MultipassTermFilteredPresearcher}, and
+ * the same queries are selected, but document terms are walked once for all passes, rather
+ * than being looked up once per pass.  Only the terms the documents share with the query
+ * index are looked up in each pass, and the passes are combined by intersecting bitsets.
+ *
+ * Document terms are read directly from the document index, and so this presearcher
+ * does not take any {@link PresearcherComponent}s.
+ */
+public class MultipassTermsIntersectionPresearcher extends MultipassTermFilteredPresearcher {
+
+    /**
+     * Construct a new MultipassTermsIntersectionPresearcher
+     * @param passes the number of times a query should be indexed
+     * @param minWeight the minimum weight a querytree should be advanced over
+     * @param weightor the TreeWeightor to use
+     */
+    public MultipassTermsIntersectionPresearcher(int passes, float minWeight, TermWeightor weightor) {
+        super(passes, minWeight, weightor);
+    }
+
+    /**
+     * Construct a new MultipassTermsIntersectionPresearcher using {@link TermFilteredPresearcher#DEFAULT_WEIGHTOR}
+     *
+     * Note that this will be constructed with a minimum advance weight of zero
+     *
+     * @param passes the number of times a query should be indexed
+     */
+    public MultipassTermsIntersectionPresearcher(int passes) {
+        super(passes);
+    }
+
+    @Override
+    public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+        return new BooleanQuery.Builder()
+                .add(new TermsIntersectionQuery(reader, passes), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(ANYTOKEN_FIELD, ANYTOKEN)), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+}
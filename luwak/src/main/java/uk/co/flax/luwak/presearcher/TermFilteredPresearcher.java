@@ -26,6 +26,7 @@ import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
@@ -101,19 +102,24 @@ public class TermFilteredPresearcher extends Presearcher {
     }
 
     @Override
-    public final Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+    public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
         try {
             DocumentQueryBuilder queryBuilder = getQueryBuilder();
             for (FieldInfo fi : reader.getFieldInfos()) {
 
                 final String field = fi.name;
 
-                TokenStream ts = new TermsEnumTokenStream(reader.terms(field).iterator());
+                // no query can match on a field that is not in the query index
+                Terms terms = reader.terms(field);
+                if (terms == null || queryTermFilter.hasTerms(field) == false)
+                    continue;
+
+                TokenStream ts = new TermsEnumTokenStream(terms.iterator());
                 for (PresearcherComponent component : components) {
                     ts = component.filterDocumentTokens(field, ts);
                 }
 
-                ts = new BytesRefFilteredTokenFilter(ts, queryTermFilter.getTerms(field));
+                ts = new BytesRefFilteredTokenFilter(ts, queryTermFilter.getTermPredicate(field));
 
                 TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
                 while (ts.incrementToken()) {
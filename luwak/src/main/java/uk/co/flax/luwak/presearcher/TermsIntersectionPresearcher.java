@@ -0,0 +1,67 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import uk.co.flax.luwak.QueryTermFilter;
+import uk.co.flax.luwak.termextractor.weights.TermWeightor;
+
+/**
+ * A TermFilteredPresearcher that selects queries by intersecting the term dictionaries
+ * of the documents and of the query index, rather than by building a disjunction of
+ * document terms
+ *
+ * Queries are indexed in the same way as by {@link TermFilteredPresearcher}, and the
+ * same queries are selected, but the presearcher query is a {@link TermsIntersectionQuery},
+ * which is built in constant time and seeks only as far as the terms the documents and
+ * queries have in common.  This is fastest for large documents, where most document
+ * terms are not in the query index.
+ *
+ * Document terms are read directly from the document index, and so this presearcher
+ * does not take any {@link PresearcherComponent}s.
+ */
+public class TermsIntersectionPresearcher extends TermFilteredPresearcher {
+
+    /**
+     * Create a new TermsIntersectionPresearcher using a defined TermWeightor
+     * @param weightor the TermWeightor
+     */
+    public TermsIntersectionPresearcher(TermWeightor weightor) {
+        super(weightor);
+    }
+
+    /**
+     * Create a new TermsIntersectionPresearcher using the default term weighting
+     */
+    public TermsIntersectionPresearcher() {
+        this(DEFAULT_WEIGHTOR);
+    }
+
+    @Override
+    public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+        return new BooleanQuery.Builder()
+                .add(new TermsIntersectionQuery(reader), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(ANYTOKEN_FIELD, ANYTOKEN)), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+}
@@ -0,0 +1,200 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Selects the query index documents that share a term with a batch of documents
+ *
+ * Rather than looking up every document term in the query index, this query walks the
+ * term dictionaries of the document batch and of each query index segment together,
+ * each one seeking forward to the other's next term, and adds the postings of every
+ * shared term to a bitset of candidate queries.  No per-term queries are built, and
+ * runs of document terms that are not in the query index are skipped with a single
+ * seek.
+ *
+ * Queries indexed by a {@link MultipassTermFilteredPresearcher} can be selected by
+ * passing the number of passes.  Each pass's terms are also indexed under the plain
+ * field name, so the walk is made once, over the plain field, and only terms found there
+ * are looked up in the pass fields.  A query is selected if it shares a term with the
+ * documents in every pass.
+ *
+ * The document batch reader must stay open for as long as the query is used.
+ */
+public class TermsIntersectionQuery extends Query {
+
+    private final LeafReader documents;
+    private final int passes;
+
+    /**
+     * Create a TermsIntersectionQuery
+     * @param documents a reader over the documents to select queries for
+     */
+    public TermsIntersectionQuery(LeafReader documents) {
+        this(documents, 0);
+    }
+
+    /**
+     * Create a TermsIntersectionQuery over queries indexed by a {@link MultipassTermFilteredPresearcher}
+     * @param documents a reader over the documents to select queries for
+     * @param passes    the number of passes the queries were indexed with, or 0 if they
+     *                  were indexed in a single pass
+     */
+    public TermsIntersectionQuery(LeafReader documents, int passes) {
+        this.documents = documents;
+        this.passes = passes;
+    }
+
+    /**
+     * @return an equivalent query using a {@link TermInSetQuery} for each field of the documents
+     * @throws IOException on error
+     */
+    public Query toTermInSetQuery() throws IOException {
+        Map<String, List<BytesRef>> documentTerms = new HashMap<>();
+        for (FieldInfo fi : documents.getFieldInfos()) {
+            Terms terms = documents.terms(fi.name);
+            if (terms == null)
+                continue;
+            List<BytesRef> fieldTerms = new ArrayList<>();
+            TermsEnum te = terms.iterator();
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                fieldTerms.add(BytesRef.deepCopyOf(term));
+            }
+            documentTerms.put(fi.name, fieldTerms);
+        }
+        if (passes == 0)
+            return fieldDisjunction(documentTerms, -1);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < passes; i++) {
+            builder.add(fieldDisjunction(documentTerms, i), BooleanClause.Occur.MUST);
+        }
+        return builder.build();
+    }
+
+    private static Query fieldDisjunction(Map<String, List<BytesRef>> documentTerms, int pass) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Map.Entry<String, List<BytesRef>> entry : documentTerms.entrySet()) {
+            String field = pass < 0 ? entry.getKey() : MultipassTermFilteredPresearcher.field(entry.getKey(), pass);
+            builder.add(new TermInSetQuery(field, entry.getValue()), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                FixedBitSet candidates = intersect(context.reader());
+                if (candidates == null)
+                    return null;
+                return new ConstantScoreScorer(this, score(), new BitSetIterator(candidates, candidates.approximateCardinality()));
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // the results depend on the documents, not just on the segment
+                return false;
+            }
+        };
+    }
+
+    // returns the segment documents sharing a term with the batch in every pass, or null if there are none
+    private FixedBitSet intersect(LeafReader queries) throws IOException {
+        FixedBitSet[] candidates = new FixedBitSet[Math.max(passes, 1)];
+        PostingsEnum postings = null;
+        for (FieldInfo fi : documents.getFieldInfos()) {
+            Terms documentTerms = documents.terms(fi.name);
+            Terms queryTerms = queries.terms(fi.name);
+            if (documentTerms == null || queryTerms == null)
+                continue;
+            TermsEnum[] passEnums = new TermsEnum[passes];
+            for (int i = 0; i < passes; i++) {
+                Terms passTerms = queries.terms(MultipassTermFilteredPresearcher.field(fi.name, i));
+                passEnums[i] = passTerms == null ? null : passTerms.iterator();
+            }
+            TermsEnum documentEnum = documentTerms.iterator();
+            TermsEnum queryEnum = queryTerms.iterator();
+            BytesRef term = documentEnum.next();
+            while (term != null) {
+                TermsEnum.SeekStatus status = queryEnum.seekCeil(term);
+                if (status == TermsEnum.SeekStatus.END)
+                    break;
+                if (status == TermsEnum.SeekStatus.FOUND) {
+                    if (passes == 0) {
+                        postings = addPostings(candidates, 0, queryEnum, postings, queries.maxDoc());
+                    }
+                    for (int i = 0; i < passes; i++) {
+                        if (passEnums[i] != null && passEnums[i].seekExact(term))
+                            postings = addPostings(candidates, i, passEnums[i], postings, queries.maxDoc());
+                    }
+                    term = documentEnum.next();
+                }
+                else {
+                    // skip straight to the first document term that could be in the query index
+                    if (documentEnum.seekCeil(queryEnum.term()) == TermsEnum.SeekStatus.END)
+                        break;
+                    term = documentEnum.term();
+                }
+            }
+        }
+        FixedBitSet selected = candidates[0];
+        for (int i = 1; i < candidates.length && selected != null; i++) {
+            if (candidates[i] == null)
+                return null;
+            selected.and(candidates[i]);
+        }
+        return selected;
+    }
+
+    private static PostingsEnum addPostings(FixedBitSet[] candidates, int set, TermsEnum te,
+                                            PostingsEnum reuse, int maxDoc) throws IOException {
+        if (candidates[set] == null)
+            candidates[set] = new FixedBitSet(maxDoc);
+        PostingsEnum postings = te.postings(reuse, PostingsEnum.NONE);
+        candidates[set].or(postings);
+        return postings;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "TermsIntersectionQuery(" + documents.getFieldInfos().size() + " fields, " + passes + " passes)";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && documents == ((TermsIntersectionQuery) other).documents
+                && passes == ((TermsIntersectionQuery) other).passes;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * classHash() + System.identityHashCode(documents)) + passes;
+    }
+}
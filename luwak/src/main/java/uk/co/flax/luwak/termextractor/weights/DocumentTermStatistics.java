@@ -0,0 +1,179 @@
+package uk.co.flax.luwak.termextractor.weights;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Estimates the fraction of documents that contain each term, from a sample of the
+ * documents matched by a Monitor
+ *
+ * Document frequencies are held in a count-min sketch of fixed size, so estimates may be
+ * too high, but are never too low.  Once the number of documents sampled reaches the
+ * window size, all counts are halved, so that the statistics follow changes in the
+ * documents being matched.
+ *
+ * Pass an instance to {@link uk.co.flax.luwak.QueryIndexConfiguration#setDocumentTermStatistics(DocumentTermStatistics, int)}
+ * to have a Monitor collect statistics, and to a {@link SelectivityWeightNorm} to use them
+ * to choose the terms that queries are indexed under.
+ *
+ * This class is thread-safe.
+ */
+public class DocumentTermStatistics {
+
+    private static final int DEPTH = 4;
+
+    private final int[] counts;
+    private final int mask;
+    private final long window;
+
+    private long documents = 0;
+
+    /**
+     * Create a new DocumentTermStatistics
+     * @param width  the number of counters in each row of the sketch, rounded up to a power of two
+     * @param window the number of documents after which counts are halved
+     */
+    public DocumentTermStatistics(int width, long window) {
+        if (width < 1 || width > 1 << 26)
+            throw new IllegalArgumentException("Width must be between 1 and 2^26");
+        if (window < 2)
+            throw new IllegalArgumentException("Window must be at least two documents");
+        int size = Integer.highestOneBit(width * 2 - 1);
+        this.counts = new int[size * DEPTH];
+        this.mask = size - 1;
+        this.window = window;
+    }
+
+    /**
+     * Create a new DocumentTermStatistics with 65536 counters per row and a window of 100000 documents
+     */
+    public DocumentTermStatistics() {
+        this(1 << 16, 100000);
+    }
+
+    /**
+     * Add the terms of a batch of documents to the statistics
+     *
+     * Terms are hashed before the statistics are locked, and the whole batch is then added
+     * under a single lock, so that concurrent match runs do not contend for it on every term.
+     *
+     * @param reader a reader over the documents
+     * @throws IOException on error
+     */
+    public void addDocuments(LeafReader reader) throws IOException {
+        int[] slots = new int[DEPTH * 64];
+        int[] increments = new int[64];
+        int termCount = 0;
+        for (FieldInfo fi : reader.getFieldInfos()) {
+            Terms terms = reader.terms(fi.name);
+            if (terms == null)
+                continue;
+            int seed = fieldSeed(fi.name);
+            TermsEnum te = terms.iterator();
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                if (termCount == increments.length) {
+                    increments = ArrayUtil.grow(increments);
+                    slots = ArrayUtil.grow(slots, increments.length * DEPTH);
+                }
+                long hash = hash(term, seed);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32) | 1;
+                for (int row = 0; row < DEPTH; row++) {
+                    slots[termCount * DEPTH + row] = row * (mask + 1) + ((h1 + row * h2) & mask);
+                }
+                increments[termCount++] = te.docFreq();
+            }
+        }
+        add(slots, increments, termCount, reader.numDocs());
+    }
+
+    private synchronized void add(int[] slots, int[] increments, int termCount, int documentCount) {
+        for (int i = 0; i < termCount; i++) {
+            for (int row = 0; row < DEPTH; row++) {
+                int slot = slots[i * DEPTH + row];
+                counts[slot] = (int) Math.min((long) counts[slot] + increments[i], Integer.MAX_VALUE);
+            }
+        }
+        documents += documentCount;
+        if (documents >= window) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] >>>= 1;
+            }
+            documents >>>= 1;
+        }
+    }
+
+    /**
+     * @return the number of documents the statistics are currently based on
+     */
+    public synchronized long documentCount() {
+        return documents;
+    }
+
+    /**
+     * Estimate the number of sampled documents containing a term
+     * @param term the term
+     * @return an estimate of the number of documents containing the term, which may be too high
+     */
+    public synchronized long documentFrequency(Term term) {
+        long hash = hash(term.bytes(), fieldSeed(term.field()));
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int size = mask + 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counts[row * size + ((h1 + row * h2) & mask)]);
+        }
+        return Math.min(min, documents);
+    }
+
+    /**
+     * Estimate the fraction of sampled documents containing a term
+     * @param term the term
+     * @return the fraction of documents containing the term, or 0 if no documents have been sampled
+     */
+    public synchronized double documentFraction(Term term) {
+        if (documents == 0)
+            return 0;
+        return (double) documentFrequency(term) / documents;
+    }
+
+    private static int fieldSeed(String field) {
+        BytesRef bytes = new BytesRef(field.getBytes(StandardCharsets.UTF_8));
+        return StringHelper.murmurhash3_x86_32(bytes, 0);
+    }
+
+    // two independent 32-bit hashes of the term
+    private static long hash(BytesRef term, int seed) {
+        long h1 = StringHelper.murmurhash3_x86_32(term, seed);
+        long h2 = StringHelper.murmurhash3_x86_32(term, ~seed);
+        return (h2 << 32) | (h1 & 0xFFFFFFFFL);
+    }
+
+}
@@ -0,0 +1,68 @@
+package uk.co.flax.luwak.termextractor.weights;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import uk.co.flax.luwak.termextractor.QueryTerm;
+
+/**
+ * Weights terms by how rarely they appear in the documents being matched, using
+ * {@link DocumentTermStatistics} collected by a Monitor
+ *
+ * A query is selected by the presearcher for every document containing the term it is
+ * indexed under, so choosing rarer terms selects fewer queries that do not match.  The
+ * norm is scaled from 1, for terms that have not been seen, down to a minimum for terms
+ * that appear in every document, following the inverse document frequency of the term.
+ * Until enough documents have been sampled, all terms are weighted equally.
+ */
+public class SelectivityWeightNorm extends WeightNorm {
+
+    private final DocumentTermStatistics statistics;
+    private final float k;
+    private final long minDocuments;
+
+    /**
+     * Create a new SelectivityWeightNorm
+     * @param statistics   the document statistics to use
+     * @param k            the minimum weight, for terms in every document
+     * @param minDocuments the number of documents to sample before weighting terms
+     */
+    public SelectivityWeightNorm(DocumentTermStatistics statistics, float k, long minDocuments) {
+        this.statistics = statistics;
+        this.k = k;
+        this.minDocuments = minDocuments;
+    }
+
+    /**
+     * Create a new SelectivityWeightNorm with a minimum weight of 0.1, that weights terms
+     * once 100 documents have been sampled
+     * @param statistics the document statistics to use
+     */
+    public SelectivityWeightNorm(DocumentTermStatistics statistics) {
+        this(statistics, 0.1f, 100);
+    }
+
+    @Override
+    public float norm(QueryTerm term) {
+        long documents = statistics.documentCount();
+        if (documents < Math.max(minDocuments, 1))
+            return 1;
+        long df = statistics.documentFrequency(term.term);
+        double idf = Math.log((documents + 1d) / (df + 1d)) / Math.log(documents + 1d);
+        return (float) (k + (1 - k) * idf);
+    }
+
+}
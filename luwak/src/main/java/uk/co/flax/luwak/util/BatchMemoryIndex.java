@@ -0,0 +1,798 @@
+package uk.co.flax.luwak.util;
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.*;
+
+/**
+ * An in-memory index over a small number of documents, exposed as a single {@link LeafReader}
+ *
+ * This works in the same way as lucene's MemoryIndex, but holds more than one document.  Postings,
+ * positions, offsets and payload pointers are written straight into per-term int arrays, so no
+ * Directory, codec or merge is involved.  Documents are numbered in the order they are added.
+ *
+ * Doc values, points and term vectors are not supported; use {@link #supports(Iterable)} to check
+ * whether a document can be added.  Stored fields are returned from the original field objects.
+ *
+ * Call {@link #reset()} to clear the index and reuse its arrays for a new set of documents.  Any
+ * reader previously returned by {@link #createReader()} must not be used after a reset.
+ */
+public class BatchMemoryIndex {
+
+    // each occurrence of a term is stored as position, startOffset, endOffset, payload index
+    private static final int STRIDE = 4;
+
+    private final Map<String, FieldData> fields = new LinkedHashMap<>();
+    private final List<List<IndexableField>> storedFields = new ArrayList<>();
+    private final BytesRefArray payloads = new BytesRefArray(Counter.newCounter());
+
+    private Similarity similarity;
+
+    private int numDocs = 0;
+    private FieldInfos fieldInfos = null;
+
+    /**
+     * Create a new BatchMemoryIndex
+     * @param similarity the Similarity to use to compute norms
+     */
+    public BatchMemoryIndex(Similarity similarity) {
+        this.similarity = similarity;
+    }
+
+    /**
+     * Set the Similarity to use to compute norms for subsequently added documents
+     * @param similarity the Similarity
+     */
+    public void setSimilarity(Similarity similarity) {
+        this.similarity = similarity;
+    }
+
+    /**
+     * Check whether or not a document can be indexed by a BatchMemoryIndex
+     * @param document the document
+     * @return {@code false} if the document contains doc values, points or term vectors
+     */
+    public static boolean supports(Iterable<? extends IndexableField> document) {
+        for (IndexableField field : document) {
+            IndexableFieldType type = field.fieldType();
+            if (type.docValuesType() != DocValuesType.NONE || type.pointDataDimensionCount() != 0
+                    || type.storeTermVectors())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a document to the index
+     * @param document the document's fields
+     * @param analyzer the analyzer to use for tokenized fields
+     * @return the docid of the new document
+     * @throws IOException on analysis errors
+     * @throws IllegalStateException if a reader has already been created from this index
+     * @throws IllegalArgumentException if the document cannot be indexed
+     */
+    public int addDocument(Iterable<? extends IndexableField> document, Analyzer analyzer) throws IOException {
+        if (fieldInfos != null)
+            throw new IllegalStateException("Cannot add documents to a BatchMemoryIndex once a reader has been created");
+        if (supports(document) == false)
+            throw new IllegalArgumentException("BatchMemoryIndex does not support doc values, points or term vectors");
+
+        int docId = numDocs++;
+        List<IndexableField> stored = new ArrayList<>();
+        List<FieldData> docFields = new ArrayList<>();
+        for (IndexableField field : document) {
+            FieldData fd = fields.computeIfAbsent(field.name(), FieldData::new);
+            fd.seen = true;
+            if (field.fieldType().stored())
+                stored.add(field);
+            if (field.fieldType().indexOptions() == IndexOptions.NONE)
+                continue;
+            if (fd.startDocument(docId))
+                docFields.add(fd);
+            fd.invert(docId, field, analyzer);
+        }
+        for (FieldData fd : docFields) {
+            fd.finishDocument(docId);
+        }
+        storedFields.add(stored);
+        return docId;
+    }
+
+    /**
+     * Create a LeafReader over the documents added to this index
+     *
+     * No further documents may be added once a reader has been created
+     *
+     * @return a LeafReader
+     */
+    public LeafReader createReader() {
+        if (fieldInfos == null) {
+            List<FieldInfo> infos = new ArrayList<>();
+            for (FieldData fd : fields.values()) {
+                if (fd.seen) {
+                    fd.freeze();
+                    infos.add(fd.fieldInfo(infos.size()));
+                }
+            }
+            fieldInfos = new FieldInfos(infos.toArray(new FieldInfo[0]));
+        }
+        return new Reader();
+    }
+
+    /**
+     * Remove all documents from the index, retaining allocated arrays for reuse
+     */
+    public void reset() {
+        for (FieldData fd : fields.values()) {
+            fd.reset();
+        }
+        storedFields.clear();
+        payloads.clear();
+        numDocs = 0;
+        fieldInfos = null;
+    }
+
+    /**
+     * @return the number of documents in the index
+     */
+    public int numDocs() {
+        return numDocs;
+    }
+
+    private final class FieldData {
+
+        final String name;
+        boolean seen = false;
+        IndexOptions indexOptions = IndexOptions.NONE;
+        boolean omitNorms = false;
+        boolean hasPayloads = false;
+
+        final BytesRefHash terms = new BytesRefHash();
+        int[] sortedTerms;
+        int termCount;
+
+        // per-term data, indexed by term id
+        int[][] postings = new int[0][];
+        int[] postingsLength = new int[0];
+        int[] lastDoc = new int[0];
+        int[] freqSlot = new int[0];
+        int[] docFreq = new int[0];
+        long[] totalTermFreq = new long[0];
+
+        int docCount;
+        long sumDocFreq;
+        long sumTotalTermFreq;
+
+        // norms, in docid order
+        int[] normDocs = new int[0];
+        long[] normValues = new long[0];
+        int normCount;
+
+        // per-document inversion state
+        int currentDoc = -1;
+        int position, offset, length, numOverlap;
+
+        FieldData(String name) {
+            this.name = name;
+        }
+
+        boolean startDocument(int docId) {
+            if (currentDoc == docId)
+                return false;
+            currentDoc = docId;
+            position = -1;
+            offset = 0;
+            length = 0;
+            numOverlap = 0;
+            docCount++;
+            return true;
+        }
+
+        void invert(int docId, IndexableField field, Analyzer analyzer) throws IOException {
+            IndexableFieldType type = field.fieldType();
+            // Mirror IndexWriter: index options are downgraded to the weakest seen, and norms are
+            // omitted if any document omits them
+            if (indexOptions == IndexOptions.NONE || type.indexOptions().compareTo(indexOptions) < 0)
+                indexOptions = type.indexOptions();
+            omitNorms |= type.omitNorms();
+
+            try (TokenStream ts = field.tokenStream(analyzer, null)) {
+                TermToBytesRefAttribute termAtt = ts.getAttribute(TermToBytesRefAttribute.class);
+                PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+                OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+                PayloadAttribute payloadAtt = ts.getAttribute(PayloadAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    int posIncr = posIncrAtt.getPositionIncrement();
+                    position += posIncr;
+                    if (posIncr == 0)
+                        numOverlap++;
+                    length++;
+                    int payloadIndex = -1;
+                    BytesRef payload = payloadAtt == null ? null : payloadAtt.getPayload();
+                    if (payload != null && payload.length > 0) {
+                        hasPayloads = true;
+                        payloadIndex = payloads.append(payload);
+                    }
+                    addOccurrence(docId, termAtt.getBytesRef(),
+                            offset + offsetAtt.startOffset(), offset + offsetAtt.endOffset(), payloadIndex);
+                }
+                ts.end();
+                position += posIncrAtt.getPositionIncrement();
+                offset += offsetAtt.endOffset();
+            }
+            if (type.tokenized() && analyzer != null) {
+                position += analyzer.getPositionIncrementGap(name);
+                offset += analyzer.getOffsetGap(name);
+            }
+        }
+
+        private void addOccurrence(int docId, BytesRef term, int startOffset, int endOffset, int payloadIndex) {
+            int termId = terms.add(term);
+            if (termId < 0)
+                termId = -termId - 1;
+            else
+                newTerm(termId);
+            if (lastDoc[termId] != docId) {
+                lastDoc[termId] = docId;
+                docFreq[termId]++;
+                sumDocFreq++;
+                append(termId, docId);
+                freqSlot[termId] = postingsLength[termId];
+                append(termId, 0);
+            }
+            postings[termId][freqSlot[termId]]++;
+            totalTermFreq[termId]++;
+            sumTotalTermFreq++;
+            append(termId, position);
+            append(termId, startOffset);
+            append(termId, endOffset);
+            append(termId, payloadIndex);
+        }
+
+        private void newTerm(int termId) {
+            if (termId >= postings.length) {
+                int size = ArrayUtil.oversize(termId + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+                postings = Arrays.copyOf(postings, size);
+                postingsLength = Arrays.copyOf(postingsLength, size);
+                lastDoc = Arrays.copyOf(lastDoc, size);
+                freqSlot = Arrays.copyOf(freqSlot, size);
+                docFreq = Arrays.copyOf(docFreq, size);
+                totalTermFreq = Arrays.copyOf(totalTermFreq, size);
+            }
+            if (postings[termId] == null)
+                postings[termId] = new int[2 + STRIDE];
+            postingsLength[termId] = 0;
+            lastDoc[termId] = -1;
+            docFreq[termId] = 0;
+            totalTermFreq[termId] = 0;
+        }
+
+        private void append(int termId, int value) {
+            int[] p = postings[termId];
+            int len = postingsLength[termId];
+            if (len == p.length)
+                postings[termId] = p = ArrayUtil.grow(p, len + 1);
+            p[len] = value;
+            postingsLength[termId] = len + 1;
+        }
+
+        void finishDocument(int docId) {
+            FieldInvertState state = new FieldInvertState(Version.LATEST.major, name, position, length, numOverlap, offset);
+            normDocs = ArrayUtil.grow(normDocs, normCount + 1);
+            normValues = ArrayUtil.grow(normValues, normCount + 1);
+            normDocs[normCount] = docId;
+            normValues[normCount] = similarity.computeNorm(state);
+            normCount++;
+        }
+
+        void freeze() {
+            if (sortedTerms == null) {
+                termCount = terms.size();
+                sortedTerms = terms.sort();
+            }
+        }
+
+        FieldInfo fieldInfo(int number) {
+            boolean indexed = indexOptions != IndexOptions.NONE;
+            boolean payloads = hasPayloads && indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+            return new FieldInfo(name, number, false, indexed && omitNorms, payloads, indexOptions,
+                    DocValuesType.NONE, -1, new HashMap<>(), 0, 0, 0, false);
+        }
+
+        boolean hasFreqs() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+        }
+
+        boolean hasPositions() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+        }
+
+        boolean hasOffsets() {
+            return indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
+        }
+
+        void reset() {
+            seen = false;
+            indexOptions = IndexOptions.NONE;
+            omitNorms = false;
+            hasPayloads = false;
+            terms.clear();
+            terms.reinit();
+            sortedTerms = null;
+            docCount = 0;
+            sumDocFreq = 0;
+            sumTotalTermFreq = 0;
+            normCount = 0;
+            currentDoc = -1;
+        }
+    }
+
+    private final class Reader extends LeafReader {
+
+        @Override
+        public CacheHelper getCoreCacheHelper() {
+            return null;
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return null;
+        }
+
+        private FieldData indexedField(String field) {
+            FieldData fd = fields.get(field);
+            if (fd == null || fd.seen == false || fd.indexOptions == IndexOptions.NONE)
+                return null;
+            return fd;
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+            FieldData fd = indexedField(field);
+            if (fd == null || fd.termCount == 0)
+                return null;
+            return new FieldTerms(fd);
+        }
+
+        @Override
+        public NumericDocValues getNormValues(String field) throws IOException {
+            FieldData fd = indexedField(field);
+            if (fd == null || fd.omitNorms)
+                return null;
+            return new Norms(fd);
+        }
+
+        @Override
+        public NumericDocValues getNumericDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedDocValues getSortedDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedNumericDocValues getSortedNumericDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public PointValues getPointValues(String field) throws IOException {
+            return null;
+        }
+
+        @Override
+        public FieldInfos getFieldInfos() {
+            return fieldInfos;
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return null;
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+            // nothing to check
+        }
+
+        @Override
+        public LeafMetaData getMetaData() {
+            return new LeafMetaData(Version.LATEST.major, Version.LATEST, null);
+        }
+
+        @Override
+        public Fields getTermVectors(int docID) throws IOException {
+            return null;
+        }
+
+        @Override
+        public int numDocs() {
+            return numDocs;
+        }
+
+        @Override
+        public int maxDoc() {
+            return numDocs;
+        }
+
+        @Override
+        public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+            for (IndexableField field : storedFields.get(docID)) {
+                FieldInfo info = fieldInfos.fieldInfo(field.name());
+                switch (visitor.needsField(info)) {
+                    case YES:
+                        visitField(info, field, visitor);
+                        break;
+                    case NO:
+                        break;
+                    case STOP:
+                        return;
+                }
+            }
+        }
+
+        private void visitField(FieldInfo info, IndexableField field, StoredFieldVisitor visitor) throws IOException {
+            Number number = field.numericValue();
+            if (number != null) {
+                if (number instanceof Integer)
+                    visitor.intField(info, number.intValue());
+                else if (number instanceof Float)
+                    visitor.floatField(info, number.floatValue());
+                else if (number instanceof Double)
+                    visitor.doubleField(info, number.doubleValue());
+                else
+                    visitor.longField(info, number.longValue());
+                return;
+            }
+            BytesRef binary = field.binaryValue();
+            if (binary != null) {
+                visitor.binaryField(info, BytesRef.deepCopyOf(binary).bytes);
+                return;
+            }
+            String value = field.stringValue();
+            if (value != null)
+                visitor.stringField(info, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        protected void doClose() throws IOException {
+            // nothing to close
+        }
+
+        @Override
+        public String toString() {
+            return "BatchMemoryIndex.Reader(docs=" + numDocs + ")";
+        }
+    }
+
+    private static final class Norms extends NumericDocValues {
+
+        final FieldData fd;
+        int upto = -1;
+        int doc = -1;
+
+        Norms(FieldData fd) {
+            this.fd = fd;
+        }
+
+        @Override
+        public long longValue() throws IOException {
+            return fd.normValues[upto];
+        }
+
+        @Override
+        public boolean advanceExact(int target) throws IOException {
+            int i = Arrays.binarySearch(fd.normDocs, 0, fd.normCount, target);
+            if (i < 0) {
+                upto = -i - 2;
+                doc = target;
+                return false;
+            }
+            upto = i;
+            doc = target;
+            return true;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            upto++;
+            if (upto >= fd.normCount)
+                return doc = NO_MORE_DOCS;
+            return doc = fd.normDocs[upto];
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return slowAdvance(target);
+        }
+
+        @Override
+        public long cost() {
+            return fd.normCount;
+        }
+    }
+
+    private final class FieldTerms extends Terms {
+
+        final FieldData fd;
+
+        FieldTerms(FieldData fd) {
+            this.fd = fd;
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new FieldTermsEnum(fd);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return fd.termCount;
+        }
+
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            return fd.hasFreqs() ? fd.sumTotalTermFreq : -1;
+        }
+
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return fd.sumDocFreq;
+        }
+
+        @Override
+        public int getDocCount() throws IOException {
+            return fd.docCount;
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return fd.hasFreqs();
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return fd.hasOffsets();
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return fd.hasPositions();
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return fd.hasPositions() && fd.hasPayloads;
+        }
+    }
+
+    private final class FieldTermsEnum extends TermsEnum {
+
+        final FieldData fd;
+        final BytesRef term = new BytesRef();
+        int ord = -1;
+
+        FieldTermsEnum(FieldData fd) {
+            this.fd = fd;
+        }
+
+        private int termId() {
+            return fd.sortedTerms[ord];
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            int low = 0;
+            int high = fd.termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = fd.terms.get(fd.sortedTerms[mid], term).compareTo(text);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else {
+                    ord = mid;
+                    return SeekStatus.FOUND;
+                }
+            }
+            ord = low;
+            if (ord >= fd.termCount)
+                return SeekStatus.END;
+            fd.terms.get(termId(), term);
+            return SeekStatus.NOT_FOUND;
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            this.ord = (int) ord;
+            fd.terms.get(termId(), term);
+        }
+
+        @Override
+        public void seekExact(BytesRef term, TermState state) throws IOException {
+            seekExact(((OrdTermState) state).ord);
+        }
+
+        @Override
+        public TermState termState() throws IOException {
+            OrdTermState state = new OrdTermState();
+            state.ord = ord;
+            return state;
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            if (ord + 1 >= fd.termCount) {
+                ord = fd.termCount;
+                return null;
+            }
+            ord++;
+            return fd.terms.get(termId(), term);
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return term;
+        }
+
+        @Override
+        public long ord() throws IOException {
+            return ord;
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return fd.docFreq[termId()];
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return fd.hasFreqs() ? fd.totalTermFreq[termId()] : -1;
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            BatchPostingsEnum postings;
+            if (reuse instanceof BatchPostingsEnum && ((BatchPostingsEnum) reuse).fd == fd)
+                postings = (BatchPostingsEnum) reuse;
+            else
+                postings = new BatchPostingsEnum(fd);
+            return postings.reset(termId());
+        }
+    }
+
+    private final class BatchPostingsEnum extends PostingsEnum {
+
+        final FieldData fd;
+        final BytesRefBuilder payload = new BytesRefBuilder();
+
+        int[] data;
+        int end;
+        int upto;
+        int cost;
+
+        int doc;
+        int freq;
+        int posStart;
+        int posCount;
+        int current;
+
+        BatchPostingsEnum(FieldData fd) {
+            this.fd = fd;
+        }
+
+        BatchPostingsEnum reset(int termId) {
+            this.data = fd.postings[termId];
+            this.end = fd.postingsLength[termId];
+            this.cost = fd.docFreq[termId];
+            this.upto = 0;
+            this.doc = -1;
+            return this;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return fd.hasFreqs() ? freq : 1;
+        }
+
+        @Override
+        public int nextPosition() throws IOException {
+            if (fd.hasPositions() == false)
+                return -1;
+            assert posCount < freq;
+            current = posStart + posCount * STRIDE;
+            posCount++;
+            return data[current];
+        }
+
+        @Override
+        public int startOffset() throws IOException {
+            return fd.hasOffsets() ? data[current + 1] : -1;
+        }
+
+        @Override
+        public int endOffset() throws IOException {
+            return fd.hasOffsets() ? data[current + 2] : -1;
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            if (fd.hasPayloads == false || fd.hasPositions() == false || data[current + 3] < 0)
+                return null;
+            return payloads.get(payload, data[current + 3]);
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (upto >= end)
+                return doc = DocIdSetIterator.NO_MORE_DOCS;
+            doc = data[upto];
+            freq = data[upto + 1];
+            posStart = upto + 2;
+            posCount = 0;
+            upto = posStart + freq * STRIDE;
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return slowAdvance(target);
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+    }
+
+}
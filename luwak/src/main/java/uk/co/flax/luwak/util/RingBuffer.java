@@ -0,0 +1,133 @@
+package uk.co.flax.luwak.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a ring buffer
+ *
+ * Each slot in the buffer carries a sequence number that tells producers and consumers
+ * whether it is free to write or ready to read, so {@link #offer(Object)} and {@link #poll()}
+ * only need a single compare-and-set on the shared head or tail position.  Neither method
+ * blocks: callers are responsible for backing off when the buffer is full or empty.
+ *
+ * @param <E> the type of element held in the buffer
+ */
+public final class RingBuffer<E> {
+
+    private final int mask;
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Create a new RingBuffer
+     * @param capacity the minimum capacity of the buffer; this is rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("RingBuffer capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.mask = size - 1;
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return the number of elements the buffer can hold
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Add an element to the buffer, if there is space
+     * @param element the element to add
+     * @return {@code true} if the element was added, or {@code false} if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+        long pos = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            }
+            else if (diff < 0) {
+                return false;
+            }
+            else {
+                pos = tail.get();
+            }
+        }
+        buffer[slot] = element;
+        sequences.set(slot, pos + 1);       // publishes the element to consumers
+        return true;
+    }
+
+    /**
+     * Remove an element from the buffer
+     * @return the oldest element in the buffer, or {@code null} if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head.get();
+        int slot;
+        while (true) {
+            slot = (int) pos & mask;
+            long diff = sequences.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1))
+                    break;
+                pos = head.get();
+            }
+            else if (diff < 0) {
+                return null;
+            }
+            else {
+                pos = head.get();
+            }
+        }
+        E element = (E) buffer[slot];
+        buffer[slot] = null;
+        sequences.set(slot, pos + mask + 1);    // releases the slot to producers
+        return element;
+    }
+
+    /**
+     * @return an estimate of the number of elements currently in the buffer
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, buffer.length));
+    }
+
+}
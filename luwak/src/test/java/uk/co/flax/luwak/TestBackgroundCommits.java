@@ -0,0 +1,183 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBackgroundCommits {
+
+    private static final InputDocument DOC
+            = InputDocument.builder("doc1").addField("field", "test", new StandardAnalyzer()).build();
+
+    private static int committedDocs(Directory directory) throws IOException {
+        if (DirectoryReader.indexExists(directory) == false)
+            return 0;
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.numDocs();
+        }
+    }
+
+    private static int matches(Monitor monitor) throws IOException {
+        return monitor.match(DOC, SimpleMatcher.FACTORY).getMatchCount("doc1");
+    }
+
+    @Test
+    public void testUpdatesAreVisibleBeforeTheyAreCommitted() throws Exception {
+
+        // the Monitor closes its directory, so keep it open to check what was committed
+        Directory directory = new FilterDirectory(new RAMDirectory()) {
+            @Override
+            public void close() { }
+        };
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(new KeywordAnalyzer()).setCommitOnClose(false));
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitInterval(1, TimeUnit.HOURS);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher(), writer, config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+            assertThat(matches(monitor)).isEqualTo(2);
+
+            CompletableFuture<Void> committed = monitor.awaitCommit();
+            assertThat(committed.isDone()).isFalse();
+            assertThat(committedDocs(directory)).isEqualTo(0);
+
+            monitor.commit();
+            assertThat(committed.isDone()).isTrue();
+            assertThat(monitor.awaitCommit().isDone()).isTrue();
+            assertThat(committedDocs(directory)).isEqualTo(2);
+
+            // pending changes are committed on close
+            monitor.deleteById("1");
+            assertThat(matches(monitor)).isEqualTo(1);
+        }
+        assertThat(committedDocs(directory)).isEqualTo(1);
+    }
+
+    @Test
+    public void testBackgroundCommits() throws Exception {
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitInterval(10, TimeUnit.MILLISECONDS);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher(), config)) {
+            for (int i = 0; i < 100; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+            monitor.awaitCommit().get(10, TimeUnit.SECONDS);
+            assertThat(matches(monitor)).isEqualTo(100);
+        }
+    }
+
+    @Test
+    public void testDeferredRefreshes() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setCommitInterval(1, TimeUnit.HOURS)
+                .setRefreshInterval(1, TimeUnit.HOURS);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+            assertThat(matches(monitor)).isEqualTo(0);
+
+            // queries added and deleted between refreshes are removed from the cache
+            monitor.update(new MonitorQuery("2", "test2"));
+            monitor.deleteById("2");
+            monitor.commit();
+            assertThat(matches(monitor)).isEqualTo(1);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+            assertThat(monitor.getQueryCount()).isEqualTo(1);
+        }
+    }
+
+    private static List<Indexable> update(String id, int version) {
+        BytesRef hash = new BytesRef(id + "_" + version);
+        Document doc = new Document();
+        doc.add(new StringField(Monitor.FIELDS.del, id, Field.Store.NO));
+        doc.add(new SortedDocValuesField(Monitor.FIELDS.id, new BytesRef(id)));
+        doc.add(new BinaryDocValuesField(Monitor.FIELDS.hash, hash));
+        QueryCacheEntry entry = new QueryCacheEntry(hash, new TermQuery(new Term("field", id)), null);
+        return Collections.singletonList(new Indexable(id, entry, doc));
+    }
+
+    @Test
+    public void testUpdatesDoNotRefreshWhenRefreshesAreDeferred() throws Exception {
+
+        QueryIndex queryIndex = new QueryIndex();
+        queryIndex.setUpdatePolicy(false, false);
+        AtomicInteger refreshes = new AtomicInteger();
+        queryIndex.addRefreshListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {}
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh)
+                    refreshes.incrementAndGet();
+            }
+        });
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                queryIndex.commit(update("1", i));
+            }
+            queryIndex.commit(update("2", 0));
+            queryIndex.deleteDocuments(new Term(Monitor.FIELDS.del, "2"));
+            queryIndex.commit(null);
+            assertThat(refreshes.get()).isEqualTo(0);
+
+            // queries replaced or deleted before they were visible are removed from the cache
+            queryIndex.refreshNow();
+            assertThat(refreshes.get()).isEqualTo(1);
+            assertThat(queryIndex.cacheSize()).isEqualTo(1);
+
+            // as are visible queries that are replaced between refreshes
+            for (int i = 10; i < 20; i++) {
+                queryIndex.commit(update("1", i));
+            }
+            assertThat(refreshes.get()).isEqualTo(1);
+            queryIndex.refreshNow();
+            assertThat(refreshes.get()).isEqualTo(2);
+            assertThat(queryIndex.cacheSize()).isEqualTo(1);
+        }
+        finally {
+            queryIndex.closeWhileHandlingException();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBoundedQueryCache {
+
+    private static QueryCacheEntry entry(String hash) {
+        return new QueryCacheEntry(new BytesRef(hash), new TermQuery(new Term("f", hash)), Collections.emptyMap());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreDiscarded() {
+
+        BoundedQueryCache cache = new BoundedQueryCache(2, 1);
+        cache.put(entry("a"));
+        cache.put(entry("b"));
+        assertThat(cache.get(new BytesRef("a"))).isNotNull();
+
+        cache.put(entry("c"));
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(new BytesRef("b"))).isNull();
+        assertThat(cache.get(new BytesRef("a"))).isNotNull();
+        assertThat(cache.get(new BytesRef("c"))).isNotNull();
+    }
+
+    @Test
+    public void testSegmentedCacheHoldsUpToMaxSize() {
+        BoundedQueryCache cache = new BoundedQueryCache(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(entry("query" + i));
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(100);
+        assertThat(cache.get(new BytesRef("query999"))).isNotNull();
+    }
+
+    @Test
+    public void testMonitorReparsesDiscardedQueries() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setLazyQueryParsing(true)
+                .setQueryCacheFactory(() -> new BoundedQueryCache(2, 1));
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test f:a"),
+                    new MonitorQuery("3", "test f:b"), new MonitorQuery("4", "test f:c"));
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2);
+
+            for (int i = 0; i < 2; i++) {
+                Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(4);
+            }
+
+            Monitor.QueryCacheStats stats = monitor.getQueryCacheStats();
+            assertThat(stats.cachedQueries).isEqualTo(2);
+            assertThat(stats.cacheHits + stats.cacheMisses).isEqualTo(8);
+            assertThat(stats.cacheMisses).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    public void testQueryLookupsDoNotLoadQueries() throws IOException, UpdateException {
+
+        AtomicInteger parses = new AtomicInteger();
+        MonitorQueryParser parser = (queryString, metadata) -> {
+            parses.incrementAndGet();
+            return new LuceneQueryParser("f").parse(queryString, metadata);
+        };
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setLazyQueryParsing(true)
+                .setQueryCacheFactory(() -> new BoundedQueryCache(2, 1));
+
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test f:a"),
+                    new MonitorQuery("3", "test f:b"), new MonitorQuery("4", "test f:c"));
+            int parsed = parses.get();
+
+            for (int i = 1; i <= 4; i++) {
+                assertThat(monitor.getQuery(Integer.toString(i))).isNotNull();
+            }
+
+            Monitor.QueryCacheStats stats = monitor.getQueryCacheStats();
+            assertThat(parses.get()).isEqualTo(parsed);
+            assertThat(stats.cacheHits + stats.cacheMisses).isEqualTo(0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBoundedCacheRequiresStoredQueries() throws IOException {
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setQueryCacheFactory(BoundedQueryCache.factory(100))
+                .storeQueries(false);
+        new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config);
+    }
+
+}
@@ -17,6 +17,10 @@ package uk.co.flax.luwak;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -24,6 +28,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -71,7 +82,7 @@ public class TestCachePurging {
 
             monitor.deleteById("1");
             assertThat(monitor.getQueryCount()).isEqualTo(2);
-            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(4);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2);
             assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(2);
 
             monitor.purgeCache();
@@ -125,7 +136,7 @@ public class TestCachePurging {
                     monitor.deleteById(Integer.toString(i));
                 }
 
-                assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(200);
+                assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(140);
 
                 logger.trace("Starting cache purge");
                 startUpdating.countDown();
@@ -162,7 +173,7 @@ public class TestCachePurging {
             }
             monitor.deleteById("5");
             assertThat(monitor.getQueryCacheStats().queries).isEqualTo(99);
-            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(100);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(99);
 
             TimeUnit.SECONDS.sleep(2);
             assertThat(monitor.getQueryCacheStats().queries).isEqualTo(99);
@@ -170,4 +181,127 @@ public class TestCachePurging {
             assertThat(monitor.getQueryCacheStats().lastPurged).isGreaterThan(0);
         }
     }
+
+    @Test
+    public void testNoBackgroundPurgesByDefault() throws IOException, InterruptedException, UpdateException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.update(newMonitorQuery(1));
+            assertThat(monitor.getQueryCacheStats().lastPurged).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    public void testSharedQueriesAreRemovedWhenLastCopyIsDeleted() throws IOException, UpdateException {
+
+        InputDocument doc = InputDocument.builder("doc1").addField("field", "test", new StandardAnalyzer()).build();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"), new MonitorQuery("3", "test"));
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+
+            // replacing a query with itself shouldn't change anything
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.deleteById("2", "2");
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(2);
+
+            monitor.deleteById("1");
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+
+            monitor.update(new MonitorQuery("3", "test2"));
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(0);
+
+            monitor.clear();
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testDecodedQueriesAreSharedUntilPurged() throws IOException {
+
+        QueryIndex queryIndex = new QueryIndex();
+        MonitorQuery mq = new MonitorQuery("1", "test");
+        QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("hash_0"), new TermQuery(new Term("f", "test")), mq.getMetadata());
+        Document doc = Monitor.buildIndexableQuery(new MatchAllPresearcher(), false, "1", mq, entry);
+        queryIndex.commit(Collections.singletonList(new Indexable("1", entry, doc)));
+
+        List<String> ids = new ArrayList<>();
+        List<QueryCacheEntry> entries = new ArrayList<>();
+        QueryIndex.QueryCollector collector = (id, query, dataValues) -> {
+            ids.add(id);
+            entries.add(query);
+        };
+
+        queryIndex.search(new MatchAllDocsQuery(), collector);
+        queryIndex.search(new MatchAllDocsQuery(), collector);
+        assertThat(ids).containsExactly("1", "1");
+        assertThat(ids.get(1)).isSameAs(ids.get(0));
+        assertThat(entries).containsExactly(entry, entry);
+        assertThat(queryIndex.segmentQueries).hasSize(1);
+
+        QueryCacheEntry replacement = new QueryCacheEntry(entry.hash, entry.matchQuery, entry.metadata);
+        queryIndex.purgeCache(cache -> cache.put(replacement));
+        queryIndex.search(new MatchAllDocsQuery(), collector);
+        assertThat(entries.get(2)).isSameAs(replacement);
+    }
+
+    @Test
+    public void testEntriesAreNotHeldForCachesThatBuildThem() throws IOException {
+
+        QueryIndex queryIndex = new QueryIndex(Monitor.defaultIndexWriter(new RAMDirectory()), PackedQueryCache::new, null);
+        MonitorQuery mq = new MonitorQuery("1", "test");
+        BytesRefBuilder hash = new BytesRefBuilder();
+        hash.append(mq.hash());
+        hash.append(new BytesRef("_0"));
+        QueryCacheEntry entry = new QueryCacheEntry(hash.toBytesRef(), new TermQuery(new Term("f", "test")), mq.getMetadata());
+        Document doc = Monitor.buildIndexableQuery(new MatchAllPresearcher(), false, "1", mq, entry);
+        queryIndex.commit(Collections.singletonList(new Indexable("1", entry, doc)));
+
+        List<QueryCacheEntry> entries = new ArrayList<>();
+        queryIndex.search(new MatchAllDocsQuery(), (id, query, dataValues) -> entries.add(query));
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).matchQuery).isEqualTo(entry.matchQuery);
+
+        assertThat(queryIndex.segmentQueries).hasSize(1);
+        for (QueryIndex.SegmentQueries segment : queryIndex.segmentQueries.values()) {
+            assertThat(segment.holdsEntries()).isFalse();
+        }
+    }
+
+    @Test
+    public void testHeldEntriesAreReleasedForDeletedQueries() throws IOException {
+
+        QueryIndex queryIndex = new QueryIndex();
+        QueryCacheEntry entry = new QueryCacheEntry(new BytesRef("hash_0"), new TermQuery(new Term("f", "test")), Collections.emptyMap());
+        queryIndex.commit(Arrays.asList(indexable("1", entry), indexable("2", entry)));
+
+        List<QueryCacheEntry> entries = new ArrayList<>();
+        queryIndex.search(new MatchAllDocsQuery(), (id, query, dataValues) -> entries.add(query));
+        assertThat(entries).containsExactly(entry, entry);
+        assertThat(queryIndex.segmentQueries).hasSize(1);
+        QueryIndex.SegmentQueries segment = queryIndex.segmentQueries.values().iterator().next();
+
+        // the hash is still shared with query 1, but the deleted document no longer holds it
+        QueryCacheEntry updated = new QueryCacheEntry(new BytesRef("hash_1"), new TermQuery(new Term("f", "updated")), Collections.emptyMap());
+        queryIndex.commit(Collections.singletonList(indexable("2", updated)));
+        assertThat(segment.entry(0)).isSameAs(entry);
+        assertThat(segment.entry(1)).isNull();
+        assertThat(entry.evicted).isFalse();
+
+        queryIndex.commit(Collections.singletonList(indexable("1", updated)));
+        assertThat(entry.evicted).isTrue();
+        assertThat(segment.entry(0)).isNull();
+
+        entries.clear();
+        queryIndex.search(new MatchAllDocsQuery(), (id, query, dataValues) -> entries.add(query));
+        assertThat(entries).containsExactly(updated, updated);
+    }
+
+    private static Indexable indexable(String id, QueryCacheEntry entry) {
+        MonitorQuery mq = new MonitorQuery(id, "test");
+        Document doc = Monitor.buildIndexableQuery(new MatchAllPresearcher(), false, id, mq, entry);
+        return new Indexable(id, entry, doc);
+    }
+
 }
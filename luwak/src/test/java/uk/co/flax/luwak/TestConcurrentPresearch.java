@@ -0,0 +1,169 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+public class TestConcurrentPresearch {
+
+    private ExecutorService executor;
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    private static IndexWriter unmergedIndexWriter() throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer());
+        iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+        return new IndexWriter(new RAMDirectory(), iwc);
+    }
+
+    @Test
+    public void testSegmentsAreSearchedConcurrently() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setPresearcherExecutor(executor);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                           unmergedIndexWriter(), config)) {
+
+            // each update is committed separately, and so gets its own segment
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test" + (i % 2) + " OR other" + i));
+            }
+
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", "test0 other1 other3", new WhitespaceAnalyzer())
+                    .build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+
+            assertThat(matches.getErrors()).isEmpty();
+            assertThat(matches.getMatchCount("doc")).isEqualTo(12);
+            assertThat(matches.getQueriesRun()).isEqualTo(12);
+            assertThat(matches.getPresearcherHits()).hasSize(12);
+        }
+
+    }
+
+    @Test
+    public void testConcurrentSearchMatchesSerialSearch() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setPresearcherExecutor(executor);
+        try (Monitor serial = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), unmergedIndexWriter());
+             Monitor concurrent = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                              unmergedIndexWriter(), config)) {
+
+            for (int i = 0; i < 50; i++) {
+                MonitorQuery mq = new MonitorQuery(Integer.toString(i), "term" + (i % 7) + " term" + (i % 11));
+                serial.update(mq);
+                concurrent.update(mq);
+            }
+
+            DocumentBatch batch = DocumentBatch.of(
+                    InputDocument.builder("doc1").addField("f", "term1 term2 term3", new WhitespaceAnalyzer()).build(),
+                    InputDocument.builder("doc2").addField("f", "term4 term10", new WhitespaceAnalyzer()).build());
+
+            Matches<QueryMatch> expected = serial.match(batch, SimpleMatcher.FACTORY);
+            Matches<QueryMatch> actual = concurrent.match(batch, SimpleMatcher.FACTORY);
+
+            assertThat(actual.getQueriesRun()).isEqualTo(expected.getQueriesRun());
+            assertThat(actual.getPresearcherHits()).isEqualTo(expected.getPresearcherHits());
+            assertThat(actual.getMatchCount("doc1")).isEqualTo(expected.getMatchCount("doc1"));
+            assertThat(actual.getMatchCount("doc2")).isEqualTo(expected.getMatchCount("doc2"));
+        }
+    }
+
+    @Test
+    public void testSearchWaitsForRunningSegmentsAfterAFailure() throws Exception {
+
+        AtomicInteger runs = new AtomicInteger();
+        MatcherFactory<QueryMatch> factory = docs -> new CandidateMatcher<QueryMatch>(docs) {
+            @Override
+            protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+                if ("0".equals(queryId))
+                    throw new IOException("Failed to match");
+                try {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                runs.incrementAndGet();
+            }
+
+            @Override
+            public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+                return match1;
+            }
+
+            @Override
+            public void reportError(MatchError e) {
+                throw new IllegalStateException(e.error);
+            }
+        };
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setPresearcherExecutor(executor);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                                           unmergedIndexWriter(), config)) {
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField("f", "test", new WhitespaceAnalyzer())
+                    .build();
+            try {
+                monitor.match(doc, factory);
+                fail("Expected the match to fail");
+            }
+            catch (IllegalStateException e) {
+                assertThat(e).hasMessageContaining("Failed to match");
+            }
+
+            // no segment is still calling the matcher once match() has thrown
+            int runsAfterFailure = runs.get();
+            Thread.sleep(200);
+            assertThat(runs.get()).isEqualTo(runsAfterFailure);
+        }
+    }
+
+}
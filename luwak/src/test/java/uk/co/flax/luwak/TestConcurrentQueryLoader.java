@@ -15,14 +15,24 @@ package uk.co.flax.luwak;
  *   limitations under the License.
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 
 import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
 import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
 import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class TestConcurrentQueryLoader {
 
@@ -64,4 +74,207 @@ public class TestConcurrentQueryLoader {
         }
 
     }
+
+    @Test
+    public void testBulkLoading() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            Monitor.BulkLoadResult result = monitor.bulkLoad(IntStream.range(0, 5000)
+                    .mapToObj(i -> new MonitorQuery(Integer.toString(i), "term" + (i % 10) + " OR common")), 4);
+
+            assertThat(result.queries).isEqualTo(5000);
+            assertThat(result.errors).isEmpty();
+            assertThat(monitor.getQueryCount()).isEqualTo(5000);
+            // identical queries share cache entries
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(20);
+            assertThat(monitor.awaitCommit().isDone()).isTrue();
+
+            InputDocument doc = InputDocument.builder("doc").addField("f", "term3", new StandardAnalyzer()).build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(500);
+        }
+
+    }
+
+    @Test
+    public void testBulkLoadingWithBackgroundCommits() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCommitInterval(1, TimeUnit.MILLISECONDS);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher(), config)) {
+            for (int round = 0; round < 20; round++) {
+                int first = round * 1000;
+                monitor.bulkLoad(IntStream.range(first, first + 1000)
+                        .mapToObj(i -> new MonitorQuery(Integer.toString(i), "test" + i)), 4);
+
+                // the loaded queries are visible and committed as soon as bulkLoad returns
+                assertThat(monitor.getQueryCount()).isEqualTo(first + 1000);
+                assertThat(monitor.awaitCommit().isDone()).isTrue();
+            }
+        }
+
+    }
+
+    @Test
+    public void testBulkLoadNotifiesListenersAroundTheFinalCommit() throws Exception {
+
+        List<String> events = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                @Override
+                public void beforeUpdate(List<Indexable> updates) {
+                    assertThat(Thread.currentThread()).isSameAs(caller);
+                    events.add("before " + updates.size());
+                }
+
+                @Override
+                public void afterUpdate(List<Indexable> updates) {
+                    assertThat(Thread.currentThread()).isSameAs(caller);
+                    try {
+                        events.add("after " + updates.size() + " " + monitor.getQueryCount());
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            monitor.bulkLoad(IntStream.range(0, 2000).mapToObj(i -> new MonitorQuery(Integer.toString(i), "test" + i)), 4);
+        }
+
+        assertThat(events).containsExactly("before 2000", "after 2000 2000");
+    }
+
+    @Test
+    public void testBulkLoadReplacesExistingQueries() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("1", "old"), new MonitorQuery("2", "old"));
+
+            Monitor.BulkLoadResult result = monitor.bulkLoad(Stream.of(
+                    new MonitorQuery("1", "new"), new MonitorQuery("3", "new"), new MonitorQuery("1", "duplicate")));
+
+            assertThat(result.queries).isEqualTo(2);
+            assertThat(result.errors).hasSize(1);
+            assertThat(result.errors.get(0).query.getQuery()).isEqualTo("duplicate");
+            assertThat(monitor.getQueryCount()).isEqualTo(3);
+            // the old entry is still used by query 2, and the new entry is shared by queries 1 and 3
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2);
+            monitor.deleteById("2");
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(1);
+
+            InputDocument doc = InputDocument.builder("doc").addField("f", "new", new StandardAnalyzer()).build();
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc")).isEqualTo(2);
+        }
+
+    }
+
+    @Test
+    public void testBulkLoadErrorHandling() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            Monitor.BulkLoadResult result = monitor.bulkLoad(IntStream.range(0, 2000)
+                    .mapToObj(i -> new MonitorQuery(Integer.toString(i), i % 200 == 0 ? "test [" : "test" + i)));
+
+            assertThat(result.errors).hasSize(10);
+            assertThat(result.queries).isEqualTo(1990);
+            assertThat(monitor.getQueryCount()).isEqualTo(1990);
+        }
+
+    }
+
+    @Test
+    public void testBulkLoadSkipsUnchangedQueries() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setSkipUnchangedQueries(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher(), config)) {
+            monitor.bulkLoad(IntStream.range(0, 2000).mapToObj(i -> new MonitorQuery(Integer.toString(i), "test" + i)));
+
+            Monitor.BulkLoadResult result = monitor.bulkLoad(IntStream.range(0, 2000)
+                    .mapToObj(i -> new MonitorQuery(Integer.toString(i), i < 100 ? "changed" + i : "test" + i)));
+
+            assertThat(result.queries).isEqualTo(2000);
+            assertThat(result.unchanged).isEqualTo(1900);
+            assertThat(monitor.getQueryCount()).isEqualTo(2000);
+            assertThat(monitor.getQuery("50").getQuery()).isEqualTo("changed50");
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(2000);
+        }
+
+    }
+
+    @Test
+    public void testBulkLoadReindexesUnchangedQueriesByDefault() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.bulkLoad(IntStream.range(0, 100).mapToObj(i -> new MonitorQuery(Integer.toString(i), "test" + i)));
+
+            Monitor.BulkLoadResult result = monitor.bulkLoad(IntStream.range(0, 100)
+                    .mapToObj(i -> new MonitorQuery(Integer.toString(i), "test" + i)));
+
+            assertThat(result.queries).isEqualTo(100);
+            assertThat(result.unchanged).isEqualTo(0);
+            assertThat(monitor.getQueryCount()).isEqualTo(100);
+        }
+
+    }
+
+    @Test
+    public void testFailedBulkLoadsKeepLoadedQueries() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.update(new MonitorQuery("existing", "old"));
+
+            BulkLoadException e = failBulkLoad(monitor, IntStream.range(0, 3000).mapToObj(i -> {
+                if (i == 2500)
+                    throw new IllegalStateException("stream failed");
+                return new MonitorQuery(Integer.toString(i), "test" + i);
+            }));
+            assertThat(e).hasCauseInstanceOf(IllegalStateException.class);
+
+            // the loaded queries are committed, and are not published again by the next update
+            Set<String> loadedIds = e.loadedIds;
+            assertThat(loadedIds).doesNotContain("existing", "2500");
+            assertThat(monitor.getQueryCount()).isEqualTo(loadedIds.size() + 1);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(loadedIds.size() + 1);
+
+            monitor.update(new MonitorQuery("new", "test"));
+            assertThat(monitor.getQueryCount()).isEqualTo(loadedIds.size() + 2);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(loadedIds.size() + 2);
+        }
+
+    }
+
+    @Test
+    public void testFailedReloadKeepsExistingQueries() throws Exception {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher())) {
+            monitor.bulkLoad(IntStream.range(0, 3000).mapToObj(i -> new MonitorQuery(Integer.toString(i), "old" + i)));
+
+            BulkLoadException e = failBulkLoad(monitor, IntStream.range(0, 3000).mapToObj(i -> {
+                if (i == 2500)
+                    throw new IllegalStateException("stream failed");
+                return new MonitorQuery(Integer.toString(i), "new" + i);
+            }));
+
+            // no query is lost: each has its new version if it was loaded, and its old version otherwise
+            Set<String> loadedIds = e.loadedIds;
+            assertThat(monitor.getQueryCount()).isEqualTo(3000);
+            assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(3000);
+            for (int i = 0; i < 3000; i++) {
+                String id = Integer.toString(i);
+                String expected = loadedIds.contains(id) ? "new" + i : "old" + i;
+                assertThat(monitor.getQuery(id).getQuery()).isEqualTo(expected);
+            }
+            assertThat(monitor.getQuery("2999").getQuery()).isEqualTo("old2999");
+        }
+
+    }
+    private static BulkLoadException failBulkLoad(Monitor monitor, Stream<MonitorQuery> queries) throws IOException {
+        try {
+            monitor.bulkLoad(queries, 2);
+        }
+        catch (BulkLoadException e) {
+            return e;
+        }
+        fail("Expected the bulk load to fail");
+        return null;
+    }
 }
@@ -0,0 +1,112 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestDocumentBatch {
+
+    private static final Analyzer ANALYZER = new StandardAnalyzer();
+
+    private static InputDocument doc(String id, String text) {
+        return InputDocument.builder(id).addField("f", text, ANALYZER).build();
+    }
+
+    @Test
+    public void testReusedSingletonBatchesDoNotShareTerms() throws IOException {
+
+        try (DocumentBatch batch = new DocumentBatch.Builder().add(doc("1", "hello world")).reuseIndexBuffers(true).build()) {
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(1);
+        }
+
+        try (DocumentBatch batch = new DocumentBatch.Builder().add(doc("2", "goodbye world")).reuseIndexBuffers(true).build()) {
+            assertThat(batch.resolveDocId(0)).isEqualTo("2");
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(0);
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "goodbye"))).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testReusedMultiDocumentBatchesDoNotShareTerms() throws IOException {
+
+        try (DocumentBatch batch = new DocumentBatch.Builder()
+                .add(doc("1", "hello world")).add(doc("2", "hello there"))
+                .reuseIndexBuffers(true).build()) {
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(2);
+        }
+
+        try (DocumentBatch batch = new DocumentBatch.Builder()
+                .add(doc("3", "goodbye world")).add(doc("4", "goodbye there")).add(doc("5", "hello again"))
+                .reuseIndexBuffers(true).build()) {
+            assertThat(batch.getIndexReader().maxDoc()).isEqualTo(3);
+            assertThat(batch.resolveDocId(2)).isEqualTo("5");
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(1);
+            assertThat(batch.getIndexReader().docFreq(new Term("f", "goodbye"))).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testConcurrentBatchesOnOneThreadUseSeparateIndexes() throws IOException {
+
+        try (DocumentBatch batch1 = new DocumentBatch.Builder().add(doc("1", "hello")).reuseIndexBuffers(true).build();
+             DocumentBatch batch2 = new DocumentBatch.Builder().add(doc("2", "goodbye")).reuseIndexBuffers(true).build()) {
+            assertThat(batch1.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(1);
+            assertThat(batch2.getIndexReader().docFreq(new Term("f", "hello"))).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testSearcherIsShared() throws IOException {
+        Similarity similarity = new ClassicSimilarity();
+        try (DocumentBatch batch = new DocumentBatch.Builder()
+                .add(doc("1", "hello world")).add(doc("2", "hello there"))
+                .setSimilarity(similarity).build()) {
+            IndexSearcher searcher = batch.getSearcher();
+            assertThat(batch.getSearcher()).isSameAs(searcher);
+            assertThat(searcher.getSimilarity(true)).isSameAs(similarity);
+            assertThat(searcher.getQueryCache()).isNull();
+        }
+    }
+
+    @Test
+    public void testMonitorReusesIndexBuffersOnlyWhenConfigured() throws IOException, UpdateException {
+        assertThat(new QueryIndexConfiguration().reuseIndexBuffers()).isFalse();
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setReuseIndexBuffers(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "hello"), new MonitorQuery("2", "goodbye"));
+            assertThat(monitor.match(doc("1", "hello world"), SimpleMatcher.FACTORY).matches("1", "1")).isNotNull();
+            Matches<QueryMatch> matches = monitor.match(doc("2", "goodbye world"), SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("2")).isEqualTo(1);
+            assertThat(matches.matches("2", "2")).isNotNull();
+        }
+    }
+
+}
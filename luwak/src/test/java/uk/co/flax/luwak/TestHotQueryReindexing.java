@@ -0,0 +1,139 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+import uk.co.flax.luwak.termextractor.weights.DocumentTermStatistics;
+import uk.co.flax.luwak.termextractor.weights.SelectivityWeightNorm;
+import uk.co.flax.luwak.termextractor.weights.TermWeightor;
+import uk.co.flax.luwak.termextractor.weights.TokenLengthNorm;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestHotQueryReindexing {
+
+    private static final String FIELD = "f";
+
+    private static Matches<QueryMatch> matchCommonDocuments(Monitor monitor, int count) throws IOException {
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            docs.add(InputDocument.builder("doc" + i).addField(FIELD, "commonword filler" + i, new WhitespaceAnalyzer()).build());
+        }
+        return monitor.match(DocumentBatch.of(docs), SimpleMatcher.FACTORY);
+    }
+
+    @Test
+    public void testHotQueriesAreReindexedUnderRarerTerms() throws IOException, UpdateException {
+
+        DocumentTermStatistics stats = new DocumentTermStatistics();
+        // longer terms are preferred until document statistics are available
+        TermWeightor weightor = new TermWeightor(new TokenLengthNorm(), new SelectivityWeightNorm(stats, 0.1f, 100));
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setDocumentTermStatistics(stats, 1);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(weightor), config)) {
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "+commonword +r" + i));
+            }
+
+            Matches<QueryMatch> matches = matchCommonDocuments(monitor, 200);
+            assertThat(matches.getQueriesRun()).isEqualTo(20);
+            assertThat(stats.documentCount()).isEqualTo(200);
+
+            assertThat(monitor.reindexHotQueries(1000)).isEqualTo(0);
+            assertThat(monitor.reindexHotQueries(1)).isEqualTo(20);
+            assertThat(monitor.getQueryCount()).isEqualTo(20);
+
+            matches = matchCommonDocuments(monitor, 10);
+            assertThat(matches.getQueriesRun()).isEqualTo(0);
+            assertThat(monitor.reindexHotQueries(1)).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testQueriesWithNoBetterTermAreNotReindexed() throws IOException, UpdateException {
+
+        DocumentTermStatistics stats = new DocumentTermStatistics();
+        TermWeightor weightor = new TermWeightor(new TokenLengthNorm(), new SelectivityWeightNorm(stats, 0.1f, 100));
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setDocumentTermStatistics(stats, 1);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(weightor), config)) {
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), i < 10 ? "commonword" : "+commonword +r" + i));
+            }
+            matchCommonDocuments(monitor, 200);
+
+            assertThat(monitor.reindexHotQueries(1)).isEqualTo(10);
+            assertThat(monitor.reindexHotQueries(1)).isEqualTo(0);
+            assertThat(monitor.getQueryCount()).isEqualTo(20);
+        }
+    }
+
+    @Test
+    public void testReindexingDoesNotOverwriteUnrefreshedChanges() throws IOException, UpdateException {
+
+        DocumentTermStatistics stats = new DocumentTermStatistics();
+        TermWeightor weightor = new TermWeightor(new TokenLengthNorm(), new SelectivityWeightNorm(stats, 0.1f, 100));
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setDocumentTermStatistics(stats, 1)
+                .setCommitInterval(1, TimeUnit.HOURS)
+                .setRefreshInterval(1, TimeUnit.HOURS);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(weightor), config)) {
+            for (int i = 0; i < 20; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "+commonword +r" + i));
+            }
+            monitor.commit();
+            matchCommonDocuments(monitor, 200);
+
+            // neither change is visible to the searcher that finds the hot queries
+            monitor.deleteById("3");
+            monitor.update(new MonitorQuery("4", "+commonword +changed"));
+
+            assertThat(monitor.reindexHotQueries(1)).isEqualTo(18);
+            monitor.commit();
+            assertThat(monitor.getQueryCount()).isEqualTo(19);
+            assertThat(monitor.getQuery("3")).isNull();
+            assertThat(monitor.getQuery("4").getQuery()).isEqualTo("+commonword +changed");
+        }
+    }
+
+    @Test
+    public void testReindexingRequiresStatisticsAndStoredQueries() throws IOException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher())) {
+            assertThatThrownBy(() -> monitor.reindexHotQueries(1)).isInstanceOf(IllegalStateException.class);
+        }
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setDocumentTermStatistics(new DocumentTermStatistics(), 1)
+                .setHotQueryReindexing(1, 1, TimeUnit.MINUTES)
+                .storeQueries(false);
+        assertThatThrownBy(() -> new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(), config))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
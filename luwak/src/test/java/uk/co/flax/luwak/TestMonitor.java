@@ -5,12 +5,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
@@ -261,4 +268,125 @@ public class TestMonitor {
                 .hasMatchCount("doc2", 0);
     }
 
+    @Test
+    public void testUnchangedQueriesAreNotReindexed() throws IOException, UpdateException {
+
+        final AtomicInteger parses = new AtomicInteger();
+        final AtomicInteger indexed = new AtomicInteger();
+        MonitorQueryParser parser = (queryString, metadata) -> {
+            parses.incrementAndGet();
+            return new LuceneQueryParser(TEXTFIELD, ANALYZER).parse(queryString, metadata);
+        };
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setSkipUnchangedQueries(true);
+
+        try (Monitor monitor = new Monitor(parser, new MatchAllPresearcher(), config)) {
+            monitor.addQueryIndexUpdateListener(new QueryIndexUpdateListener() {
+                @Override
+                public void afterUpdate(List<Indexable> updates) {
+                    indexed.addAndGet(updates.size());
+                }
+            });
+
+            List<MonitorQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 2500; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "test" + i));
+            }
+            monitor.update(queries);
+            Assertions.assertThat(parses.get()).isEqualTo(2500);
+            Assertions.assertThat(indexed.get()).isEqualTo(2500);
+
+            // only changed queries are parsed and re-indexed
+            queries.set(10, new MonitorQuery("10", "changed"));
+            queries.set(20, new MonitorQuery("20", "test20", ImmutableMap.of("new", "metadata")));
+            queries.add(new MonitorQuery("new", "test"));
+            monitor.update(queries);
+            Assertions.assertThat(parses.get()).isEqualTo(2503);
+            Assertions.assertThat(indexed.get()).isEqualTo(2503);
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(2501);
+            Assertions.assertThat(monitor.getQuery("10").getQuery()).isEqualTo("changed");
+            Assertions.assertThat(monitor.getQuery("20").getMetadata()).containsEntry("new", "metadata");
+
+            // an id repeated within an update is always replaced by its last query
+            monitor.update(new MonitorQuery("1", "other"), new MonitorQuery("1", "test1"));
+            Assertions.assertThat(monitor.getQuery("1").getQuery()).isEqualTo("test1");
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(2501);
+        }
+    }
+
+    @Test
+    public void testIdsRepeatedAcrossLookupBatchesAreReplacedByTheirLastQuery() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setSkipUnchangedQueries(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("x", "test"));
+
+            // the changed query is in the first batch of unchanged lookups, and the unchanged one in the second
+            List<MonitorQuery> queries = new ArrayList<>();
+            queries.add(new MonitorQuery("x", "changed"));
+            for (int i = 0; i < 1500; i++) {
+                queries.add(new MonitorQuery(Integer.toString(i), "test" + i));
+            }
+            queries.add(new MonitorQuery("x", "test"));
+            monitor.update(queries);
+
+            Assertions.assertThat(monitor.getQuery("x").getQuery()).isEqualTo("test");
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(1501);
+        }
+    }
+
+    @Test
+    public void testQueriesChangedSinceLastRefreshAreReindexed() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setSkipUnchangedQueries(true)
+                .setCommitInterval(1, TimeUnit.HOURS)
+                .setRefreshInterval(1, TimeUnit.HOURS);
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.commit();
+
+            // the deletion is not yet visible, so the query must not be skipped
+            monitor.deleteById("1");
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.commit();
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(1);
+
+            monitor.clear();
+            monitor.update(new MonitorQuery("1", "test"));
+            monitor.commit();
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testQueryIndexCanBeForceMerged() throws IOException, UpdateException {
+
+        // with a wide tier, each update is left in its own segment
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(100);
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setMergePolicy(mergePolicy);
+        Directory directory = new RAMDirectory();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(TEXTFIELD, ANALYZER), new MatchAllPresearcher(), directory, config)) {
+            for (int i = 0; i < 10; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+            }
+            Assertions.assertThat(segmentCount(directory)).isEqualTo(10);
+
+            monitor.forceMerge(1);
+            Assertions.assertThat(segmentCount(directory)).isEqualTo(1);
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(10);
+
+            DocumentBatch batch = DocumentBatch.of(InputDocument.builder("doc1").addField(TEXTFIELD, "test", ANALYZER).build());
+            assertThat(monitor.match(batch, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 10);
+        }
+    }
+
+    private static int segmentCount(Directory directory) throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.leaves().size();
+        }
+    }
+
 }
@@ -1,11 +1,21 @@
 package uk.co.flax.luwak;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import com.google.common.collect.ImmutableMap;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.store.MMapDirectory;
 import org.assertj.core.api.Assertions;
 import org.junit.After;
@@ -70,6 +80,163 @@ public class TestMonitorPersistence {
 
     }
 
+    @Test
+    public void testSharedQueriesAreCountedOnRestart() throws IOException, UpdateException {
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"));
+        }
+
+        try (Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor2.deleteById("1");
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(1);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 1);
+        }
+
+    }
+
+    private static class CountingQueryParser implements MonitorQueryParser {
+
+        final AtomicInteger parses = new AtomicInteger();
+        final MonitorQueryParser parser = new LuceneQueryParser("f");
+
+        @Override
+        public Query parse(String queryString, Map<String, String> metadata) throws Exception {
+            parses.incrementAndGet();
+            return parser.parse(queryString, metadata);
+        }
+    }
+
+    @Test
+    public void testCacheSnapshotAvoidsParsingOnRestart() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setQueryCacheSnapshots(true);
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "test"), new MonitorQuery("3", "test f:other"));
+        }
+
+        CountingQueryParser parser = new CountingQueryParser();
+        try (Monitor monitor2 = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(parser.parses.get()).isEqualTo(0);
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(0);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 3);
+            Assertions.assertThat(parser.parses.get()).isEqualTo(2);
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(3);
+
+            // the shared hash counts are restored, so the cache entry for "test" outlives one of its queries
+            monitor2.deleteById("1");
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(3);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 2);
+            Assertions.assertThat(parser.parses.get()).isEqualTo(2);
+        }
+
+    }
+
+    @Test
+    public void testStaleOrCorruptSnapshotsAreIgnored() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setQueryCacheSnapshots(true);
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "test"));
+        }
+        // update the index without writing a new snapshot
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor.update(new MonitorQuery("2", "test"));
+        }
+
+        CountingQueryParser parser = new CountingQueryParser();
+        try (Monitor monitor2 = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(parser.parses.get()).isEqualTo(1);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 2);
+        }
+
+        Path snapshot = indexDirectory.resolve(QueryCacheSnapshot.FILENAME);
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[bytes.length / 2] ^= 0xff;
+        Files.write(snapshot, bytes);
+
+        parser = new CountingQueryParser();
+        try (Monitor monitor3 = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(parser.parses.get()).isEqualTo(1);
+            assertThat(monitor3.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 2);
+        }
+
+    }
+
+    @Test
+    public void testCacheIsRepopulatedConcurrently() throws IOException, UpdateException, InterruptedException {
+
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            // every query appears twice, under different ids
+            queries.add(new MonitorQuery(Integer.toString(i), "test f:term" + (i % 10000)));
+        }
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "term7", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor.update(queries);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CountingQueryParser parser = new CountingQueryParser();
+            QueryIndexConfiguration config = new QueryIndexConfiguration().setWarmupExecutor(executor);
+            try (Monitor monitor2 = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+                Assertions.assertThat(parser.parses.get()).isEqualTo(10000);
+                // each query is decomposed into two disjuncts
+                Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(20000);
+                assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 2);
+            }
+        }
+        finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @Test
+    public void testParseErrorsOnStartupCanBeStreamed() throws IOException, UpdateException {
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory))) {
+            monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "broken"), new MonitorQuery("3", "broken again"));
+        }
+
+        MonitorQueryParser parser = (queryString, metadata) -> {
+            if (queryString.startsWith("broken"))
+                throw new IllegalArgumentException("Can't parse " + queryString);
+            return new LuceneQueryParser("f").parse(queryString, metadata);
+        };
+
+        try {
+            new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory)).close();
+            Assertions.fail("Expected an IOException");
+        }
+        catch (IOException e) {
+            Assertions.assertThat(e).hasMessageContaining("2 queries couldn't be parsed");
+            Assertions.assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+
+        List<QueryError> errors = new ArrayList<>();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setWarmupErrorHandler(errors::add);
+        try (Monitor monitor2 = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(errors).extracting(error -> error.query.getId()).containsOnly("2", "3");
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(1);
+        }
+    }
+
     @Test
     public void testMonitorCanAvoidStoringQueries() throws IOException, UpdateException {
 
@@ -106,6 +273,95 @@ public class TestMonitorPersistence {
 
     }
 
+    @Test
+    public void testStoredQueriesCanBeParsedLazily() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration()
+                .setLazyQueryParsing(true)
+                .setQueryCacheFactory(PackedQueryCache::new);
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+            monitor.update(new MonitorQuery("1", "test"),
+                    new MonitorQuery("2", "test OR wibble"),
+                    new MonitorQuery("3", "test", ImmutableMap.of("language", "en")),
+                    new MonitorQuery("4", "unmatched"));
+        }
+
+        try (Monitor monitor2 = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new MMapDirectory(indexDirectory), config)) {
+
+            Assertions.assertThat(monitor2.getQueryCount()).isEqualTo(4);
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(0);
+
+            Matches<QueryMatch> matches = monitor2.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches).hasMatchCount("doc1", 3);
+            Assertions.assertThat(matches.getErrors()).isEmpty();
+            // query 2 is decomposed into two entries, and query 4 is never selected
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(4);
+
+            monitor2.purgeCache();
+            Assertions.assertThat(monitor2.getQueryCacheStats().cachedQueries).isEqualTo(4);
+            assertThat(monitor2.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 3);
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLazyQueryParsingRequiresStoredQueries() throws IOException {
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setLazyQueryParsing(true).storeQueries(false);
+        new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config);
+    }
+
+    @Test
+    public void testQueryIndexCanBeBuiltOffline() throws IOException {
+
+        InputDocument doc = InputDocument.builder("doc1").addField("f", "test", new StandardAnalyzer()).build();
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setQueryCacheSnapshots(true);
+        Path workingDirectory = Files.createTempDirectory("query-index-build");
+
+        try {
+            QueryIndexBuilder builder = new QueryIndexBuilder(new LuceneQueryParser("f"), new TermFilteredPresearcher(), config)
+                    .setThreads(3)
+                    .setWorkingDirectory(workingDirectory);
+            Monitor.BulkLoadResult result = builder.build(IntStream.range(0, 3000).mapToObj(i -> {
+                // query 2999 duplicates the id of query 0, and both are invalid, so the
+                // errors don't depend on which is seen first
+                String query = i % 1000 == 0 || i == 2999 ? "test [" : "test OR other" + (i % 10);
+                return new MonitorQuery(Integer.toString(i % 2999), query);
+            }), new MMapDirectory(indexDirectory));
+
+            Assertions.assertThat(result.queries).isEqualTo(2996);
+            Assertions.assertThat(result.errors).hasSize(4);
+            try (DirectoryStream<Path> partitions = Files.newDirectoryStream(workingDirectory)) {
+                Assertions.assertThat(partitions).isEmpty();
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(workingDirectory);
+        }
+
+        CountingQueryParser parser = new CountingQueryParser();
+        try (Monitor monitor = new Monitor(parser, new TermFilteredPresearcher(), new MMapDirectory(indexDirectory), config)) {
+            Assertions.assertThat(parser.parses.get()).isEqualTo(0);
+            Assertions.assertThat(monitor.getQueryCount()).isEqualTo(2996);
+            assertThat(monitor.match(doc, SimpleMatcher.FACTORY)).hasMatchCount("doc1", 2996);
+            Assertions.assertThat(parser.parses.get()).isEqualTo(10);
+
+            // shared query hashes are counted in the snapshot
+            monitor.deleteById("1", "11", "21");
+            Assertions.assertThat(monitor.getQueryCacheStats().cachedQueries).isEqualTo(20);
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfflineBuildRequiresStoredQueries() {
+        new QueryIndexBuilder(new LuceneQueryParser("f"), new TermFilteredPresearcher(),
+                new QueryIndexConfiguration().storeQueries(false));
+    }
+
     @After
     public void teardown() throws IOException {
         FileUtils.deleteDirectory(indexDirectory);
@@ -0,0 +1,147 @@
+package uk.co.flax.luwak;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPackedQueryCache {
+
+    private static BytesRef hash(String query, int suffix) {
+        BytesRefBuilder builder = new BytesRefBuilder();
+        builder.append(new MonitorQuery("id", query).hash());
+        builder.append(new BytesRef("_" + suffix));
+        return builder.toBytesRef();
+    }
+
+    private static QueryCacheEntry entry(BytesRef hash, String term, Map<String, String> metadata) {
+        return new QueryCacheEntry(hash, new TermQuery(new Term("f", term)), metadata);
+    }
+
+    @Test
+    public void testEntriesCanBeAddedAndRemoved() {
+
+        PackedQueryCache cache = new PackedQueryCache();
+        Map<String, String> metadata = ImmutableMap.of("language", "en");
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(entry(hash("query" + i, i % 3), "term" + i, i % 2 == 0 ? metadata : Collections.emptyMap()));
+        }
+        assertThat(cache.size()).isEqualTo(1000);
+
+        QueryCacheEntry entry = cache.get(hash("query10", 1));
+        assertThat(entry.matchQuery).isEqualTo(new TermQuery(new Term("f", "term10")));
+        assertThat(entry.metadata).isEqualTo(metadata);
+        assertThat(entry.hash).isEqualTo(hash("query10", 1));
+        assertThat(cache.get(hash("query10", 2))).isNull();
+
+        for (int i = 0; i < 1000; i += 2) {
+            cache.remove(hash("query" + i, i % 3));
+        }
+        assertThat(cache.size()).isEqualTo(500);
+        assertThat(cache.get(hash("query10", 1))).isNull();
+        assertThat(cache.get(hash("query11", 2)).matchQuery).isEqualTo(new TermQuery(new Term("f", "term11")));
+
+        cache.put(entry(hash("query10", 1), "term10", metadata));
+        assertThat(cache.size()).isEqualTo(501);
+        assertThat(cache.get(hash("query10", 1)).metadata).isEqualTo(metadata);
+    }
+
+    @Test
+    public void testReplacingAnEntryDoesNotChangeSize() {
+        PackedQueryCache cache = new PackedQueryCache();
+        cache.put(entry(hash("query", 0), "a", Collections.emptyMap()));
+        cache.put(entry(hash("query", 0), "b", Collections.emptyMap()));
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.get(hash("query", 0)).matchQuery).isEqualTo(new TermQuery(new Term("f", "b")));
+    }
+
+    @Test
+    public void testNonStandardHashes() {
+        PackedQueryCache cache = new PackedQueryCache();
+        BytesRef hash = new BytesRef("not a digest");
+        cache.put(entry(hash, "a", Collections.emptyMap()));
+        assertThat(cache.get(new BytesRef("not a digest")).matchQuery).isEqualTo(new TermQuery(new Term("f", "a")));
+        assertThat(cache.size()).isEqualTo(1);
+
+        assertThat(PackedQueryCache.parseSuffix(hash("query", 12))).isEqualTo(12);
+        BytesRefBuilder leadingZero = new BytesRefBuilder();
+        leadingZero.append(new MonitorQuery("id", "query").hash());
+        leadingZero.append(new BytesRef("_01"));
+        assertThat(PackedQueryCache.parseSuffix(leadingZero.get())).isEqualTo(-1);
+    }
+
+    @Test
+    public void testUnreferencedMetadataIsDropped() {
+        PackedQueryCache cache = new PackedQueryCache();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1000; i++) {
+                cache.put(entry(hash("query" + round + "_" + i, 0), "term" + i, ImmutableMap.of("id", round + "_" + i)));
+            }
+            for (int i = 0; i < 1000; i++) {
+                cache.remove(hash("query" + round + "_" + i, 0));
+            }
+        }
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.metadataCount()).isLessThan(1000);
+
+        // metadata is kept for live entries across rebuilds
+        Map<String, String> metadata = ImmutableMap.of("language", "en");
+        cache.put(entry(hash("kept", 0), "kept", metadata));
+        for (int i = 0; i < 1000; i++) {
+            cache.put(entry(hash("query" + i, 0), "term" + i, ImmutableMap.of("id", Integer.toString(i))));
+            cache.remove(hash("query" + i, 0));
+        }
+        assertThat(cache.get(hash("kept", 0)).metadata).isEqualTo(metadata);
+        assertThat(cache.metadataCount()).isLessThan(1000);
+    }
+
+    @Test
+    public void testEntriesCanBeReadWithoutBuildingThem() throws IOException {
+        PackedQueryCache cache = new PackedQueryCache();
+        Map<String, String> metadata = ImmutableMap.of("language", "en");
+        cache.put(entry(hash("query", 0), "a", metadata));
+        cache.put(entry(new BytesRef("not a digest"), "b", Collections.emptyMap()));
+
+        List<Query> queries = new ArrayList<>();
+        List<Map<String, String>> metadatas = new ArrayList<>();
+        QueryCache.EntryConsumer consumer = (query, md) -> {
+            queries.add(query);
+            metadatas.add(md);
+        };
+        assertThat(cache.get(hash("query", 0), consumer)).isTrue();
+        assertThat(cache.get(new BytesRef("not a digest"), consumer)).isTrue();
+        assertThat(cache.get(hash("query", 1), consumer)).isFalse();
+
+        assertThat(queries).containsExactly(new TermQuery(new Term("f", "a")), new TermQuery(new Term("f", "b")));
+        assertThat(metadatas).containsExactly(metadata, Collections.emptyMap());
+    }
+
+}
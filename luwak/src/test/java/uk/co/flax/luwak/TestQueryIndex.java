@@ -3,7 +3,6 @@ package uk.co.flax.luwak;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -199,11 +198,11 @@ public class TestQueryIndex {
             queryIndex.purgeCache(new QueryIndex.CachePopulator() {
                 
                 @Override
-                public void populateCacheWithIndex(final Map<BytesRef, QueryCacheEntry> newCache) throws IOException {
+                public void populateCacheWithIndex(final QueryCache newCache) throws IOException {
                     queryIndex.scan(new QueryIndex.QueryCollector() {
                         @Override
                         public void matchQuery(String id, QueryCacheEntry query, QueryIndex.DataValues dataValues) throws IOException {
-                            newCache.put(BytesRef.deepCopyOf(query.hash), query);
+                            newCache.put(query);
                         }
                     });
                 }
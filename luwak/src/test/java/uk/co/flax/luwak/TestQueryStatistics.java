@@ -0,0 +1,243 @@
+package uk.co.flax.luwak;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestQueryStatistics {
+
+    @Test
+    public void testStatisticsAreNotCollectedByDefault() throws IOException {
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new MatchAllPresearcher())) {
+            assertThat(monitor.getQueryStatistics()).isNull();
+        }
+    }
+
+    @Test
+    public void testStatisticsAreRecordedAcrossMatchRuns() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(20), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+
+            InputDocument doc = InputDocument.builder("doc1").build();
+            for (int i = 0; i < 3; i++) {
+                monitor.match(doc, SimpleMatcher.FACTORY);
+            }
+
+            QueryStatistics stats = monitor.getQueryStatistics();
+            assertThat(stats.getQueryIds()).containsOnly("1", "2");
+
+            QueryStatistics.Stats slow = stats.get("1");
+            assertThat(slow.getCalls()).isEqualTo(3);
+            assertThat(slow.getMatches()).isEqualTo(3);
+            assertThat(slow.getSelectivity()).isEqualTo(1.0);
+            assertThat(slow.getMeanTime()).isGreaterThanOrEqualTo(20000000);
+            assertThat(slow.getP50()).isGreaterThanOrEqualTo(20000000);
+            assertThat(slow.getP50()).isGreaterThan(stats.get("2").getP50());
+
+            assertThat(stats.estimateCost("1", null)).isGreaterThan(stats.estimateCost("2", null));
+            assertThat(stats.estimateCost("unknown", null)).isEqualTo(0);
+
+            monitor.deleteById("1");
+            assertThat(stats.getQueryIds()).containsOnly("2");
+
+            monitor.clear();
+            assertThat(stats.size()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        QueryStatistics stats = new QueryStatistics();
+        for (int i = 0; i < 99; i++) {
+            stats.record("q", 1500, false);
+        }
+        stats.record("q", 5000000, true);
+
+        QueryStatistics.Stats s = stats.get("q");
+        assertThat(s.getCalls()).isEqualTo(100);
+        assertThat(s.getMatches()).isEqualTo(1);
+        assertThat(s.getP50()).isBetween(1500L, 3000L);
+        assertThat(s.getP99()).isBetween(1500L, 3000L);
+        assertThat(s.getPercentile(100)).isBetween(5000000L, 10000000L);
+    }
+
+    @Test
+    public void testRunsOfRemovedQueriesAreNotRecorded() {
+        QueryStatistics stats = new QueryStatistics();
+        stats.record("q", 1000, true);
+        stats.remove("q");
+
+        // a match run that started before the removal may still run the query
+        stats.record("q", 1000, true);
+        assertThat(stats.get("q")).isNull();
+        assertThat(stats.getQueryIds()).isEmpty();
+
+        stats.add("q");
+        stats.record("q", 1000, true);
+        assertThat(stats.get("q").getCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRemovedQueriesAreForgottenOnceNoRunCanSelectThem() {
+        QueryStatistics stats = new QueryStatistics();
+        long run = stats.startRun();
+        stats.remove("q");
+
+        stats.afterRefresh();
+        stats.afterRefresh();
+        // the run started before the removal, so may still select the query
+        stats.record("q", 1000, true);
+        assertThat(stats.get("q")).isNull();
+        assertThat(stats.removedCount()).isEqualTo(1);
+
+        // removals are pruned on refresh, rather than as each run ends
+        stats.endRun(run);
+        assertThat(stats.removedCount()).isEqualTo(1);
+        stats.afterRefresh();
+        assertThat(stats.removedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHistogramBucketsDoNotOverflow() {
+        QueryStatistics stats = new QueryStatistics();
+        for (int i = 0; i < 100000; i++) {
+            stats.record("q", 1500, true);
+        }
+        for (int i = 0; i < 5000; i++) {
+            stats.record("q", 5000000, true);
+        }
+
+        QueryStatistics.Stats s = stats.get("q");
+        assertThat(s.getCalls()).isEqualTo(105000);
+        assertThat(s.getP50()).isBetween(1500L, 3000L);
+        assertThat(s.getP99()).isBetween(5000000L, 10000000L);
+    }
+
+    @Test
+    public void testMonitorDoesNotKeepRemovedQueries() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher(), config)) {
+            InputDocument doc = InputDocument.builder("doc1").build();
+            for (int i = 0; i < 100; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "test"));
+                monitor.match(doc, SimpleMatcher.FACTORY);
+                monitor.deleteById(Integer.toString(i));
+            }
+            assertThat(monitor.getQueryStatistics().removedCount()).isLessThanOrEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testStatisticsAreRemovedForSingleUseIterables() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new MatchAllPresearcher(), config)) {
+            MonitorQuery q1 = new MonitorQuery("1", "test");
+            MonitorQuery q2 = new MonitorQuery("2", "test");
+            MonitorQuery q3 = new MonitorQuery("3", "test");
+            monitor.update(q1, q2, q3);
+            monitor.match(InputDocument.builder("doc1").build(), SimpleMatcher.FACTORY);
+            assertThat(monitor.getQueryStatistics().getQueryIds()).containsOnly("1", "2", "3");
+
+            Iterable<MonitorQuery> queries = Stream.of(q1)::iterator;
+            monitor.delete(queries);
+            Iterable<String> ids = Stream.of("2")::iterator;
+            monitor.deleteById(ids);
+
+            assertThat(monitor.getQueryCount()).isEqualTo(1);
+            assertThat(monitor.getQueryStatistics().getQueryIds()).containsOnly("3");
+        }
+    }
+
+    @Test
+    public void testFalsePositives() {
+        QueryStatistics stats = new QueryStatistics();
+        stats.record("q1", 1000, true);
+        stats.record("q1", 2000, false);
+        stats.record("q2", 5000, false);
+        stats.record("q3", 3000, true);
+
+        assertThat(stats.get("q1").getFalsePositiveRate()).isEqualTo(0.5);
+        assertThat(stats.get("q1").getWastedTime()).isEqualTo(2000);
+        assertThat(stats.get("q3").getWastedTime()).isEqualTo(0);
+
+        assertThat(stats.getCandidates()).isEqualTo(4);
+        assertThat(stats.getMatches()).isEqualTo(2);
+        assertThat(stats.getFalsePositiveRate()).isEqualTo(0.5);
+        assertThat(stats.getWastedTime()).isEqualTo(7000);
+        assertThat(stats.getMostWastefulQueries(10)).containsExactly("q2", "q1");
+        assertThat(stats.getMostWastefulQueries(1)).containsExactly("q2");
+
+        stats.clear();
+        assertThat(stats.getCandidates()).isEqualTo(0);
+        assertThat(stats.getWastedTime()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMostWastefulTerms() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f", new WhitespaceAnalyzer()), new TermFilteredPresearcher(), config)) {
+            monitor.update(new MonitorQuery("phrase", "\"foo barbaz\""), new MonitorQuery("term", "quux"));
+
+            // the phrase query is selected by its longest term, but the words are in the wrong order
+            InputDocument doc = InputDocument.builder("doc1")
+                    .addField("f", "barbaz foo quux", new WhitespaceAnalyzer())
+                    .build();
+            for (int i = 0; i < 2; i++) {
+                assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+            }
+
+            assertThat(monitor.getQueryStatistics().getMostWastefulQueries(10)).containsExactly("phrase");
+
+            List<QueryStatistics.TermStats> terms = monitor.getMostWastefulTerms(10);
+            assertThat(terms).hasSize(1);
+            QueryStatistics.TermStats barbaz = terms.get(0);
+            assertThat(barbaz.term).isEqualTo(new Term("f", "barbaz"));
+            assertThat(barbaz.queries).isEqualTo(1);
+            assertThat(barbaz.candidates).isEqualTo(2);
+            assertThat(barbaz.matches).isEqualTo(0);
+            assertThat(barbaz.getFalsePositiveRate()).isEqualTo(1.0);
+            assertThat(barbaz.wastedTime).isEqualTo(monitor.getQueryStatistics().get("phrase").getWastedTime());
+        }
+    }
+
+    @Test
+    public void testTermStatisticsRequireQueryStatistics() throws IOException {
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), new TermFilteredPresearcher())) {
+            assertThatThrownBy(() -> monitor.getMostWastefulTerms(10))
+                    .isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+}
@@ -18,18 +18,25 @@ package uk.co.flax.luwak;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.Predicate;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -64,4 +71,90 @@ public class TestQueryTermFilter {
         assertThat(tf.getTerms(FIELD).size()).isEqualTo(2);
     }
 
+    @Test
+    public void testSegmentTermsAreReusedOnRefresh() throws IOException {
+
+        QueryIndex qi = new QueryIndex();
+        qi.commit(indexable("1", "term"));
+        assertThat(qi.segmentTerms).hasSize(1);
+        QueryTermFilter.SegmentTerms first = Iterables.getOnlyElement(qi.segmentTerms.values());
+
+        qi.commit(indexable("2", "term2"));
+        assertThat(qi.segmentTerms).hasSize(2);
+        assertThat(qi.segmentTerms.values()).contains(first);
+
+        QueryTermFilter tf = Iterables.getOnlyElement(qi.termFilters.values());
+        Predicate<BytesRef> terms = tf.getTermPredicate(FIELD);
+        assertThat(terms.test(new BytesRef("term"))).isTrue();
+        assertThat(terms.test(new BytesRef("term2"))).isTrue();
+        assertThat(terms.test(new BytesRef("term3"))).isFalse();
+        assertThat(tf.getTermPredicate("otherfield").test(new BytesRef("term"))).isFalse();
+        assertThat(tf.hasTerms(FIELD)).isTrue();
+        assertThat(tf.hasTerms("otherfield")).isFalse();
+    }
+
+    @Test
+    public void testManyTerms() throws IOException {
+
+        List<Indexable> updates = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            updates.addAll(indexable(Integer.toString(i), "term" + i));
+        }
+        QueryIndex qi = new QueryIndex();
+        qi.commit(updates);
+
+        QueryTermFilter tf = Iterables.getOnlyElement(qi.termFilters.values());
+        Predicate<BytesRef> terms = tf.getTermPredicate(FIELD);
+        for (int i = 0; i < 5000; i++) {
+            assertThat(terms.test(new BytesRef("term" + i))).isTrue();
+            assertThat(terms.test(new BytesRef("other" + i))).isFalse();
+        }
+        assertThat(tf.getTerms(FIELD).size()).isEqualTo(5000);
+        // the merged terms are only built once
+        assertThat(tf.getTerms(FIELD)).isSameAs(tf.getTerms(FIELD));
+    }
+
+    @Test
+    public void testBloomFilteredTerms() throws IOException {
+
+        List<Indexable> updates = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            updates.addAll(indexable(Integer.toString(i), "term" + i));
+        }
+        QueryIndex qi = new QueryIndex(Monitor.defaultIndexWriter(new RAMDirectory()), ConcurrentQueryCache::new, null, 10);
+        qi.commit(updates);
+
+        QueryTermFilter tf = Iterables.getOnlyElement(qi.termFilters.values());
+        Predicate<BytesRef> terms = tf.getTermPredicate(FIELD);
+        int falsePositives = 0;
+        for (int i = 0; i < 5000; i++) {
+            assertThat(terms.test(new BytesRef("term" + i))).isTrue();
+            if (terms.test(new BytesRef("other" + i)))
+                falsePositives++;
+        }
+        assertThat(falsePositives).isLessThan(150);
+        assertThat(tf.getTermPredicate("otherfield").test(new BytesRef("term1"))).isFalse();
+
+        // the exact terms are read again from the query index
+        assertThat(tf.getTerms(FIELD).size()).isEqualTo(5000);
+    }
+
+    @Test
+    public void testBloomFilteredTermsDoNotChangeMatches() throws IOException, UpdateException {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setTermFilterBitsPerTerm(4);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser(FIELD), new TermFilteredPresearcher(), config)) {
+            for (int i = 0; i < 100; i++) {
+                monitor.update(new MonitorQuery(Integer.toString(i), "term" + i));
+            }
+            InputDocument doc = InputDocument.builder("doc")
+                    .addField(FIELD, "term1 term22 other3 other4 other5", new WhitespaceAnalyzer())
+                    .build();
+            Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+            assertThat(matches.getMatchCount("doc")).isEqualTo(2);
+            assertThat(matches.matches("1", "doc")).isNotNull();
+            assertThat(matches.matches("22", "doc")).isNotNull();
+        }
+    }
+
 }
@@ -0,0 +1,134 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+import uk.co.flax.luwak.presearcher.PresearcherMatches;
+import uk.co.flax.luwak.presearcher.TermFilteredPresearcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestPipelinedMatcher extends ConcurrentMatcherTestBase {
+
+    @Override
+    protected <T extends QueryMatch> MatcherFactory<T> matcherFactory(ExecutorService executor, MatcherFactory<T> factory, int threads) {
+        return PipelinedMatcher.factory(executor, factory, threads, 16);
+    }
+
+    private static final MatcherFactory<QueryMatch> FAILING_MATCHER = docs -> new CandidateMatcher<QueryMatch>(docs) {
+        @Override
+        protected void doMatchQuery(String queryId, Query matchQuery, Map<String, String> metadata) throws IOException {
+            if ("5".equals(queryId))
+                throw new IllegalStateException("Failed to match query " + queryId);
+            // keep the other workers busy, so that the buffer fills up
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public QueryMatch resolve(QueryMatch match1, QueryMatch match2) {
+            return match1;
+        }
+    };
+
+    private static List<MonitorQuery> queries() {
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "test"));
+        }
+        return queries;
+    }
+
+    @Test
+    public void testWorkersFinishWhenAQueryFails() throws IOException, UpdateException, InterruptedException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new MatchAllPresearcher())) {
+            monitor.update(queries());
+
+            InputDocument doc = InputDocument.builder("1").addField("field", "test", ANALYZER).build();
+            assertThatThrownBy(() -> monitor.match(doc, PipelinedMatcher.factory(executor, FAILING_MATCHER, 2, 16)))
+                    .isInstanceOf(RuntimeException.class)
+                    .hasMessageStartingWith("Worker thread failed during match")
+                    .hasCauseInstanceOf(IllegalStateException.class);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testWorkersFinishWhenThePresearcherFails() throws IOException, UpdateException, InterruptedException {
+
+        Presearcher presearcher = new MatchAllPresearcher() {
+            @Override
+            public Query buildQuery(LeafReader reader, QueryTermFilter queryTermFilter) {
+                throw new IllegalStateException("Failed to build presearcher query");
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), presearcher)) {
+            monitor.update(queries());
+
+            InputDocument doc = InputDocument.builder("1").addField("field", "test", ANALYZER).build();
+            assertThatThrownBy(() -> monitor.match(doc, PipelinedMatcher.factory(executor, SimpleMatcher.FACTORY, 4, 16)))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("Failed to build presearcher query");
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testWorkersFinishAfterDebugging() throws IOException, UpdateException, InterruptedException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("field"), new TermFilteredPresearcher())) {
+            monitor.update(queries());
+
+            InputDocument doc = InputDocument.builder("1").addField("field", "test", ANALYZER).build();
+            PresearcherMatches<QueryMatch> matches = monitor.debug(doc, PipelinedMatcher.factory(executor, SimpleMatcher.FACTORY, 4, 16));
+            assertThat(matches.matcher.getMatchCount("1")).isEqualTo(1000);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
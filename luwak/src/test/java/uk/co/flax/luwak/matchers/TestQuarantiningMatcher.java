@@ -0,0 +1,142 @@
+package uk.co.flax.luwak.matchers;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.presearcher.MatchAllPresearcher;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Copyright (c) 2017 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TestQuarantiningMatcher {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSlowQueriesAreQuarantined() throws Exception {
+
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(10), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"), new MonitorQuery("3", "fast"));
+
+            QueryStatistics stats = monitor.getQueryStatistics();
+            QuarantiningMatcher.Policy policy = QuarantiningMatcher.Policy.medianTimeAbove(2, 5000000);
+            BlockingQueue<Matches<QueryMatch>> quarantined = new LinkedBlockingQueue<>();
+            MatcherFactory<QueryMatch> factory
+                    = QuarantiningMatcher.factory(stats, policy, SimpleMatcher.FACTORY, executor, 2, quarantined::add);
+
+            InputDocument doc = InputDocument.builder("doc1").build();
+            for (int i = 0; i < 2; i++) {
+                Matches<QueryMatch> matches = monitor.match(doc, factory);
+                assertThat(matches.getMatchCount("doc1")).isEqualTo(3);
+                assertThat(matches.getErrors()).isEmpty();
+            }
+            assertThat(quarantined).isEmpty();
+
+            // the slow query is now quarantined, and its match is delivered separately
+            Matches<QueryMatch> matches = monitor.match(doc, factory);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(matches.matches("1", "doc1")).isNull();
+
+            Matches<QueryMatch> quarantinedMatches = quarantined.poll(10, TimeUnit.SECONDS);
+            assertThat(quarantinedMatches).isNotNull();
+            assertThat(quarantinedMatches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(quarantinedMatches.matches("1", "doc1")).isNotNull();
+            assertThat(quarantinedMatches.getErrors()).isEmpty();
+
+            assertThat(policy.quarantine(stats.get("1"))).isTrue();
+            assertThat(policy.quarantine(stats.get("2"))).isFalse();
+            assertThat(stats.get("1").getCalls()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void testMatchRunsDoNotWaitForQuarantinedQueries() throws Exception {
+
+        ExecutorService quarantineExecutor = Executors.newSingleThreadExecutor();
+        CountDownLatch blocked = new CountDownLatch(1);
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "slow"), new MonitorQuery("2", "fast"));
+            monitor.getQueryStatistics().record("1", 1000, true);
+
+            BlockingQueue<Matches<QueryMatch>> quarantined = new LinkedBlockingQueue<>();
+            MatcherFactory<QueryMatch> factory = QuarantiningMatcher.factory(monitor.getQueryStatistics(),
+                    stats -> true, SimpleMatcher.FACTORY, quarantineExecutor, 1, quarantined::add);
+
+            // the quarantine thread is busy, so the quarantined query cannot run until it is released
+            quarantineExecutor.execute(() -> {
+                try {
+                    blocked.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            Matches<QueryMatch> matches = monitor.match(InputDocument.builder("doc1").build(), factory);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+            assertThat(matches.matches("2", "doc1")).isNotNull();
+            assertThat(quarantined).isEmpty();
+
+            blocked.countDown();
+            Matches<QueryMatch> quarantinedMatches = quarantined.poll(10, TimeUnit.SECONDS);
+            assertThat(quarantinedMatches).isNotNull();
+            assertThat(quarantinedMatches.matches("1", "doc1")).isNotNull();
+        }
+        finally {
+            blocked.countDown();
+            quarantineExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuarantineExecutorIsUnusedWithoutQuarantinedQueries() throws IOException, UpdateException {
+
+        ThreadPoolExecutor quarantineExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        QueryIndexConfiguration config = new QueryIndexConfiguration().setCollectQueryStatistics(true);
+        try (Monitor monitor = new Monitor(new TestSlowLog.SlowQueryParser(0), new MatchAllPresearcher(), config)) {
+            monitor.update(new MonitorQuery("1", "fast"), new MonitorQuery("2", "fast"));
+
+            MatcherFactory<QueryMatch> factory = QuarantiningMatcher.factory(monitor.getQueryStatistics(),
+                    stats -> false, SimpleMatcher.FACTORY, quarantineExecutor, 2, matches -> {});
+
+            Matches<QueryMatch> matches = monitor.match(InputDocument.builder("doc1").build(), factory);
+            assertThat(matches.getMatchCount("doc1")).isEqualTo(2);
+            assertThat(quarantineExecutor.getTaskCount()).isEqualTo(0);
+        }
+        finally {
+            quarantineExecutor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package uk.co.flax.luwak.matchers;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import uk.co.flax.luwak.QueryCostEstimator;
+import uk.co.flax.luwak.SlowLog;
+import uk.co.flax.luwak.util.ForceNoBulkScoringQuery;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static uk.co.flax.luwak.testutils.ParserUtils.parse;
+
+public class TestQueryCostEstimators {
+
+    private static double cost(QueryCostEstimator estimator, String query) throws Exception {
+        Query q = new ForceNoBulkScoringQuery(parse(query));
+        return estimator.estimateCost("id", q);
+    }
+
+    @Test
+    public void testQueryTypeEstimates() throws Exception {
+        QueryCostEstimator estimator = new QueryTypeCostEstimator();
+
+        double term = cost(estimator, "term");
+        double conjunction = cost(estimator, "+term1 +term2");
+        double phrase = cost(estimator, "\"term1 term2\"");
+        double regexp = cost(estimator, "/te.*rm/");
+
+        assertThat(term).isEqualTo(1);
+        assertThat(conjunction).isEqualTo(2);
+        assertThat(phrase).isGreaterThan(conjunction);
+        assertThat(regexp).isGreaterThan(phrase);
+    }
+
+    @Test
+    public void testSlowLogEstimates() throws Exception {
+        SlowLogCostEstimator estimator = new SlowLogCostEstimator(QueryCostEstimator.UNIFORM, 100, 0.5);
+
+        assertThat(cost(estimator, "term")).isEqualTo(100);
+
+        SlowLog slowlog = new SlowLog();
+        slowlog.addQuery("id", 1000);
+        estimator.update(slowlog);
+        assertThat(cost(estimator, "term")).isEqualTo(1000);
+
+        slowlog = new SlowLog();
+        slowlog.addQuery("id", 3000);
+        estimator.update(slowlog);
+        assertThat(cost(estimator, "term")).isEqualTo(2000);
+
+        estimator.remove("id");
+        assertThat(cost(estimator, "term")).isEqualTo(100);
+    }
+
+    @Test
+    public void testSlowLogEstimatesExpire() throws Exception {
+        SlowLogCostEstimator estimator = new SlowLogCostEstimator(QueryCostEstimator.UNIFORM, 100, 0.5, 3);
+
+        SlowLog slowlog = new SlowLog();
+        slowlog.addQuery("id", 1000);
+        estimator.update(slowlog);
+        assertThat(cost(estimator, "term")).isEqualTo(1000);
+
+        // the query now runs below the slow log limit, so is missing from later slow logs
+        estimator.update(new SlowLog());
+        estimator.update(new SlowLog());
+        assertThat(cost(estimator, "term")).isEqualTo(1000);
+        estimator.update(new SlowLog());
+        assertThat(cost(estimator, "term")).isEqualTo(100);
+
+        for (int i = 0; i < 3; i++) {
+            estimator.update(new SlowLog());
+        }
+        assertThat(estimator.size()).isEqualTo(0);
+    }
+
+}
@@ -0,0 +1,97 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestMultipassTermsIntersectionPresearcher extends PresearcherTestBase {
+
+    @Override
+    protected Presearcher createPresearcher() {
+        return new MultipassTermsIntersectionPresearcher(4);
+    }
+
+    @Test
+    public void testSimpleBoolean() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "field:\"hello world\""),
+                       new MonitorQuery("2", "field:world"),
+                       new MonitorQuery("3", "field:\"hello there world\""),
+                       new MonitorQuery("4", "field:\"this and that\""));
+
+        Matches<QueryMatch> matches = monitor.match(buildDoc("doc1", "field", "hello world and goodbye"),
+                                                    SimpleMatcher.FACTORY);
+        assertThat(matches.getPresearcherHits()).containsOnly("1", "2");
+        assertThat(matches.matches("1", "doc1")).isNotNull();
+    }
+
+    @Test
+    public void testMultipleFields() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "field1:(foo OR bar) AND field2:cormorant"));
+        InputDocument doc = InputDocument.builder("doc1")
+                .addField("field1", "a badger walked into a bar", WHITESPACE)
+                .addField("field2", "cormorant", WHITESPACE)
+                .build();
+
+        assertThat(monitor.match(doc, SimpleMatcher.FACTORY).getMatchCount("doc1")).isEqualTo(1);
+    }
+
+    @Test
+    public void selectsTheSameQueriesAsMultipassTermFilteredPresearcher() throws IOException, UpdateException {
+
+        Random random = new Random(42);
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String query = random.nextBoolean()
+                    ? "+w" + random.nextInt(300) + " +(w" + random.nextInt(300) + " w" + random.nextInt(300) + ")"
+                    : "\"w" + random.nextInt(300) + " w" + random.nextInt(300) + "\"";
+            queries.add(new MonitorQuery(Integer.toString(i), query));
+        }
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 100; j++) {
+                text.append("w").append(random.nextInt(300)).append(" ");
+            }
+            docs.add(buildDoc("doc" + i, TEXTFIELD, text.toString()));
+        }
+
+        try (Monitor expected = new Monitor(new LuceneQueryParser(TEXTFIELD, WHITESPACE), new MultipassTermFilteredPresearcher(4))) {
+            expected.update(queries);
+            monitor.update(queries);
+            for (InputDocument doc : docs) {
+                Matches<QueryMatch> expectedMatches = expected.match(doc, SimpleMatcher.FACTORY);
+                Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+                assertThat(expectedMatches.getPresearcherHits()).isNotEmpty();
+                assertThat(matches.getPresearcherHits()).isEqualTo(expectedMatches.getPresearcherHits());
+                assertThat(matches.getMatchCount(doc.getId())).isEqualTo(expectedMatches.getMatchCount(doc.getId()));
+            }
+        }
+    }
+
+}
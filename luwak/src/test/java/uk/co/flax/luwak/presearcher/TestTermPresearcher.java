@@ -145,4 +145,40 @@ public class TestTermPresearcher extends PresearcherTestBase {
         }
 
     }
+
+    @Test
+    public void testDocumentTermsArePrunedToQueryIndexTerms() throws IOException, UpdateException {
+
+        IndexWriterConfig iwc = new IndexWriterConfig(new KeywordAnalyzer());
+        Presearcher presearcher = createPresearcher();
+
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, iwc);
+        try (Monitor monitor = new Monitor(new LuceneQueryParser("f"), presearcher, writer)) {
+
+            monitor.update(new MonitorQuery("1", "f:test f:missing"));
+
+            try (IndexReader reader = DirectoryReader.open(writer, false, false)) {
+
+                DocumentBatch batch = DocumentBatch.of(
+                        InputDocument.builder("doc1")
+                                .addField("f", "this is a test document", new StandardAnalyzer())
+                                .addField("g", "another test field", new StandardAnalyzer())
+                                .build()
+                );
+
+                // only terms in the query index are kept, and field g is not in the query index at all
+                BooleanQuery q = (BooleanQuery) presearcher.buildQuery(batch.getIndexReader(), new QueryTermFilter(reader));
+                BooleanQuery expected = new BooleanQuery.Builder()
+                        .add(should(new BooleanQuery.Builder().add(should(new TermInSetQuery("f", new BytesRef("test")))).build()))
+                        .add(should(new TermQuery(new Term("__anytokenfield", "__ANYTOKEN__"))))
+                        .build();
+
+                Assertions.assertThat(q).isEqualTo(expected);
+
+            }
+
+        }
+
+    }
 }
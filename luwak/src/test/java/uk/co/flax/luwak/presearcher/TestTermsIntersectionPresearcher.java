@@ -0,0 +1,92 @@
+package uk.co.flax.luwak.presearcher;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import uk.co.flax.luwak.*;
+import uk.co.flax.luwak.matchers.SimpleMatcher;
+import uk.co.flax.luwak.queryparsers.LuceneQueryParser;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTermsIntersectionPresearcher extends PresearcherTestBase {
+
+    @Override
+    protected Presearcher createPresearcher() {
+        return new TermsIntersectionPresearcher();
+    }
+
+    @Test
+    public void filtersOnTermQueries() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "furble"),
+                       new MonitorQuery("2", "document"),
+                       new MonitorQuery("3", "\"a document\""),
+                       new MonitorQuery("4", "zzz"));
+
+        Matches<QueryMatch> matches = monitor.match(buildDoc("doc1", TEXTFIELD, "this is a test document"), SimpleMatcher.FACTORY);
+        assertThat(matches.getMatchCount("doc1")).isEqualTo(1);
+        assertThat(matches.getPresearcherHits()).containsOnly("2", "3");
+    }
+
+    @Test
+    public void selectsTheSameQueriesAsTermFilteredPresearcher() throws IOException, UpdateException {
+
+        Random random = new Random(42);
+        List<MonitorQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            queries.add(new MonitorQuery(Integer.toString(i), "w" + random.nextInt(5000) + " w" + random.nextInt(5000)));
+        }
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 200; j++) {
+                text.append("w").append(random.nextInt(5000)).append(" ");
+            }
+            docs.add(buildDoc("doc" + i, TEXTFIELD, text.toString()));
+        }
+
+        try (Monitor expected = new Monitor(new LuceneQueryParser(TEXTFIELD, WHITESPACE), new TermFilteredPresearcher())) {
+            expected.update(queries);
+            monitor.update(queries);
+            for (InputDocument doc : docs) {
+                Matches<QueryMatch> expectedMatches = expected.match(doc, SimpleMatcher.FACTORY);
+                Matches<QueryMatch> matches = monitor.match(doc, SimpleMatcher.FACTORY);
+                assertThat(expectedMatches.getPresearcherHits()).isNotEmpty();
+                assertThat(matches.getPresearcherHits()).isEqualTo(expectedMatches.getPresearcherHits());
+                assertThat(matches.getMatchCount(doc.getId())).isEqualTo(expectedMatches.getMatchCount(doc.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void presearcherMatchesCanBeDebugged() throws IOException, UpdateException {
+
+        monitor.update(new MonitorQuery("1", "test"), new MonitorQuery("2", "foo"));
+
+        PresearcherMatches<QueryMatch> matches = monitor.debug(buildDoc("doc1", TEXTFIELD, "this is a test"), SimpleMatcher.FACTORY);
+        assertThat(matches.match("1", "doc1")).isNotNull();
+        assertThat(matches.match("1", "doc1").presearcherMatches).isEqualTo(" text:test");
+        assertThat(matches.match("2", "doc1")).isNull();
+    }
+
+}
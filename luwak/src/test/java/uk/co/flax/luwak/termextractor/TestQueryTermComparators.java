@@ -1,14 +1,20 @@
 package uk.co.flax.luwak.termextractor;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableMap;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.index.Term;
 import org.junit.Test;
 import org.mockito.internal.util.collections.Sets;
+import uk.co.flax.luwak.DocumentBatch;
+import uk.co.flax.luwak.InputDocument;
 import uk.co.flax.luwak.termextractor.querytree.AnyNode;
 import uk.co.flax.luwak.termextractor.querytree.ConjunctionNode;
 import uk.co.flax.luwak.termextractor.querytree.DisjunctionNode;
@@ -17,6 +23,7 @@ import uk.co.flax.luwak.termextractor.querytree.TermNode;
 import uk.co.flax.luwak.termextractor.weights.*;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 /**
  * Copyright (c) 2014 Lemur Consulting Ltd.
@@ -130,4 +137,60 @@ public class TestQueryTermComparators {
                 .isEqualTo(0.2f);
     }
 
+    @Test
+    public void testSelectivityWeightNorms() throws IOException {
+
+        DocumentTermStatistics stats = new DocumentTermStatistics();
+        TermWeightor weight = new TermWeightor(new SelectivityWeightNorm(stats, 0.1f, 100));
+
+        List<InputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            docs.add(InputDocument.builder("doc" + i)
+                    .addField("f", "common doc" + i + (i % 10 == 0 ? " occasional" : ""), new WhitespaceAnalyzer())
+                    .build());
+        }
+
+        // all terms are weighted equally until enough documents have been sampled
+        try (DocumentBatch batch = DocumentBatch.of(docs.subList(0, 50))) {
+            stats.addDocuments(batch.getIndexReader());
+        }
+        assertThat(weight.weigh(new QueryTerm("f", "common", QueryTerm.Type.EXACT))).isEqualTo(1);
+
+        try (DocumentBatch batch = DocumentBatch.of(docs.subList(50, 200))) {
+            stats.addDocuments(batch.getIndexReader());
+        }
+        assertThat(stats.documentCount()).isEqualTo(200);
+        assertThat(stats.documentFrequency(new Term("f", "common"))).isEqualTo(200);
+        assertThat(stats.documentFrequency(new Term("f", "occasional"))).isGreaterThanOrEqualTo(20);
+
+        float common = weight.weigh(new QueryTerm("f", "common", QueryTerm.Type.EXACT));
+        float occasional = weight.weigh(new QueryTerm("f", "occasional", QueryTerm.Type.EXACT));
+        float rare = weight.weigh(new QueryTerm("f", "doc7", QueryTerm.Type.EXACT));
+        float unseen = weight.weigh(new QueryTerm("f", "unseen", QueryTerm.Type.EXACT));
+        assertThat(common).isCloseTo(0.1f, within(0.001f));
+        assertThat(occasional).isGreaterThan(common).isLessThan(rare);
+        assertThat(rare).isLessThan(unseen);
+        assertThat(unseen).isEqualTo(1);
+        assertThat(weight.weigh(new QueryTerm("g", "common", QueryTerm.Type.EXACT))).isEqualTo(1);
+    }
+
+    @Test
+    public void testDocumentTermStatisticsDecay() throws IOException {
+
+        DocumentTermStatistics stats = new DocumentTermStatistics(1024, 100);
+        for (int i = 0; i < 3; i++) {
+            List<InputDocument> docs = new ArrayList<>();
+            for (int j = 0; j < 40; j++) {
+                docs.add(InputDocument.builder("doc" + j).addField("f", i == 2 ? "new" : "old", new WhitespaceAnalyzer()).build());
+            }
+            try (DocumentBatch batch = DocumentBatch.of(docs)) {
+                stats.addDocuments(batch.getIndexReader());
+            }
+        }
+        // counts were halved once the window was reached
+        assertThat(stats.documentCount()).isEqualTo(60);
+        assertThat(stats.documentFrequency(new Term("f", "old"))).isEqualTo(40);
+        assertThat(stats.documentFrequency(new Term("f", "new"))).isEqualTo(20);
+    }
+
 }
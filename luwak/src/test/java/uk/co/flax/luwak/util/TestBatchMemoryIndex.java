@@ -0,0 +1,204 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBatchMemoryIndex {
+
+    private static final FieldType TEXT_WITH_OFFSETS = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        TEXT_WITH_OFFSETS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        TEXT_WITH_OFFSETS.freeze();
+    }
+
+    private static List<Document> documents() {
+        List<Document> docs = new ArrayList<>();
+        String[][] texts = new String[][]{
+                { "the quick brown fox", "jumps over the lazy dog" },
+                { "a lazy afternoon" },
+                { "fox fox fox", "brown dog" },
+                { }
+        };
+        for (int i = 0; i < texts.length; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", "doc" + i, Field.Store.YES));
+            for (String text : texts[i]) {
+                doc.add(new Field("text", text, TEXT_WITH_OFFSETS));
+            }
+            doc.add(new TextField("title", "title " + i, Field.Store.NO));
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    private static List<Document> manyDocuments(int count) {
+        List<Document> docs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", "doc" + i, Field.Store.YES));
+            doc.add(new Field("text", "term" + (i % 7) + " term" + (i % 13) + " common", TEXT_WITH_OFFSETS));
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    @Test
+    public void testIndexMatchesIndexWriter() throws IOException {
+        assertSameAsIndexWriter(documents());
+    }
+
+    @Test
+    public void testLargeBatchMatchesIndexWriter() throws IOException {
+        assertSameAsIndexWriter(manyDocuments(500));
+    }
+
+    private static void assertSameAsIndexWriter(List<Document> docs) throws IOException {
+
+        Analyzer analyzer = new StandardAnalyzer();
+        Similarity similarity = new BM25Similarity();
+
+        BatchMemoryIndex index = new BatchMemoryIndex(similarity);
+        for (Document doc : docs) {
+            index.addDocument(doc, analyzer);
+        }
+
+        try (Directory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer).setSimilarity(similarity))) {
+            for (Document doc : docs) {
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+            try (DirectoryReader expected = DirectoryReader.open(writer)) {
+                assertSameIndex(expected.leaves().get(0).reader(), index.createReader());
+            }
+        }
+    }
+
+    @Test
+    public void testIndexCanBeReset() throws IOException {
+
+        Analyzer analyzer = new StandardAnalyzer();
+        BatchMemoryIndex index = new BatchMemoryIndex(new BM25Similarity());
+        for (Document doc : documents()) {
+            index.addDocument(doc, analyzer);
+        }
+        index.createReader();
+
+        index.reset();
+        Document doc = new Document();
+        doc.add(new TextField("other", "some more text", Field.Store.NO));
+        doc.add(new TextField("title", "another title", Field.Store.NO));
+        index.addDocument(doc, analyzer);
+
+        LeafReader reader = index.createReader();
+        assertThat(reader.maxDoc()).isEqualTo(1);
+        assertThat(reader.terms("text")).isNull();
+        assertThat(reader.getFieldInfos().size()).isEqualTo(2);
+        assertThat(reader.terms("title").size()).isEqualTo(2);
+        assertThat(reader.docFreq(new Term("other", "text"))).isEqualTo(1);
+    }
+
+    @Test
+    public void testSupportedFields() {
+        Document doc = new Document();
+        doc.add(new TextField("text", "some text", Field.Store.YES));
+        assertThat(BatchMemoryIndex.supports(doc)).isTrue();
+        doc.add(new NumericDocValuesField("dv", 1));
+        assertThat(BatchMemoryIndex.supports(doc)).isFalse();
+    }
+
+    private static void assertSameIndex(LeafReader expected, LeafReader actual) throws IOException {
+
+        assertThat(actual.maxDoc()).isEqualTo(expected.maxDoc());
+        for (int i = 0; i < expected.maxDoc(); i++) {
+            assertThat(actual.document(i).get("id")).isEqualTo(expected.document(i).get("id"));
+        }
+
+        for (FieldInfo info : expected.getFieldInfos()) {
+            FieldInfo actualInfo = actual.getFieldInfos().fieldInfo(info.name);
+            assertThat(actualInfo.getIndexOptions()).isEqualTo(info.getIndexOptions());
+            assertThat(actualInfo.omitsNorms()).isEqualTo(info.omitsNorms());
+
+            Terms expectedTerms = expected.terms(info.name);
+            Terms actualTerms = actual.terms(info.name);
+            assertThat(actualTerms.size()).isEqualTo(expectedTerms.size());
+            assertThat(actualTerms.getDocCount()).isEqualTo(expectedTerms.getDocCount());
+            assertThat(actualTerms.getSumDocFreq()).isEqualTo(expectedTerms.getSumDocFreq());
+            assertThat(actualTerms.getSumTotalTermFreq()).isEqualTo(expectedTerms.getSumTotalTermFreq());
+
+            TermsEnum expectedEnum = expectedTerms.iterator();
+            TermsEnum actualEnum = actualTerms.iterator();
+            BytesRef term;
+            while ((term = expectedEnum.next()) != null) {
+                assertThat(actualEnum.next()).isEqualTo(term);
+                assertThat(actualEnum.docFreq()).isEqualTo(expectedEnum.docFreq());
+                assertThat(actualEnum.totalTermFreq()).isEqualTo(expectedEnum.totalTermFreq());
+                assertSamePostings(expectedEnum.postings(null, PostingsEnum.ALL), actualEnum.postings(null, PostingsEnum.ALL),
+                        info.getIndexOptions());
+                assertThat(actual.terms(info.name).iterator().seekExact(term)).isTrue();
+            }
+            assertThat(actualEnum.next()).isNull();
+
+            NumericDocValues expectedNorms = expected.getNormValues(info.name);
+            NumericDocValues actualNorms = actual.getNormValues(info.name);
+            if (expectedNorms == null) {
+                assertThat(actualNorms).isNull();
+                continue;
+            }
+            int doc;
+            while ((doc = expectedNorms.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                assertThat(actualNorms.nextDoc()).isEqualTo(doc);
+                assertThat(actualNorms.longValue()).isEqualTo(expectedNorms.longValue());
+            }
+            assertThat(actualNorms.nextDoc()).isEqualTo(DocIdSetIterator.NO_MORE_DOCS);
+        }
+    }
+
+    private static void assertSamePostings(PostingsEnum expected, PostingsEnum actual, IndexOptions options) throws IOException {
+        int doc;
+        while ((doc = expected.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            assertThat(actual.nextDoc()).isEqualTo(doc);
+            assertThat(actual.freq()).isEqualTo(expected.freq());
+            if (options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0)
+                continue;
+            for (int i = 0; i < expected.freq(); i++) {
+                assertThat(actual.nextPosition()).isEqualTo(expected.nextPosition());
+                assertThat(actual.startOffset()).isEqualTo(expected.startOffset());
+                assertThat(actual.endOffset()).isEqualTo(expected.endOffset());
+            }
+        }
+        assertThat(actual.nextDoc()).isEqualTo(DocIdSetIterator.NO_MORE_DOCS);
+    }
+
+}
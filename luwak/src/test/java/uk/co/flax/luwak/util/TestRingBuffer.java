@@ -0,0 +1,109 @@
+package uk.co.flax.luwak.util;
+
+/*
+ *   Copyright (c) 2017 Lemur Consulting Ltd.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestRingBuffer {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertThat(new RingBuffer<String>(1).capacity()).isEqualTo(1);
+        assertThat(new RingBuffer<String>(5).capacity()).isEqualTo(8);
+        assertThat(new RingBuffer<String>(64).capacity()).isEqualTo(64);
+    }
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        RingBuffer<String> buffer = new RingBuffer<>(4);
+        assertThat(buffer.poll()).isNull();
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer("item" + i)).isTrue();
+        }
+        assertThat(buffer.offer("overflow")).isFalse();
+        assertThat(buffer.size()).isEqualTo(4);
+
+        assertThat(buffer.poll()).isEqualTo("item0");
+        assertThat(buffer.offer("item4")).isTrue();
+        for (int i = 1; i <= 4; i++) {
+            assertThat(buffer.poll()).isEqualTo("item" + i);
+        }
+        assertThat(buffer.poll()).isNull();
+        assertThat(buffer.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+
+        final int producers = 4;
+        final int consumers = 4;
+        final int itemsPerProducer = 50000;
+
+        final RingBuffer<Long> buffer = new RingBuffer<>(16);
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                futures.add(executor.submit(() -> {
+                    for (long i = 1; i <= itemsPerProducer; i++) {
+                        while (buffer.offer(i) == false) {
+                            Thread.yield();
+                        }
+                    }
+                }));
+            }
+            for (int c = 0; c < consumers; c++) {
+                executor.submit(() -> {
+                    while (count.get() < producers * itemsPerProducer) {
+                        Long item = buffer.poll();
+                        if (item == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sum.addAndGet(item);
+                        count.incrementAndGet();
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        long expectedSum = producers * ((long) itemsPerProducer * (itemsPerProducer + 1) / 2);
+        assertThat(count.get()).isEqualTo(producers * itemsPerProducer);
+        assertThat(sum.get()).isEqualTo(expectedSum);
+        assertThat(buffer.poll()).isNull();
+    }
+
+}